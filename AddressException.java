@@ -0,0 +1,6 @@
+class AddressException extends RuntimeException { 
+  AddressException(){}
+  public AddressException(String message) {
+      super(message);
+  } 
+}
@@ -0,0 +1,189 @@
+import java.util.Arrays;
+
+/*
+ *
+ * Admission control in front of the request and cancel commands.
+ *
+ * Every user and every zone has a token bucket: each command takes one token, tokens come back
+ * at a fixed rate up to the size of the bucket. Buckets are refilled lazily, only when they are
+ * looked at, from the time they were last refilled, so idle users cost nothing.
+ *
+ * User buckets live in an open addressing table keyed by the numeric account id, with the token
+ * counts and refill times in flat arrays next to the keys (no boxing, no entry objects). A bucket
+ * that has refilled to full is the same as no bucket at all, so those are dropped whenever the
+ * table grows. Zone buckets are plain arrays indexed by zone.
+ *
+ * On top of the buckets a zone whose queue is longer than the shed backlog rejects new requests
+ * straight away, before any bucket is touched, so a flood into one zone is turned away cheaply
+ * and does not hold up the commands of everyone else.
+ */
+public class AdmissionControl
+{
+  public enum Result { ADMITTED, USERLIMITED, ZONELIMITED, SHED }
+
+  private static final int INITIALCAPACITY = 1024; // power of 2
+  private static final long EMPTY = -1;            // account ids are never negative
+
+  // Bucket sizes (commands) and refill rates (commands per second)
+  private final double userRate;
+  private final int userBurst;
+  private final double zoneRate;
+  private final int zoneBurst;
+  // Queue length past which a zone sheds new requests
+  private final int shedBacklog;
+
+  // Per user buckets
+  private long[] keys;
+  private double[] userTokens;
+  private long[] userRefill;
+  private int size;
+
+  // Per zone buckets
+  private final double[] zoneTokens;
+  private final long[] zoneRefill;
+
+  // How many commands got each result
+  private final long[] counts;
+
+  public AdmissionControl(int numZones, double userRate, int userBurst, double zoneRate, int zoneBurst, int shedBacklog)
+  {
+    this.userRate = userRate;
+    this.userBurst = userBurst;
+    this.zoneRate = zoneRate;
+    this.zoneBurst = zoneBurst;
+    this.shedBacklog = shedBacklog;
+    allocate(INITIALCAPACITY);
+    zoneTokens = new double[numZones];
+    zoneRefill = new long[numZones];
+    Arrays.fill(zoneTokens, zoneBurst);
+    Arrays.fill(zoneRefill, Long.MIN_VALUE);
+    counts = new long[Result.values().length];
+  }
+
+  // Admit one command from account in zone, whose queue currently holds backlog requests.
+  // Tokens are only taken when the command is admitted. An account or zone that is not valid
+  // (negative) is not limited here, the command itself rejects it
+  public synchronized Result admit(long account, int zone, int backlog, long now)
+  {
+    boolean hasZone = zone >= 0 && zone < zoneTokens.length;
+    Result result = Result.ADMITTED;
+    if (hasZone && backlog > shedBacklog)
+      result = Result.SHED;
+    else
+    {
+      int slot = account >= 0 ? slot(account, now) : -1;
+      if (slot >= 0 && userTokens[slot] < 1)
+        result = Result.USERLIMITED;
+      else if (hasZone && refillZone(zone, now) < 1)
+        result = Result.ZONELIMITED;
+      else
+      {
+        if (slot >= 0)
+          userTokens[slot]--;
+        if (hasZone)
+          zoneTokens[zone]--;
+      }
+    }
+    counts[result.ordinal()]++;
+    return result;
+  }
+
+  public synchronized long getCount(Result result)
+  {
+    return counts[result.ordinal()];
+  }
+
+  // Users with a bucket that has not been found full yet
+  public synchronized int getTrackedUsers()
+  {
+    return size;
+  }
+
+  private double refillZone(int zone, long now)
+  {
+    zoneTokens[zone] = refill(zoneTokens[zone], zoneRefill[zone], now, zoneRate, zoneBurst);
+    zoneRefill[zone] = now;
+    return zoneTokens[zone];
+  }
+
+  private static double refill(double tokens, long last, long now, double rate, int burst)
+  {
+    if (last == Long.MIN_VALUE || now - last >= burst / rate * 1000)
+      return burst;
+    if (now <= last)
+      return tokens;
+    return Math.min(burst, tokens + (now - last) * rate / 1000);
+  }
+
+  // Find (or add) the bucket of an account and refill it, returns its slot
+  private int slot(long account, long now)
+  {
+    int mask = keys.length - 1;
+    int i = hash(account) & mask;
+    while (keys[i] != EMPTY)
+    {
+      if (keys[i] == account)
+      {
+        userTokens[i] = refill(userTokens[i], userRefill[i], now, userRate, userBurst);
+        userRefill[i] = now;
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    if ((size + 1) * 2 > keys.length)
+    {
+      rehash(now);
+      return slot(account, now);
+    }
+    keys[i] = account;
+    userTokens[i] = userBurst;
+    userRefill[i] = now;
+    size++;
+    return i;
+  }
+
+  // Grow the table, leaving out the buckets that are full again by now. Only grows when at least
+  // half of the buckets are still in use, otherwise the same size is rebuilt
+  private void rehash(long now)
+  {
+    long[] oldKeys = keys;
+    double[] oldTokens = userTokens;
+    long[] oldRefill = userRefill;
+    int live = 0;
+    for (int i = 0; i < oldKeys.length; i++)
+      if (oldKeys[i] != EMPTY && refill(oldTokens[i], oldRefill[i], now, userRate, userBurst) < userBurst)
+        live++;
+    allocate(live * 4 > oldKeys.length ? oldKeys.length * 2 : oldKeys.length);
+    int mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++)
+    {
+      if (oldKeys[i] == EMPTY)
+        continue;
+      double tokens = refill(oldTokens[i], oldRefill[i], now, userRate, userBurst);
+      if (tokens >= userBurst)
+        continue;
+      int j = hash(oldKeys[i]) & mask;
+      while (keys[j] != EMPTY)
+        j = (j + 1) & mask;
+      keys[j] = oldKeys[i];
+      userTokens[j] = tokens;
+      userRefill[j] = now;
+      size++;
+    }
+  }
+
+  private void allocate(int capacity)
+  {
+    keys = new long[capacity];
+    Arrays.fill(keys, EMPTY);
+    userTokens = new double[capacity];
+    userRefill = new long[capacity];
+    size = 0;
+  }
+
+  private static int hash(long key)
+  {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,545 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ *
+ * Replays a command file against a TMUberSystemManager as fast as possible.
+ *
+ * The file is memory mapped and read in place. Three line formats can be mixed:
+ *   - the interactive format: a command on one line followed by one line per prompt, so any
+ *     script typed into TMUberUI can be replayed as is
+ *   - one command per line with its arguments separated by '|', e.g. "REQRIDE|9000|34 5th Street|71 9th Street"
+ *   - one JSON request per line in the requests.jsonl format read by RequestConverter
+ *
+ * Tokens are scanned straight out of the mapped bytes and turned into strings through a table
+ * of strings already seen, so replaying traffic with the usual repeated ids and addresses does
+ * not allocate per command. With quiet on, everything the commands print is discarded.
+ *
+ * A replay sends commands far faster than any client could, so run from the command line it turns
+ * admission control off unless -a is given (e.g. to replay a flood against it).
+ *
+ * Usage: java BatchReplay <commandFile> [-q] [-a]
+ */
+public class BatchReplay
+{
+  // Bytes of the file mapped at a time
+  private static final int WINDOW = 256 * 1024 * 1024;
+  // Commands applied between published snapshots
+  private static final int BATCH = 1024;
+  private static final int MAXARGS = 8;
+
+  private final TMUberSystemManager tmuber;
+  private final boolean quiet;
+  private final StringTable strings;
+  private final String[] args;
+
+  // Current window of the file and the line being read
+  private FileChannel channel;
+  private MappedByteBuffer buf;
+  private long base;      // file offset of the window
+  private long size;
+  private int pos;        // start of the next line in the window
+  private int lineStart;
+  private int lineEnd;
+  private int lineNumber;
+
+  private int commands;
+  private int failed;
+  private int skipped;
+
+  public BatchReplay(TMUberSystemManager tmuber, boolean quiet)
+  {
+    this.tmuber = tmuber;
+    this.quiet = quiet;
+    strings = new StringTable(4096);
+    args = new String[MAXARGS];
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 1)
+    {
+      System.out.println("Usage: java BatchReplay <commandFile> [-q] [-a]");
+      return;
+    }
+    boolean quiet = false;
+    boolean admission = false;
+    for (int i = 1; i < args.length; i++)
+    {
+      quiet |= args[i].equals("-q");
+      admission |= args[i].equals("-a");
+    }
+    TMUberSystemManager tmuber = new TMUberSystemManager();
+    tmuber.setAdmissionControl(admission);
+    BatchReplay replay = new BatchReplay(tmuber, quiet);
+    replay.run(args[0]);
+  }
+
+  public int getCommands()
+  {
+    return commands;
+  }
+
+  public int getFailed()
+  {
+    return failed;
+  }
+
+  // Replay a whole file and print how fast it went
+  public void run(String filename) throws IOException
+  {
+    PrintStream out = System.out;
+    long start = System.nanoTime();
+    try (FileChannel c = FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ))
+    {
+      channel = c;
+      size = c.size();
+      map(0);
+      lineNumber = 0;
+      if (quiet)
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+      while (nextLine())
+      {
+        if (lineEnd == lineStart)
+          continue;
+        if (!command())
+          break;
+        if (commands % BATCH == 0)
+          tmuber.publishSnapshot();
+      }
+    }
+    finally
+    {
+      System.setOut(out);
+      tmuber.publishSnapshot();
+      channel = null;
+      buf = null;
+    }
+    long nanos = Math.max(1, System.nanoTime() - start);
+    System.out.printf("Replayed %d Commands in %d ms (%.0f Commands/sec), %d Failed, %d Skipped\n",
+                      commands, nanos / 1000000, commands * 1e9 / nanos, failed, skipped);
+  }
+
+  // Run the command on the current line. Returns false on QUIT
+  private boolean command()
+  {
+    int line = lineNumber;
+    int n;
+    boolean json = buf.get(lineStart) == '{';
+    String cmd;
+    try
+    {
+      if (json)
+      {
+        cmd = jsonRequest();
+        n = 0;
+      }
+      else
+      {
+        n = splitLine();
+        cmd = args[0];
+      }
+    }
+    catch (RuntimeException e)
+    {
+      report(line, e.getMessage());
+      skipped++;
+      return true;
+    }
+    if (cmd.equalsIgnoreCase("Q") || cmd.equalsIgnoreCase("QUIT"))
+      return false;
+    commands++;
+    try
+    {
+      if (json)
+        apply(cmd);
+      else
+      {
+        // Interactive format: the arguments are on the lines that follow
+        int wanted = argCount(cmd);
+        if (wanted < 0)
+        {
+          commands--;
+          skipped++;
+          report(line, "Unknown Command " + cmd);
+          return true;
+        }
+        for (int i = n; i <= wanted; i++)
+        {
+          if (!nextLine())
+            throw new IllegalArgumentException("Missing Arguments for " + cmd);
+          args[i] = text(lineStart, lineEnd);
+        }
+        apply(cmd);
+      }
+    }
+    catch (RuntimeException e)
+    {
+      failed++;
+      report(line, e.getMessage());
+    }
+    return true;
+  }
+
+  // Number of prompts each command answers, -1 if it is not a command
+  private static int argCount(String cmd)
+  {
+    switch (cmd.toUpperCase())
+    {
+      case "USERS": case "DRIVERS": case "REQUESTS": case "SORTBYNAME": case "SORTBYWALLET":
+      case "REVENUES": case "SLA": case "SIMULATE": case "SURGE": case "SETTLE":
+      case "FORECAST":
+        return 0;
+      case "LOADUSERS": case "LOADDRIVERS": case "LOADREQS": case "XLDRIVER": case "PICKUP":
+      case "DROPOFF": case "TICK": case "ADDR": case "REBALANCE": case "ADMISSION":
+        return 1;
+      case "CANCELREQ": case "DRIVETO": case "ETA": case "DIST":
+      case "FINDUSER": case "FINDDRIVER": case "FINDPLATE":
+        return 2;
+      case "REQRIDE": case "REGUSER": case "TRAFFIC":
+        return 3;
+      case "REGDRIVER":
+        return 4;
+      case "REQPOOL": case "REQDLVY":
+        return 5;
+      default:
+        return -1;
+    }
+  }
+
+  // Run a command whose arguments are in args[1..]
+  private void apply(String cmd)
+  {
+    switch (cmd.toUpperCase())
+    {
+      case "LOADUSERS":
+        try
+        {
+          tmuber.setUsers(TMUberRegistered.loadPreregisteredUsers(args[1], tmuber.getUserIds()));
+        }
+        catch (IOException e)
+        {
+          throw new IllegalArgumentException("Users File: " + args[1] + " Not Found");
+        }
+        break;
+      case "LOADDRIVERS":
+        try
+        {
+          tmuber.setDrivers(TMUberRegistered.loadPreregisteredDrivers(args[1], tmuber.getDriverIds()));
+        }
+        catch (IOException e)
+        {
+          throw new IllegalArgumentException("Drivers File: " + args[1] + " Not Found");
+        }
+        break;
+      case "LOADREQS":
+        try
+        {
+          new RequestCodec().apply(TMUberRegistered.loadRequests(args[1]), tmuber);
+        }
+        catch (IOException e)
+        {
+          throw new IllegalArgumentException("Requests File: " + args[1] + " Not Found");
+        }
+        break;
+      case "USERS": tmuber.listAllUsers(); break;
+      case "DRIVERS": tmuber.listAllDrivers(); break;
+      case "REQUESTS": tmuber.listAllServiceRequests(); break;
+      case "SORTBYNAME": tmuber.sortByUserName(); break;
+      case "SORTBYWALLET": tmuber.sortByWallet(); break;
+      case "REVENUES": System.out.println("Total Revenue: " + tmuber.totalRevenue); break;
+      case "SLA": tmuber.listSlaStats(); break;
+      case "SETTLE": tmuber.settlePayouts(); break;
+      case "FORECAST": tmuber.listForecast(); break;
+      case "REBALANCE":
+        tmuber.setRebalanceMode(args[1]);
+        tmuber.rebalance();
+        break;
+      case "ADMISSION": tmuber.setAdmissionControl(args[1].trim().equalsIgnoreCase("ON")); break;
+      case "SIMULATE": tmuber.setSimulateMovement(true); break;
+      case "SURGE":
+        for (int zone = 0; zone < tmuber.getCity().getNumZones(); zone++)
+          System.out.println("Zone " + zone + " Surge: " + tmuber.getSurge(zone) + "x");
+        break;
+      case "ADDR":
+        System.out.println(args[1] + (CityMap.validAddress(args[1]) ? "\nValid Address" : "\nBad Address"));
+        break;
+      case "DIST":
+        System.out.println("Distance: " + CityMap.getDistance(args[1], args[2]) + " City Blocks");
+        break;
+      case "XLDRIVER": tmuber.setDriverXL(args[1], true); break;
+      case "PICKUP": tmuber.pickup(args[1]); break;
+      case "DROPOFF": tmuber.dropOff(args[1]); break;
+      case "TICK": tmuber.advanceClock(Integer.parseInt(args[1]) * 1000L); break;
+      case "CANCELREQ": tmuber.cancelServiceRequest(Integer.parseInt(args[2]), Integer.parseInt(args[1])); break;
+      case "DRIVETO": tmuber.driveTo(args[1], args[2]); break;
+      case "ETA": tmuber.quoteEta(args[1], args[2]); break;
+      case "FINDUSER": tmuber.listUserSearch(args[1], Integer.parseInt(args[2].trim()) - 1); break;
+      case "FINDDRIVER": tmuber.listDriverSearch(args[1], Integer.parseInt(args[2].trim()) - 1, false); break;
+      case "FINDPLATE": tmuber.listDriverSearch(args[1], Integer.parseInt(args[2].trim()) - 1, true); break;
+      case "REQRIDE": tmuber.requestRide(args[1], args[2], args[3]); break;
+      case "REGUSER": tmuber.registerNewUser(args[1], args[2], Double.parseDouble(args[3])); break;
+      case "TRAFFIC": tmuber.setTravelTime(args[1], args[2], Integer.parseInt(args[3])); break;
+      case "REGDRIVER": tmuber.registerNewDriver(args[1], args[2], args[3], args[4]); break;
+      case "REQPOOL":
+        tmuber.requestRide(args[1], args[2], args[3], Integer.parseInt(args[4]), args[5].equalsIgnoreCase("Y"), true);
+        break;
+      case "REQDLVY": tmuber.requestDelivery(args[1], args[2], args[3], args[4], args[5]); break;
+      case "JSONRIDE":
+        tmuber.requestRide(args[1], args[2], args[3], Integer.parseInt(args[4]), args[5].equals("true"), args[6].equals("true"));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown Command " + cmd);
+    }
+  }
+
+  private void report(int line, String message)
+  {
+    if (!quiet)
+      System.out.println("Line " + line + ": " + message);
+  }
+
+  // Tokenizing
+
+  // Split the current line on '|' into args. Returns the number of fields
+  private int splitLine()
+  {
+    int n = 0;
+    int start = lineStart;
+    for (int i = lineStart; i < lineEnd; i++)
+    {
+      if (buf.get(i) == '|')
+      {
+        if (n == MAXARGS - 1)
+          throw new IllegalArgumentException("Too Many Fields");
+        args[n++] = text(start, i);
+        start = i + 1;
+      }
+    }
+    args[n++] = text(start, lineEnd);
+    return n;
+  }
+
+  // Read a flat JSON request on the current line into args, returns the command to run it.
+  // A ride becomes JSONRIDE (account, from, to, passengers, xl, pooled), a delivery REQDLVY
+  private String jsonRequest()
+  {
+    String type = "RIDE";
+    String account = null, from = null, to = null, restaurant = null, order = null;
+    String passengers = "1", xl = "false", pooled = "false";
+    int i = lineStart + 1;
+    while (true)
+    {
+      i = skipSpace(i);
+      if (i < lineEnd && buf.get(i) == '}')
+        break;
+      if (i >= lineEnd || buf.get(i) != '"')
+        throw new IllegalArgumentException("Malformed JSON");
+      int keyStart = i + 1;
+      int keyEnd = endOfString(keyStart);
+      i = skipSpace(keyEnd + 1);
+      if (i >= lineEnd || buf.get(i) != ':')
+        throw new IllegalArgumentException("Malformed JSON");
+      i = skipSpace(i + 1);
+      int valueStart, valueEnd;
+      if (i < lineEnd && buf.get(i) == '"')
+      {
+        valueStart = i + 1;
+        valueEnd = endOfString(valueStart);
+        i = valueEnd + 1;
+      }
+      else
+      {
+        valueStart = i;
+        while (i < lineEnd && buf.get(i) != ',' && buf.get(i) != '}' && buf.get(i) != ' ')
+          i++;
+        valueEnd = i;
+      }
+      String value = text(valueStart, valueEnd);
+      if (keyIs(keyStart, keyEnd, "type")) type = value;
+      else if (keyIs(keyStart, keyEnd, "account")) account = value;
+      else if (keyIs(keyStart, keyEnd, "from")) from = value;
+      else if (keyIs(keyStart, keyEnd, "to")) to = value;
+      else if (keyIs(keyStart, keyEnd, "passengers")) passengers = value;
+      else if (keyIs(keyStart, keyEnd, "xl")) xl = value;
+      else if (keyIs(keyStart, keyEnd, "pooled")) pooled = value;
+      else if (keyIs(keyStart, keyEnd, "restaurant")) restaurant = value;
+      else if (keyIs(keyStart, keyEnd, "order")) order = value;
+      i = skipSpace(i);
+      if (i < lineEnd && buf.get(i) == ',')
+        i++;
+    }
+    if (account == null || from == null || to == null)
+      throw new IllegalArgumentException("Missing Account or Address");
+    args[1] = account;
+    args[2] = from;
+    args[3] = to;
+    if (type.equalsIgnoreCase(TMUberDelivery.TYPENAME))
+    {
+      if (restaurant == null || order == null)
+        throw new IllegalArgumentException("Missing Restaurant or Order");
+      args[4] = restaurant;
+      args[5] = order;
+      return "REQDLVY";
+    }
+    args[4] = passengers;
+    args[5] = xl;
+    args[6] = pooled;
+    return "JSONRIDE";
+  }
+
+  private int endOfString(int i)
+  {
+    while (i < lineEnd && buf.get(i) != '"')
+    {
+      if (buf.get(i) == '\\')
+        throw new IllegalArgumentException("Escapes Not Supported, Convert with RequestConverter");
+      i++;
+    }
+    if (i >= lineEnd)
+      throw new IllegalArgumentException("Unterminated String");
+    return i;
+  }
+
+  private boolean keyIs(int start, int end, String key)
+  {
+    if (end - start != key.length())
+      return false;
+    for (int i = 0; i < key.length(); i++)
+      if (buf.get(start + i) != key.charAt(i))
+        return false;
+    return true;
+  }
+
+  private int skipSpace(int i)
+  {
+    while (i < lineEnd && (buf.get(i) == ' ' || buf.get(i) == '\t'))
+      i++;
+    return i;
+  }
+
+  // The string for bytes of the current window
+  private String text(int start, int end)
+  {
+    return strings.get(buf, start, end);
+  }
+
+  // Advance to the next line, mapping the next window of the file when needed.
+  // Returns false at the end of the file
+  private boolean nextLine()
+  {
+    while (true)
+    {
+      int limit = buf.limit();
+      if (pos >= limit && base + limit >= size)
+        return false;
+      int i = pos;
+      while (i < limit && buf.get(i) != '\n')
+        i++;
+      if (i == limit && base + limit < size)
+      {
+        // Line runs past the window: map again starting at this line
+        if (pos == 0)
+          throw new IllegalArgumentException("Line Longer Than " + WINDOW + " Bytes");
+        map(base + pos);
+        continue;
+      }
+      lineStart = pos;
+      lineEnd = i;
+      if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r')
+        lineEnd--;
+      pos = i + 1;
+      lineNumber++;
+      return true;
+    }
+  }
+
+  private void map(long offset)
+  {
+    try
+    {
+      base = offset;
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW, size - offset));
+      pos = 0;
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException("Could Not Map File: " + e.getMessage());
+    }
+  }
+
+  // Strings for byte ranges, reused when the same bytes come up again. Open addressing on the
+  // hash of the bytes; once the table is full new text is still returned, just not kept
+  private static class StringTable
+  {
+    private final String[] table;
+    private final int[] hashes;
+    private int count;
+
+    StringTable(int capacity)
+    {
+      table = new String[capacity];
+      hashes = new int[capacity];
+    }
+
+    String get(MappedByteBuffer buf, int start, int end)
+    {
+      // Surrounding blanks are never part of a field
+      while (start < end && buf.get(start) == ' ')
+        start++;
+      while (end > start && buf.get(end - 1) == ' ')
+        end--;
+      int h = 0;
+      boolean ascii = true;
+      for (int i = start; i < end; i++)
+      {
+        byte b = buf.get(i);
+        ascii &= b >= 0;
+        h = 31 * h + b;
+      }
+      if (!ascii)
+        return decode(buf, start, end);
+      int mask = table.length - 1;
+      for (int slot = h & mask, probes = 0; probes < table.length; slot = (slot + 1) & mask, probes++)
+      {
+        String s = table[slot];
+        if (s == null)
+        {
+          s = decode(buf, start, end);
+          if (count < table.length * 3 / 4)
+          {
+            table[slot] = s;
+            hashes[slot] = h;
+            count++;
+          }
+          return s;
+        }
+        if (hashes[slot] == h && matches(s, buf, start, end))
+          return s;
+      }
+      return decode(buf, start, end);
+    }
+
+    private static boolean matches(String s, MappedByteBuffer buf, int start, int end)
+    {
+      if (s.length() != end - start)
+        return false;
+      for (int i = 0; i < s.length(); i++)
+        if (s.charAt(i) != buf.get(start + i))
+          return false;
+      return true;
+    }
+
+    private static String decode(MappedByteBuffer buf, int start, int end)
+    {
+      byte[] bytes = new byte[end - start];
+      buf.get(start, bytes);
+      return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ *
+ * Hosts the TMUberSystemManagers of many cities in one process.
+ *
+ * Every city keeps its own manager, so queues, drivers, timers and state never mix between
+ * cities. What the cities share is one pool of worker threads and one MetricsRegistry: the pool
+ * runs the commands of every city and completes their futures and event streams, so adding a
+ * city costs a manager and no threads.
+ *
+ * A manager is not thread safe, so each city has a lane: a queue of its commands drained by at
+ * most one worker at a time. Commands of one city run one after another in the order submitted,
+ * commands of different cities run in parallel, and a busy city never holds a lock another city
+ * needs.
+ *
+ * Ride and delivery requests can skip the lane's command queue: submitRide()/submitDelivery() put
+ * them straight into the city's RequestIntake from any thread, and a burst of them costs the lane
+ * a single drain command.
+ */
+public class CityHost
+{
+  // A city's manager and its queue of commands
+  private static class City
+  {
+    final TMUberSystemManager manager;
+    final ConcurrentLinkedQueue<Runnable> commands;
+    final AtomicBoolean scheduled;
+    final AtomicBoolean drainQueued;   // a drain of the intake is waiting in commands
+
+    City(TMUberSystemManager manager)
+    {
+      this.manager = manager;
+      commands = new ConcurrentLinkedQueue<Runnable>();
+      scheduled = new AtomicBoolean(false);
+      drainQueued = new AtomicBoolean(false);
+    }
+  }
+
+  // Commands a lane runs before letting other cities have the worker
+  private static final int LANEBATCH = 64;
+
+  private final ExecutorService workers;
+  private final MetricsRegistry metrics;
+  private final ConcurrentHashMap<String, City> cities;
+
+  public CityHost(int threads)
+  {
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory factory = r -> {
+      Thread t = new Thread(r, "city-worker-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+    workers = Executors.newFixedThreadPool(threads, factory);
+    metrics = new MetricsRegistry();
+    cities = new ConcurrentHashMap<String, City>();
+  }
+
+  public CityHost()
+  {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  // Start serving a city. City names must be unique
+  public TMUberSystemManager addCity(CityMap map)
+  {
+    TMUberSystemManager manager = new TMUberSystemManager(map, workers, metrics);
+    manager.setAdmissionControl(true);
+    if (cities.putIfAbsent(map.getName(), new City(manager)) != null)
+      throw new IllegalArgumentException("City Already Hosted " + map.getName());
+    return manager;
+  }
+
+  // The manager of a city, only to be used from inside its own commands (see submit())
+  public TMUberSystemManager getCity(String name)
+  {
+    return city(name).manager;
+  }
+
+  public List<String> getCityNames()
+  {
+    return new ArrayList<String>(cities.keySet());
+  }
+
+  public MetricsRegistry getMetrics()
+  {
+    return metrics;
+  }
+
+  // Run a command against a city's manager on the city's lane. The future completes with the
+  // command's result, or exceptionally with what it threw
+  public <T> CompletableFuture<T> submit(String name, Callable<T> command)
+  {
+    City city = city(name);
+    CompletableFuture<T> result = new CompletableFuture<T>();
+    city.commands.add(() -> {
+      try
+      {
+        result.complete(command.call());
+      }
+      catch (Throwable e)
+      {
+        result.completeExceptionally(e);
+      }
+    });
+    schedule(city);
+    return result;
+  }
+
+  public CompletableFuture<Void> execute(String name, Runnable command)
+  {
+    return submit(name, () -> {
+      command.run();
+      return null;
+    });
+  }
+
+  // Submit a ride to a city's intake. Returns false if the city's intake is full for that zone.
+  // The outcome goes to the intake's listener (see RequestIntake.setListener)
+  public boolean submitRide(String name, String accountId, String from, String to, int numPassengers,
+                            boolean xl, boolean pooled)
+  {
+    City city = city(name);
+    if (city.manager.getIntake().submitRide(accountId, from, to, numPassengers, xl, pooled) < 0)
+      return false;
+    drainSoon(city);
+    return true;
+  }
+
+  public boolean submitDelivery(String name, String accountId, String from, String to, String restaurant,
+                                String foodOrderId)
+  {
+    City city = city(name);
+    if (city.manager.getIntake().submitDelivery(accountId, from, to, restaurant, foodOrderId) < 0)
+      return false;
+    drainSoon(city);
+    return true;
+  }
+
+  // Queue one drain of the city's intake unless one is already waiting; it takes every request
+  // submitted before it runs
+  private void drainSoon(City city)
+  {
+    if (!city.drainQueued.compareAndSet(false, true))
+      return;
+    city.commands.add(() -> {
+      city.drainQueued.set(false);
+      city.manager.drainIntake();
+    });
+    schedule(city);
+  }
+
+  // Stop taking commands and wait for the ones already submitted
+  public void shutdown() throws InterruptedException
+  {
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  private City city(String name)
+  {
+    City city = cities.get(name);
+    if (city == null)
+      throw new IllegalArgumentException("Unknown City " + name);
+    return city;
+  }
+
+  // Give the lane a worker unless it already has one
+  private void schedule(City city)
+  {
+    if (city.scheduled.compareAndSet(false, true))
+      workers.execute(() -> drain(city));
+  }
+
+  private void drain(City city)
+  {
+    for (int i = 0; i < LANEBATCH; i++)
+    {
+      Runnable command = city.commands.poll();
+      if (command == null)
+        break;
+      command.run();
+    }
+    // Publish what this batch changed before letting go of the lane
+    city.manager.publishSnapshot();
+    city.scheduled.set(false);
+    // Commands added after the last poll, or left over from a full batch
+    if (!city.commands.isEmpty())
+      schedule(city);
+  }
+}
@@ -22,9 +22,149 @@ import java.util.Scanner;
 // in this example it is city block (7, 5) (7th avenue and 5th street)
 //
 // Distance in city blocks between (3, 4) and (7, 5) is then == 5 city blocks
+//
+// The static methods read addresses and describe the default city. A CityMap instance describes
+// one city served by its own TMUberSystemManager: how many blocks it has each way (at most 9, the
+// address format has one digit for streets and avenues), where its zones are split and its rates.
+// Zones are the four quarters of the city: zone 0 north west, 1 north east, 2 south east and
+// 3 south west, split after avenue splitAvenue and street splitStreet.
 
 public class CityMap
 {
+  public static final int MAXSIZE = 9;
+  public static final int NUMZONES = 4;
+
+  // The original 9 x 9 city
+  public static final CityMap DEFAULT = new CityMap("Default", 9, 5, 5, 1.5, 1.2);
+
+  private final String name;
+  private final int size;
+  private final int splitAvenue;
+  private final int splitStreet;
+  private final double rideRate;     // per city block
+  private final double deliveryRate; // per city block
+  private final byte[] zones;        // zone of block (x, y) at x * (MAXSIZE + 1) + y, -1 outside the city
+
+  public CityMap(String name, int size, int splitAvenue, int splitStreet, double rideRate, double deliveryRate)
+  {
+    if (size < 2 || size > MAXSIZE || splitAvenue < 1 || splitAvenue >= size || splitStreet < 1 || splitStreet >= size)
+      throw new IllegalArgumentException("Invalid City Layout " + size + "x" + size);
+    this.name = name;
+    this.size = size;
+    this.splitAvenue = splitAvenue;
+    this.splitStreet = splitStreet;
+    this.rideRate = rideRate;
+    this.deliveryRate = deliveryRate;
+    zones = new byte[(MAXSIZE + 1) * (MAXSIZE + 1)];
+    Arrays.fill(zones, (byte) -1);
+    for (int x = 1; x <= size; x++)
+      for (int y = 1; y <= size; y++)
+      {
+        boolean west = x <= splitAvenue;
+        boolean north = y > splitStreet;
+        zones[x * (MAXSIZE + 1) + y] = (byte) (north ? (west ? 0 : 1) : (west ? 3 : 2));
+      }
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public int getSize()
+  {
+    return size;
+  }
+
+  public int getNumZones()
+  {
+    return NUMZONES;
+  }
+
+  public double getRideRate()
+  {
+    return rideRate;
+  }
+
+  public double getDeliveryRate()
+  {
+    return deliveryRate;
+  }
+
+  // Zone of block (x, y) in this city, -1 if it is not in this city
+  public int zoneOf(int x, int y)
+  {
+    if (x < 1 || x > size || y < 1 || y > size)
+      return -1;
+    return zones[x * (MAXSIZE + 1) + y];
+  }
+
+  // A valid address on a block of this city
+  public boolean isValid(String address)
+  {
+    return zoneOf(address) >= 0;
+  }
+
+  // Zone of an address in this city, -1 if it is not a valid address in this city
+  public int zoneOf(String address)
+  {
+    int block = parseBlock(address);
+    if (block < 0)
+      return -1;
+    return zoneOf(block >> 4, block & 15);
+  }
+
+  // Reads a valid address straight into its city block packed as x * 16 + y, -1 if it is not a
+  // valid address. Same rules as validAddress() and getCityBlock(), but reads the string in place
+  // so it allocates nothing: this runs several times for every request
+  public static int parseBlock(String address)
+  {
+    if (address == null)
+      return -1;
+    int n = address.length();
+    int i = skipSpace(address, 0);
+    // Part 1: two digit residence number, first digit not 0
+    int end = skipWord(address, i);
+    if (end - i != 2)
+      return -1;
+    int num1 = Character.digit(address.charAt(i), 10);
+    if (num1 <= 0 || Character.digit(address.charAt(i + 1), 10) < 0)
+      return -1;
+    // Part 2: 'n'th, 1st, 2nd or 3rd
+    i = skipSpace(address, end);
+    end = skipWord(address, i);
+    if (end - i != 3)
+      return -1;
+    int num2 = Character.digit(address.charAt(i), 10);
+    if (num2 <= 0)
+      return -1;
+    if (!address.startsWith("th", i + 1) && !address.startsWith("1st", i) && !address.startsWith("2nd", i) &&
+        !address.startsWith("3rd", i))
+      return -1;
+    // Part 3: street or avenue, and nothing after it
+    i = skipSpace(address, end);
+    end = skipWord(address, i);
+    boolean street = end - i == 6 && address.regionMatches(true, i, "street", 0, 6);
+    boolean avenue = end - i == 6 && address.regionMatches(true, i, "avenue", 0, 6);
+    if ((!street && !avenue) || skipSpace(address, end) != n)
+      return -1;
+    return street ? num1 << 4 | num2 : num2 << 4 | num1;
+  }
+
+  static int skipSpace(String s, int i)
+  {
+    while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+      i++;
+    return i;
+  }
+
+  private static int skipWord(String s, int i)
+  {
+    while (i < s.length() && !Character.isWhitespace(s.charAt(i)))
+      i++;
+    return i;
+  }
+
   // Checks for string consisting of all digits
   // An easier solution would use String method matches()
   private static boolean allDigits(String s)
@@ -153,46 +293,32 @@ public class CityMap
   // Calculates the distance in city blocks between from address and to address
   public static int getDistance(String from, String to)
   {
-    int[] fromblock = {0, 0};
-    int[] toblock   = {0, 0};
+    int fromblock = parseBlock(from);
+    int toblock   = parseBlock(to);
 
-    if (validAddress(from) && validAddress(to))
-    {
-      fromblock = getCityBlock(from);
-      toblock   = getCityBlock(to);
-    }
-    return Math.abs(toblock[0] - fromblock[0]) + Math.abs(toblock[1] - fromblock[1]) ;
+    if (fromblock < 0 || toblock < 0)
+      return 0;
+    return Math.abs((toblock >> 4) - (fromblock >> 4)) + Math.abs((toblock & 15) - (fromblock & 15));
   }
 
+  // Zone of an address in the default city
+  /*
+   * zone 0, 1, 2, 3. Zone 0 extends from 
+   * 1st avenue to 5th avenue and 6th to 9th street. Zone 1 extends from 6th avenue to 9th
+   * avenue and 6th to 9th street. Zone 2 extends from 6th avenue to 9th avenue and 1st
+   * to 5th street. Zone 3 extends from 1st avenue to 5th avenue and 1st to 5th street. 
+   */
   public static int getCityZone(String address){
-    if(!validAddress(address)){
-      return -1;
-    }
-    int[] block = getCityBlock(address);
-
-    
-    int x = block[0];
-    int y= block[1];
-    
-
-    // (Ex (2,3))
-    /*
-     * zone 0, 1, 2, 3. Zone 0 extends from 
-     * 1st avenue to 5th avenue and 6th to 9th street. Zone 1 extends from 6th avenue to 9th
-     * avenue and 6th to 9th street. Zone 2 extends from 6th avenue to 9th avenue and 1st
-     * to 5th street. Zone 3 extends from 1st avenue to 5th avenue and 1st to 5th street. 
-     */
+    return DEFAULT.zoneOf(address);
+  }
 
-    
-    if ((x>=1 && x<=5) && (y>= 6 && y<= 9)){
-      return 0;
-    } else if(((x>=6 && x<=9) && (y>= 6 && y<= 9))){
-      return 1;
-    } else if((x>=6 && x<=9) && (y>= 1 && y<= 5)){
-      return 2;
-    } else if((x>=1 && x<=5) && (y>= 1 && y<= 5)){
-      return 3;
-    }
-    return -1;
+  // Builds an address string on the given city block (avenue x, street y), e.g. (3, 4) -> "30 4th Street"
+  public static String getAddress(int x, int y)
+  {
+    String suffix = "th";
+    if (y == 1) suffix = "st";
+    else if (y == 2) suffix = "nd";
+    else if (y == 3) suffix = "rd";
+    return x + "0 " + y + suffix + " Street";
   }
 }
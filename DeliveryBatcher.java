@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ *
+ * Groups pending food deliveries that come from the same restaurant and the same pickup block
+ * so that one driver can take several orders in a single trip.
+ *
+ * Orders are only batched with orders requested within WINDOWMILLIS of each other. The drop off
+ * order is built with a nearest-neighbour tour over the city blocks and then improved with 2-opt.
+ */
+public class DeliveryBatcher
+{
+  // Orders requested this close together can share a driver
+  public static final long WINDOWMILLIS = 60000;
+  // Most orders a driver will take in one trip
+  public static final int MAXBATCH = 5;
+
+  // Pending deliveries keyed by restaurant and pickup block
+  private Map<String, ArrayList<TMUberDelivery>> pending;
+
+  public DeliveryBatcher()
+  {
+    pending = new HashMap<String, ArrayList<TMUberDelivery>>();
+  }
+
+  private static String key(TMUberDelivery delivery)
+  {
+    int block = CityMap.parseBlock(delivery.getFrom());
+    return delivery.getRestaurant().toLowerCase() + "@" + (block >> 4) + "," + (block & 15);
+  }
+
+  public void add(TMUberDelivery delivery)
+  {
+    pending.computeIfAbsent(key(delivery), k -> new ArrayList<TMUberDelivery>()).add(delivery);
+  }
+
+  // Remove this exact request (not an equal one)
+  public boolean remove(TMUberService req)
+  {
+    if (!(req instanceof TMUberDelivery))
+      return false;
+    String k = key((TMUberDelivery) req);
+    ArrayList<TMUberDelivery> group = pending.get(k);
+    if (group == null)
+      return false;
+    for (int i = 0; i < group.size(); i++)
+    {
+      if (group.get(i) == req)
+      {
+        group.remove(i);
+        if (group.isEmpty())
+          pending.remove(k);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Take the first delivery and up to MAXBATCH-1 other pending orders from the same restaurant
+  // and block that were requested within the time window. The first delivery must already be
+  // removed from the batcher. Returned orders are removed from the batcher too.
+  public ArrayList<TMUberDelivery> takeBatch(TMUberDelivery first)
+  {
+    ArrayList<TMUberDelivery> batch = new ArrayList<TMUberDelivery>();
+    batch.add(first);
+    String k = key(first);
+    ArrayList<TMUberDelivery> group = pending.get(k);
+    if (group == null)
+      return batch;
+
+    for (int i = 0; i < group.size() && batch.size() < MAXBATCH; )
+    {
+      TMUberDelivery other = group.get(i);
+      if (Math.abs(other.getRequestTime() - first.getRequestTime()) <= WINDOWMILLIS)
+      {
+        batch.add(other);
+        group.remove(i);
+      }
+      else
+        i++;
+    }
+    if (group.isEmpty())
+      pending.remove(k);
+    return batch;
+  }
+
+  // Order the drop offs of a batch starting from the pickup address
+  public static ArrayList<TMUberDelivery> planRoute(String from, ArrayList<TMUberDelivery> batch)
+  {
+    int n = batch.size();
+    // Blocks packed as by CityMap.parseBlock
+    int[] stops = new int[n + 1];
+    stops[0] = CityMap.parseBlock(from);
+    for (int i = 0; i < n; i++)
+      stops[i + 1] = CityMap.parseBlock(batch.get(i).getTo());
+
+    // Nearest neighbour tour: tour[0] is the pickup, tour[1..n] are indexes into stops
+    int[] tour = new int[n + 1];
+    boolean[] visited = new boolean[n + 1];
+    visited[0] = true;
+    for (int pos = 1; pos <= n; pos++)
+    {
+      int best = -1;
+      for (int j = 1; j <= n; j++)
+      {
+        if (!visited[j] && (best < 0 || dist(stops[tour[pos - 1]], stops[j]) < dist(stops[tour[pos - 1]], stops[best])))
+          best = j;
+      }
+      tour[pos] = best;
+      visited[best] = true;
+    }
+
+    // 2-opt: reverse any segment that makes the (open) path shorter, until nothing improves
+    boolean improved = true;
+    while (improved)
+    {
+      improved = false;
+      for (int i = 1; i < n; i++)
+      {
+        for (int j = i + 1; j <= n; j++)
+        {
+          int before = dist(stops[tour[i - 1]], stops[tour[i]]);
+          int after = dist(stops[tour[i - 1]], stops[tour[j]]);
+          if (j < n)
+          {
+            before += dist(stops[tour[j]], stops[tour[j + 1]]);
+            after += dist(stops[tour[i]], stops[tour[j + 1]]);
+          }
+          if (after < before)
+          {
+            for (int a = i, b = j; a < b; a++, b--)
+            {
+              int tmp = tour[a];
+              tour[a] = tour[b];
+              tour[b] = tmp;
+            }
+            improved = true;
+          }
+        }
+      }
+    }
+
+    ArrayList<TMUberDelivery> route = new ArrayList<TMUberDelivery>();
+    for (int pos = 1; pos <= n; pos++)
+      route.add(batch.get(tour[pos] - 1));
+    return route;
+  }
+
+  private static int dist(int a, int b)
+  {
+    return Math.abs((a >> 4) - (b >> 4)) + Math.abs((a & 15) - (b & 15));
+  }
+}
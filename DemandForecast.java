@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ *
+ * Learns how many requests arrive in each zone and plans moves of idle drivers towards the zones
+ * that are about to need them.
+ *
+ * Two estimates are kept per zone, both as exponentially decayed values in flat arrays:
+ *   - a short term rate: a counter that decays with a half life of HALFLIFEMILLIS, so it follows
+ *     the last few minutes of traffic
+ *   - a daily profile: arrivals per hour of the day, each hour blended into the previous days'
+ *     value for that hour with weight DAYWEIGHT once it is over
+ * The forecast for a zone is the profile for the coming hour once that hour has been seen,
+ * averaged with the short term rate.
+ */
+public class DemandForecast
+{
+  // What the manager does with the planned moves
+  public enum Mode { OFF, RECOMMEND, AUTO }
+
+  // A planned move of an idle driver
+  public static class Move
+  {
+    public final Driver driver;
+    public final int zone;
+    public final String address;
+
+    Move(Driver driver, int zone, String address)
+    {
+      this.driver = driver;
+      this.zone = zone;
+      this.address = address;
+    }
+  }
+
+  private static final long HOURMILLIS = 60 * 60 * 1000;
+  private static final int HOURS = 24;
+  private static final long HALFLIFEMILLIS = 10 * 60 * 1000;
+  private static final double DAYWEIGHT = 0.3;
+
+  private final int numZones;
+  private final double[] recent;      // decayed arrival count per zone
+  private final long[] recentTime;    // when recent[zone] was last decayed
+  private final float[] profile;      // arrivals per hour, zone * HOURS + hour of day
+  private final byte[] daysSeen;      // how many times each profile entry has been blended (capped)
+  private final int[] thisHour;       // arrivals per zone in the hour being counted
+  private long currentHour;           // absolute hour thisHour is counting
+  private final String[] centers;     // address in the middle of each zone
+
+  public DemandForecast(CityMap city)
+  {
+    this.numZones = city.getNumZones();
+    recent = new double[numZones];
+    recentTime = new long[numZones];
+    profile = new float[numZones * HOURS];
+    daysSeen = new byte[numZones * HOURS];
+    thisHour = new int[numZones];
+    currentHour = -1;
+    centers = new String[numZones];
+
+    // Middle block of each zone
+    int[] sumX = new int[numZones], sumY = new int[numZones], blocks = new int[numZones];
+    for (int x = 1; x <= city.getSize(); x++)
+      for (int y = 1; y <= city.getSize(); y++)
+      {
+        int zone = city.zoneOf(CityMap.getAddress(x, y));
+        if (zone >= 0 && zone < numZones)
+        {
+          sumX[zone] += x;
+          sumY[zone] += y;
+          blocks[zone]++;
+        }
+      }
+    for (int z = 0; z < numZones; z++)
+      if (blocks[z] > 0)
+        centers[z] = CityMap.getAddress(Math.round((float) sumX[z] / blocks[z]), Math.round((float) sumY[z] / blocks[z]));
+  }
+
+  public String getCenter(int zone)
+  {
+    return centers[zone];
+  }
+
+  // A request arrived in zone at time
+  public void record(int zone, long time)
+  {
+    if (zone < 0 || zone >= numZones)
+      return;
+    rollHour(time);
+    thisHour[zone]++;
+    recent[zone] = decayed(zone, time) + 1;
+    recentTime[zone] = time;
+  }
+
+  // Expected arrivals per hour in zone around time
+  public double expected(int zone, long time)
+  {
+    rollHour(time);
+    double shortTerm = decayed(zone, time) * Math.log(2) / HALFLIFEMILLIS * HOURMILLIS;
+    int i = zone * HOURS + (int) ((time / HOURMILLIS) % HOURS);
+    if (daysSeen[i] == 0)
+      return shortTerm;
+    return (profile[i] + shortTerm) / 2;
+  }
+
+  private double decayed(int zone, long time)
+  {
+    long elapsed = time - recentTime[zone];
+    if (elapsed <= 0)
+      return recent[zone];
+    return recent[zone] * Math.pow(0.5, (double) elapsed / HALFLIFEMILLIS);
+  }
+
+  // Blend finished hours into the daily profile
+  private void rollHour(long time)
+  {
+    long hour = time / HOURMILLIS;
+    if (currentHour < 0)
+      currentHour = hour;
+    // An idle stretch longer than a day only needs each hour of the day blended once
+    long from = Math.max(currentHour, hour - HOURS);
+    for (long h = from; h < hour; h++)
+    {
+      int hourOfDay = (int) (h % HOURS);
+      for (int z = 0; z < numZones; z++)
+      {
+        int i = z * HOURS + hourOfDay;
+        int count = h == currentHour ? thisHour[z] : 0;
+        profile[i] = daysSeen[i] == 0 ? count : (float) (DAYWEIGHT * count + (1 - DAYWEIGHT) * profile[i]);
+        if (daysSeen[i] < Byte.MAX_VALUE)
+          daysSeen[i]++;
+      }
+    }
+    if (hour > currentHour)
+    {
+      Arrays.fill(thisHour, 0);
+      currentHour = hour;
+    }
+  }
+
+  // Plan moves that spread the idle drivers over the zones in proportion to the demand expected
+  // in the next hour plus the requests already waiting. Each move takes the idle driver with the
+  // shortest ETA from a zone with more drivers than its share to a zone with fewer
+  public List<Move> plan(List<Driver> idle, int[] waiting, long now, DriverMovement movement)
+  {
+    ArrayList<Move> moves = new ArrayList<Move>();
+    double[] demand = new double[numZones];
+    double total = 0;
+    for (int z = 0; z < numZones; z++)
+    {
+      demand[z] = expected(z, now) + waiting[z];
+      total += demand[z];
+    }
+    if (total <= 0 || idle.isEmpty())
+      return moves;
+
+    double[] surplus = new double[numZones]; // idle drivers above (or below) the zone's share
+    for (int z = 0; z < numZones; z++)
+      surplus[z] = -idle.size() * demand[z] / total;
+    for (Driver d : idle)
+      if (d.getZone() >= 0 && d.getZone() < numZones)
+        surplus[d.getZone()]++;
+
+    boolean[] moved = new boolean[idle.size()];
+    while (true)
+    {
+      // Zone furthest below its share
+      int to = -1;
+      for (int z = 0; z < numZones; z++)
+        if (centers[z] != null && surplus[z] <= -0.5 && (to < 0 || surplus[z] < surplus[to]))
+          to = z;
+      if (to < 0)
+        break;
+      // Closest idle driver in a zone that can spare one
+      int best = -1;
+      long bestEta = Long.MAX_VALUE;
+      for (int i = 0; i < idle.size(); i++)
+      {
+        Driver d = idle.get(i);
+        if (moved[i] || d.getZone() < 0 || d.getZone() >= numZones || surplus[d.getZone()] < 1)
+          continue;
+        long eta = movement.eta(d.getAddress(), centers[to]);
+        if (eta < bestEta)
+        {
+          best = i;
+          bestEta = eta;
+        }
+      }
+      if (best < 0 || bestEta == DriverMovement.NOROUTE)
+        break;
+      Driver d = idle.get(best);
+      moved[best] = true;
+      surplus[d.getZone()]--;
+      surplus[to]++;
+      moves.add(new Move(d, to, centers[to]));
+    }
+    return moves;
+  }
+}
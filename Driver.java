@@ -1,10 +1,13 @@
+import java.util.ArrayList;
+
 /*
  * 
  * This class simulates a car driver in a simple Uber-like app 
  */
 public class Driver
 {
-  private String id;
+  private long id;
+  private String idText; // id rendered for display, made on first use
   private String name;
   private String carModel;
   private String licensePlate;
@@ -13,12 +16,32 @@ public class Driver
   private TMUberService service;
   private String address;
   private int zone;
+  private boolean xl; // XL vehicles can take XL ride requests and more passengers
+  // All requests assigned to the driver, in drop off order. service is always the first one
+  private ArrayList<TMUberService> onBoard;
+  // The ones of them still waiting to be picked up, in pickup order
+  private ArrayList<TMUberService> pickups;
+
+  // Movement: where the driver is heading (null when parked) and when it last moved a block
+  private String destination;
+  private long lastMoveTime;
+  // Assigned a request but still driving to its pickup
+  private boolean headingToPickup;
+
+  // Seats available to passengers
+  public static final int SEATS = 4;
+  public static final int XLSEATS = 6;
   
   public static enum Status {AVAILABLE, DRIVING};
   private Status status;
     
   
   public Driver(String id, String name, String carModel, String licensePlate, String address)
+  {
+    this(Long.parseLong(id), name, carModel, licensePlate, address);
+  }
+
+  public Driver(long id, String name, String carModel, String licensePlate, String address)
   {
     this.id = id;
     this.name = name;
@@ -29,18 +52,27 @@ public class Driver
     this.type = "";
     this.address = address;
     this.zone = CityMap.getCityZone(address);
+    this.xl = false;
+    this.onBoard = new ArrayList<TMUberService>();
+    this.pickups = new ArrayList<TMUberService>();
   }
   // Print Information about a driver
   public void printInfo()
   {
     System.out.printf("Id: %-3s Name: %-15s Car Model: %-15s License Plate: %-10s Wallet: %2.2f", 
-        id, name, carModel, licensePlate, wallet);
+        getId(), name, carModel, licensePlate, wallet);
     System.out.println("");
     System.out.printf("Status: %-3s  Address: %-15s Zone: %-15s", status, address, zone);
     System.out.println("");
     if(status == Status.DRIVING){
       System.out.printf("From: %-3s To: %-15s ", this.service.getFrom(), this.service.getTo());
       System.out.println("");
+      // Remaining stops of a pooled ride or delivery batch
+      for (int i = 1; i < onBoard.size(); i++)
+      {
+        System.out.printf("Next From: %-3s To: %-15s ", onBoard.get(i).getFrom(), onBoard.get(i).getTo());
+        System.out.println("");
+      }
     }
     //System.out.print("\n");
   }
@@ -55,12 +87,19 @@ public class Driver
     this.type = type;
   }
   public String getId()
+  {
+    if (idText == null)
+      idText = String.valueOf(id);
+    return idText;
+  }
+  public long getIdNumber()
   {
     return id;
   }
   public void setId(String id)
   {
-    this.id = id;
+    this.id = Long.parseLong(id);
+    this.idText = null;
   }
   public String getName()
   {
@@ -97,8 +136,101 @@ public class Driver
   public TMUberService getService(){
     return service;
   }
+  // Setting the service replaces everything on board, and it is the one pickup left to make
   public void setService(TMUberService service){
     this.service = service;
+    onBoard.clear();
+    pickups.clear();
+    if (service != null) {
+      onBoard.add(service);
+      pickups.add(service);
+    }
+  }
+  // Requests on board in drop off order
+  public ArrayList<TMUberService> getOnBoard()
+  {
+    return onBoard;
+  }
+  // Replace the drop off order of the requests on board
+  public void setOnBoard(ArrayList<TMUberService> route)
+  {
+    onBoard = new ArrayList<TMUberService>(route);
+    service = onBoard.isEmpty() ? null : onBoard.get(0);
+  }
+  // Requests still to be picked up, in the order the driver collects them
+  public ArrayList<TMUberService> getPickups()
+  {
+    return pickups;
+  }
+  public void setPickups(ArrayList<? extends TMUberService> order)
+  {
+    pickups = new ArrayList<TMUberService>(order);
+  }
+  // The next request to collect, null once everyone is in the car
+  public TMUberService nextPickup()
+  {
+    return pickups.isEmpty() ? null : pickups.get(0);
+  }
+  // Take the next request on board once the driver is at its pickup
+  public TMUberService collect()
+  {
+    return pickups.isEmpty() ? null : pickups.remove(0);
+  }
+  // Remove the request at the front of the route once it has been dropped off
+  public TMUberService completeService()
+  {
+    if (onBoard.isEmpty())
+      return null;
+    TMUberService done = onBoard.remove(0);
+    service = onBoard.isEmpty() ? null : onBoard.get(0);
+    return done;
+  }
+  // Number of passengers currently in the car
+  public int getPassengers()
+  {
+    int count = 0;
+    for (TMUberService s : onBoard)
+    {
+      if (s instanceof TMUberRide)
+        count += ((TMUberRide) s).getNumPassengers();
+    }
+    return count;
+  }
+  public String getDestination()
+  {
+    return destination;
+  }
+  public void setDestination(String destination)
+  {
+    this.destination = destination;
+  }
+  public long getLastMoveTime()
+  {
+    return lastMoveTime;
+  }
+  public void setLastMoveTime(long lastMoveTime)
+  {
+    this.lastMoveTime = lastMoveTime;
+  }
+  public boolean isHeadingToPickup()
+  {
+    return headingToPickup;
+  }
+  public void setHeadingToPickup(boolean headingToPickup)
+  {
+    this.headingToPickup = headingToPickup;
+  }
+  public boolean isXL()
+  {
+    return xl;
+  }
+  public void setXL(boolean xl)
+  {
+    this.xl = xl;
+  }
+  public int getCapacity()
+  {
+    return xl ? XLSEATS : SEATS;
   }
   public String getAddress()
   {
@@ -117,6 +249,10 @@ public class Driver
   {
     this.zone = CityMap.getCityZone(address);
   }
+  public void setZone(int zone)
+  {
+    this.zone = zone;
+  }
   public double getWallet()
   {
     return wallet;
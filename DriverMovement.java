@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+
+/*
+ *
+ * Moves drivers block by block along the fastest roads of the RoadGraph as the simulation
+ * clock advances, and answers ETA queries.
+ *
+ * Travel times come from the road graph's cache of shortest paths, so an ETA is an array lookup
+ * between road changes and a batch of ETAs for many drivers is one pass over the batch.
+ */
+public class DriverMovement
+{
+  // Time to drive one city block with no traffic
+  public static final long BLOCKMILLIS = 30000;
+  // ETA reported when road closures leave no way through
+  public static final long NOROUTE = Long.MAX_VALUE;
+
+  // Told about every block a driver moves and every arrival
+  public interface Listener
+  {
+    void moved(Driver driver, int oldZone);
+    void arrived(Driver driver);
+  }
+
+  private final RoadGraph roads;
+  private final CityMap city;
+  // Drivers that have a destination
+  private final ArrayList<Driver> moving;
+
+  public DriverMovement(RoadGraph roads, CityMap city)
+  {
+    this.roads = roads;
+    this.city = city;
+    moving = new ArrayList<Driver>();
+  }
+
+  // Block id of an address in the road graph
+  private int blockId(String address)
+  {
+    int block = CityMap.parseBlock(address);
+    return roads.id(block >> 4, block & 15);
+  }
+
+  // Travel time between two addresses
+  public long eta(String from, String to)
+  {
+    long time = roads.travelTime(blockId(from), blockId(to));
+    return time == RoadGraph.CLOSED ? NOROUTE : time;
+  }
+
+  // Batched ETAs from every driver's current position to one address, written into out.
+  // Drivers that are already moving first finish the block they are driving through
+  public void etas(ArrayList<Driver> drivers, String to, long now, long[] out)
+  {
+    // Roads are two-way so one shortest path tree from the target answers every driver
+    int target = blockId(to);
+    for (int i = 0; i < drivers.size(); i++)
+    {
+      Driver d = drivers.get(i);
+      long eta = roads.travelTime(target, blockId(d.getAddress()));
+      if (eta == RoadGraph.CLOSED)
+        eta = NOROUTE;
+      else if (d.getDestination() != null)
+        eta += Math.max(0, BLOCKMILLIS - (now - d.getLastMoveTime()));
+      out[i] = eta;
+    }
+  }
+
+  // Start driving towards an address
+  public void setDestination(Driver driver, String address, long now)
+  {
+    if (driver.getDestination() == null)
+      moving.add(driver);
+    driver.setDestination(address);
+    driver.setLastMoveTime(now);
+  }
+
+  // Stop wherever the driver currently is
+  public void stop(Driver driver)
+  {
+    if (driver.getDestination() != null)
+    {
+      driver.setDestination(null);
+      moving.remove(driver);
+    }
+  }
+
+  public boolean isMoving(Driver driver)
+  {
+    return driver.getDestination() != null;
+  }
+
+  // Remaining travel time of a moving driver
+  public long remaining(Driver driver)
+  {
+    if (driver.getDestination() == null)
+      return 0;
+    return eta(driver.getAddress(), driver.getDestination());
+  }
+
+  // Move every driver forward by the blocks it could drive since its last move.
+  // Each road takes its own travel time, and a driver cut off by closures waits where it is
+  public void advance(long now, Listener listener)
+  {
+    for (int i = 0; i < moving.size(); )
+    {
+      Driver d = moving.get(i);
+      int at = blockId(d.getAddress());
+      int target = blockId(d.getDestination());
+      boolean arrived = at == target;
+      while (!arrived)
+      {
+        int next = roads.nextStep(at, target);
+        if (next < 0)
+        {
+          // No open road, try again later
+          d.setLastMoveTime(now);
+          break;
+        }
+        int size = roads.getSize();
+        long time = roads.weight(at / size + 1, at % size + 1, next / size + 1, next % size + 1);
+        if (d.getLastMoveTime() + time > now)
+          break;
+        d.setLastMoveTime(d.getLastMoveTime() + time);
+        at = next;
+        arrived = at == target;
+
+        int oldZone = d.getZone();
+        d.setAddress(arrived ? d.getDestination() : CityMap.getAddress(at / size + 1, at % size + 1));
+        d.setZone(city.zoneOf(d.getAddress()));
+        if (listener != null)
+          listener.moved(d, oldZone);
+      }
+      if (arrived)
+      {
+        d.setDestination(null);
+        moving.remove(i);
+        if (listener != null)
+          listener.arrived(d);
+      }
+      else
+        i++;
+    }
+  }
+}
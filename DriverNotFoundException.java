@@ -0,0 +1,6 @@
+class DriverNotFoundException extends RuntimeException {
+  DriverNotFoundException(){}
+  public DriverNotFoundException(String message) {
+      super(message);
+  }
+}
@@ -0,0 +1,63 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *
+ * Publishes SystemEvents to any number of Flow subscribers.
+ *
+ * Each subscriber gets its own bounded buffer and is fed on the stream's executor at the pace it
+ * requests (Flow backpressure). The manager never waits for a subscriber: an event that does not
+ * fit in a slow subscriber's full buffer is dropped for that subscriber only and counted, and the
+ * other subscribers still get it. With nobody subscribed emitting costs one check.
+ */
+public class EventStream
+{
+  // Events buffered per subscriber
+  public static final int BUFFER = 1024;
+
+  private final SubmissionPublisher<SystemEvent> publisher;
+  private final LongAdder dropped;
+
+  public EventStream(Executor executor, int buffer)
+  {
+    publisher = new SubmissionPublisher<SystemEvent>(executor, buffer);
+    dropped = new LongAdder();
+  }
+
+  public void subscribe(Flow.Subscriber<? super SystemEvent> subscriber)
+  {
+    publisher.subscribe(subscriber);
+  }
+
+  public boolean hasSubscribers()
+  {
+    return publisher.hasSubscribers();
+  }
+
+  void emit(SystemEvent event)
+  {
+    publisher.offer(event, (subscriber, e) -> {
+      dropped.increment();
+      return false; // do not retry, the write path does not wait
+    });
+  }
+
+  // Events lost to full subscriber buffers
+  public long getDropped()
+  {
+    return dropped.sum();
+  }
+
+  public int getSubscribers()
+  {
+    return publisher.getNumberOfSubscribers();
+  }
+
+  // Complete every subscription
+  public void close()
+  {
+    publisher.close();
+  }
+}
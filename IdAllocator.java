@@ -0,0 +1,166 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ *
+ * Hands out 64-bit ids for users, drivers and service requests.
+ *
+ * Every id comes from one atomic counter per kind, so ids stay unique however many loaders and
+ * registrations run at once. A loader that needs many ids reserves a whole block with a single
+ * atomic add and then numbers its records without touching the counter again, and gives back
+ * the part of the block it did not use if nobody reserved after it.
+ *
+ * User and driver ids carry their kind as a tag in front of the counter's sequence number, the
+ * way account numbers were always written: user 0 is 9000, user 12 is 90012, driver 12 is 70012.
+ * The tags start with different digits, so a user id is never a driver id however many of
+ * either there are. Request ids are the plain sequence number.
+ *
+ * Allocators are not shared by the whole process: each TMUberSystemManager (and a ShardRouter,
+ * for the shards behind it) makes its own, so cities hosted together number their users,
+ * drivers and requests independently.
+ */
+public class IdAllocator
+{
+  public static final long USERTAG = 900;
+  public static final long DRIVERTAG = 700;
+
+  // 10^i, for putting a tag in front of a sequence number
+  private static final long[] POWERS = new long[19];
+  static
+  {
+    POWERS[0] = 1;
+    for (int i = 1; i < POWERS.length; i++)
+      POWERS[i] = POWERS[i - 1] * 10;
+  }
+
+  // A range of reserved ids, used by one thread
+  public static class Block
+  {
+    private final IdAllocator ids;
+    private long next;      // sequence numbers
+    private final long end; // exclusive
+
+    private Block(IdAllocator ids, long first, long end)
+    {
+      this.ids = ids;
+      this.next = first;
+      this.end = end;
+    }
+
+    public boolean hasNext()
+    {
+      return next < end;
+    }
+
+    public long next()
+    {
+      if (next >= end)
+        throw new IllegalStateException("Id Block Used Up");
+      return ids.id(next++);
+    }
+  }
+
+  private final long tag;     // 0 for plain numbers
+  private final AtomicLong next;
+
+  private IdAllocator(long tag, long first)
+  {
+    this.tag = tag;
+    next = new AtomicLong(first);
+  }
+
+  // A new allocator of user ids, starting at 9000
+  public static IdAllocator users()
+  {
+    return new IdAllocator(USERTAG, 0);
+  }
+
+  // A new allocator of driver ids, starting at 7000
+  public static IdAllocator drivers()
+  {
+    return new IdAllocator(DRIVERTAG, 0);
+  }
+
+  // A new allocator of request ids, starting at 1
+  public static IdAllocator requests()
+  {
+    return new IdAllocator(0, 1);
+  }
+
+  public long next()
+  {
+    return id(next.getAndIncrement());
+  }
+
+  // The id of a sequence number
+  public long id(long sequence)
+  {
+    if (tag == 0)
+      return sequence;
+    return tag * POWERS[digits(sequence)] + sequence;
+  }
+
+  // The sequence number of an id of this kind, -1 if it is not one
+  public long sequence(long id)
+  {
+    if (tag == 0 || id < 0)
+      return id;
+    int d = digits(id) - digits(tag);
+    if (d < 1 || id / POWERS[d] != tag)
+      return -1;
+    long sequence = id % POWERS[d];
+    // No leading zeros: 90001 is not user 1
+    return digits(sequence) == d ? sequence : -1;
+  }
+
+  private static int digits(long n)
+  {
+    int d = 1;
+    while (d < POWERS.length && n >= POWERS[d])
+      d++;
+    return d;
+  }
+
+  // Sequence numbers handed out or reserved so far
+  public long issued()
+  {
+    return next.get();
+  }
+
+  // Reserve count ids at once
+  public Block reserve(int count)
+  {
+    long first = next.getAndAdd(count);
+    return new Block(this, first, first + count);
+  }
+
+  // Give back the unused end of a block, if it is still the most recent reservation
+  public void release(Block block)
+  {
+    if (block.next < block.end)
+      next.compareAndSet(block.end, block.next);
+  }
+
+  // Make sure an id assigned elsewhere (another shard, the primary) is never handed out here
+  public void advancePast(long id)
+  {
+    long sequence = sequence(id);
+    if (sequence >= 0)
+      next.accumulateAndGet(sequence + 1, Math::max);
+  }
+
+  // Parse the text form of an id, -1 if it is not one
+  public static long parse(String id)
+  {
+    if (id == null || id.length() == 0 || id.length() > 18)
+      return -1;
+    long value = 0;
+    for (int i = 0; i < id.length(); i++)
+    {
+      char c = id.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+}
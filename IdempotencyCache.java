@@ -0,0 +1,115 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ *
+ * Remembers the outcome of recent requests by the idempotency key the client sent with them, so a
+ * retried request gets the first outcome back instead of being booked again.
+ *
+ * The cache is bounded: keys are spread over SEGMENTS segments by hash, each a LinkedHashMap in
+ * access order holding at most its share of the capacity and evicting its least recently used
+ * key past that. Each segment has its own lock, so lookups of different keys rarely wait on one
+ * another. Keys also expire ttlMillis after they were stored; expired keys are dropped when they
+ * are looked up and, from the least recently used end, whenever a key is stored.
+ */
+public class IdempotencyCache
+{
+  private static final int SEGMENTS = 16; // power of 2
+  // Expired keys looked at from the old end of a segment per store
+  private static final int EXPIRESCAN = 4;
+
+  // What happened the first time a key was used
+  public static class Outcome
+  {
+    public final String accountId;
+    public final long requestId;          // 0 when the request failed
+    public final RuntimeException error;  // null when the request was queued
+    final long storedAt;
+
+    Outcome(String accountId, long requestId, RuntimeException error, long storedAt)
+    {
+      this.accountId = accountId;
+      this.requestId = requestId;
+      this.error = error;
+      this.storedAt = storedAt;
+    }
+  }
+
+  private final LinkedHashMap<String, Outcome>[] segments;
+  private final long ttlMillis;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public IdempotencyCache(int capacity, long ttlMillis)
+  {
+    this.ttlMillis = ttlMillis;
+    int perSegment = Math.max(1, capacity / SEGMENTS);
+    segments = (LinkedHashMap<String, Outcome>[]) new LinkedHashMap[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++)
+    {
+      segments[i] = new LinkedHashMap<String, Outcome>(16, 0.75f, true)
+      {
+        protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest)
+        {
+          return size() > perSegment;
+        }
+      };
+    }
+  }
+
+  // The outcome stored for key, or null if there is none or it has expired
+  public Outcome get(String key, long now)
+  {
+    LinkedHashMap<String, Outcome> segment = segment(key);
+    synchronized (segment)
+    {
+      Outcome o = segment.get(key);
+      if (o != null && now - o.storedAt >= ttlMillis)
+      {
+        segment.remove(key);
+        return null;
+      }
+      return o;
+    }
+  }
+
+  public void putSuccess(String key, String accountId, long requestId, long now)
+  {
+    put(key, new Outcome(accountId, requestId, null, now), now);
+  }
+
+  public void putFailure(String key, String accountId, RuntimeException error, long now)
+  {
+    put(key, new Outcome(accountId, 0, error, now), now);
+  }
+
+  public int size()
+  {
+    int n = 0;
+    for (LinkedHashMap<String, Outcome> segment : segments)
+      synchronized (segment)
+      {
+        n += segment.size();
+      }
+    return n;
+  }
+
+  private void put(String key, Outcome outcome, long now)
+  {
+    LinkedHashMap<String, Outcome> segment = segment(key);
+    synchronized (segment)
+    {
+      Iterator<Outcome> it = segment.values().iterator();
+      for (int i = 0; i < EXPIRESCAN && it.hasNext(); i++)
+        if (now - it.next().storedAt >= ttlMillis)
+          it.remove();
+      segment.put(key, outcome);
+    }
+  }
+
+  private LinkedHashMap<String, Outcome> segment(String key)
+  {
+    int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+  }
+}
@@ -0,0 +1,6 @@
+class InvalidUserAddressException extends RuntimeException { 
+  public InvalidUserAddressException(){}
+  public InvalidUserAddressException(String message) {
+      super(message);
+  } 
+}
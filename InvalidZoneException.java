@@ -0,0 +1,6 @@
+class InvalidZoneException extends RuntimeException {
+  InvalidZoneException(){}
+  public InvalidZoneException(String message){
+    super(message);
+  }
+}
@@ -0,0 +1,172 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *
+ * Takes in driver location pings from any number of threads and hands the latest location of each
+ * driver to the manager, which applies them all in one pass over its drivers.
+ *
+ * Every driver id has one slot (its sequence number, see IdAllocator) in a flat atomic array
+ * holding the block of the driver's latest ping, or 0 when there is none. A ping is a single
+ * atomic write: pings that arrive for the same driver before the next pass simply overwrite each
+ * other, so only the latest one is ever applied and the pass costs the same however many pings
+ * came in. Nothing is allocated or locked on the way in.
+ *
+ * The array starts with room for the drivers the allocator has handed out so far and grows (by
+ * doubling, under a lock) the first time a newer driver pings, so a city with few drivers keeps a
+ * small array. The bigger array is published before the old one is copied into it, so a ping
+ * written to the old array during a grow is either copied or written again to the new one.
+ *
+ * Blocks are packed as x * 16 + y, see block().
+ */
+public class LocationIngest
+{
+  private final IdAllocator ids;
+  private volatile AtomicIntegerArray latest;
+  private final LongAdder received;
+  private final LongAdder rejected;
+  private long applied;    // written by the manager thread only
+  private long coalesced;
+
+  // Address of every block, so applying a ping does not build strings
+  private static final String[] ADDRESSES = new String[(CityMap.MAXSIZE + 1) * 16];
+  static
+  {
+    for (int x = 1; x <= CityMap.MAXSIZE; x++)
+      for (int y = 1; y <= CityMap.MAXSIZE; y++)
+        ADDRESSES[block(x, y)] = CityMap.getAddress(x, y);
+  }
+
+  // Every driver handed out by ids can send pings
+  public LocationIngest(IdAllocator ids)
+  {
+    this.ids = ids;
+    latest = new AtomicIntegerArray((int) Math.max(16, ids.issued()));
+    received = new LongAdder();
+    rejected = new LongAdder();
+  }
+
+  public static int block(int x, int y)
+  {
+    return x << 4 | y;
+  }
+
+  // Address of a packed block, null if it is not one
+  public static String address(int block)
+  {
+    return block > 0 && block < ADDRESSES.length ? ADDRESSES[block] : null;
+  }
+
+  // One ping: driver is on block (x, y). Returns false for an unknown driver id or block
+  public boolean update(long driverId, int x, int y)
+  {
+    long slot = ids.sequence(driverId);
+    AtomicIntegerArray slots = slots(slot);
+    if (slots == null || x < 1 || x > CityMap.MAXSIZE || y < 1 || y > CityMap.MAXSIZE)
+    {
+      rejected.increment();
+      return false;
+    }
+    received.increment();
+    set(slots, (int) slot, block(x, y));
+    return true;
+  }
+
+  // A batch of pings, blocks packed with block(). Returns how many were accepted
+  public int submit(long[] driverIds, int[] blocks, int count)
+  {
+    int accepted = 0;
+    for (int i = 0; i < count; i++)
+    {
+      long slot = ids.sequence(driverIds[i]);
+      int b = blocks[i];
+      AtomicIntegerArray slots = slots(slot);
+      if (slots == null || address(b) == null)
+        continue;
+      set(slots, (int) slot, b);
+      accepted++;
+    }
+    received.add(accepted);
+    rejected.add(count - accepted);
+    return accepted;
+  }
+
+  // Manager side: take the latest block pinged by a driver since the last take, 0 if none
+  int take(long driverId)
+  {
+    long slot = ids.sequence(driverId);
+    AtomicIntegerArray slots = latest;
+    if (slot < 0 || slot >= slots.length() || slots.get((int) slot) == 0)
+      return 0;
+    return slots.getAndSet((int) slot, 0);
+  }
+
+  // The array holding a driver's slot, grown if the driver is newer than it. Null if the
+  // allocator never handed out the slot
+  private AtomicIntegerArray slots(long slot)
+  {
+    AtomicIntegerArray slots = latest;
+    if (slot >= 0 && slot < slots.length())
+      return slots;
+    if (slot < 0 || slot >= ids.issued())
+      return null;
+    return grow(slot);
+  }
+
+  private synchronized AtomicIntegerArray grow(long slot)
+  {
+    AtomicIntegerArray slots = latest;
+    if (slot < slots.length())
+      return slots;
+    AtomicIntegerArray bigger = new AtomicIntegerArray((int) Math.max(slot + 1, 2L * slots.length()));
+    latest = bigger;
+    // Pings already sent to the new array are newer than the ones being copied
+    for (int i = 0; i < slots.length(); i++)
+    {
+      int b = slots.get(i);
+      if (b != 0)
+        bigger.compareAndSet(i, 0, b);
+    }
+    return bigger;
+  }
+
+  private void set(AtomicIntegerArray slots, int slot, int block)
+  {
+    slots.set(slot, block);
+    // A grow that had already copied this slot missed the write
+    while (latest != slots)
+    {
+      slots = latest;
+      slots.set(slot, block);
+    }
+  }
+
+  // Manager side: count one pass that applied n locations
+  void applied(int n)
+  {
+    applied += n;
+    coalesced = received.sum() - applied;
+  }
+
+  public long getReceived()
+  {
+    return received.sum();
+  }
+
+  public long getRejected()
+  {
+    return rejected.sum();
+  }
+
+  public long getApplied()
+  {
+    return applied;
+  }
+
+  // Pings not applied: overwritten by a later ping of the same driver, sent by a driver that was
+  // being moved or already on that block, or still waiting for the next pass
+  public long getCoalesced()
+  {
+    return coalesced;
+  }
+}
@@ -0,0 +1,42 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *
+ * Named counters shared by every city hosted in one process (see CityHost).
+ *
+ * Counters are LongAdders, so cities counting on different threads do not contend. Names are
+ * "<city>.<counter>", e.g. "Toronto.pickups". A counter is looked up once, when a manager is set
+ * up, and then only added to.
+ */
+public class MetricsRegistry
+{
+  private final ConcurrentHashMap<String, LongAdder> counters;
+
+  public MetricsRegistry()
+  {
+    counters = new ConcurrentHashMap<String, LongAdder>();
+  }
+
+  public LongAdder counter(String name)
+  {
+    return counters.computeIfAbsent(name, n -> new LongAdder());
+  }
+
+  // Current value of every counter, sorted by name
+  public Map<String, Long> snapshot()
+  {
+    TreeMap<String, Long> values = new TreeMap<String, Long>();
+    for (Map.Entry<String, LongAdder> e : counters.entrySet())
+      values.put(e.getKey(), e.getValue().sum());
+    return values;
+  }
+
+  public void print()
+  {
+    for (Map.Entry<String, Long> e : snapshot().entrySet())
+      System.out.printf("%-30s %d\n", e.getKey(), e.getValue());
+  }
+}
@@ -0,0 +1,185 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/*
+ *
+ * Driver earnings and payouts.
+ *
+ * Completing a trip only adds the driver's share to that driver's striped counters (LongAdder,
+ * whole cents), which is cheap even with many threads doing it at once. Paying drivers is done
+ * separately in settlement cycles: one parallel pass over the fleet takes every driver's earnings,
+ * works out the payout fee and any adjustments, and the results are written to one settlement
+ * file per cycle (if a directory is set, see setDirectory) before the payouts are credited to
+ * the drivers' wallets. Files are named after the city, so cities hosted together can share
+ * a directory.
+ *
+ * A payout that comes out negative (adjustments larger than earnings) is not paid; it is carried
+ * into the next cycle as an adjustment.
+ */
+public class PayoutEngine
+{
+  // Portion of each payout kept as a processing fee
+  public static final double FEERATE = 0.02;
+
+  // Earnings of one driver. The counters only ever accumulate (a reset could lose a concurrent
+  // add), settlement remembers how much of them it has already paid out
+  private static class Accrual
+  {
+    final LongAdder grossCents = new LongAdder();
+    final LongAdder trips = new LongAdder();
+    final LongAdder adjustmentCents = new LongAdder();
+    long settledGross;
+    long settledTrips;
+    long settledAdjustment;
+  }
+
+  // One driver's line of a settlement
+  public static class Payout
+  {
+    public final String driverId;
+    public final long trips;
+    public final long grossCents;
+    public final long feeCents;
+    public final long adjustmentCents;
+    public final long payoutCents; // gross - fee + adjustments, 0 if that is negative
+
+    Payout(String driverId, long trips, long grossCents, long feeCents, long adjustmentCents, long payoutCents)
+    {
+      this.driverId = driverId;
+      this.trips = trips;
+      this.grossCents = grossCents;
+      this.feeCents = feeCents;
+      this.adjustmentCents = adjustmentCents;
+      this.payoutCents = payoutCents;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Accrual> accruals;
+  private int cycle;
+  private final String city;
+  private String directory; // where settlement files go, null (the default) to not write them
+
+  public PayoutEngine(String city)
+  {
+    this.city = city;
+    accruals = new ConcurrentHashMap<String, Accrual>();
+    cycle = 0;
+    directory = null;
+  }
+
+  public void setDirectory(String directory)
+  {
+    this.directory = directory;
+  }
+
+  public int getCycle()
+  {
+    return cycle;
+  }
+
+  // Trip path: add a driver's share of a completed trip
+  public void accrue(String driverId, double amount)
+  {
+    Accrual a = accruals.computeIfAbsent(driverId, id -> new Accrual());
+    a.grossCents.add(Math.round(amount * 100));
+    a.trips.increment();
+  }
+
+  // Bonus (positive) or correction (negative) applied at the next settlement
+  public void adjust(String driverId, double amount)
+  {
+    accruals.computeIfAbsent(driverId, id -> new Accrual()).adjustmentCents.add(Math.round(amount * 100));
+  }
+
+  // Earnings not settled yet
+  public synchronized double pending(String driverId)
+  {
+    Accrual a = accruals.get(driverId);
+    if (a == null)
+      return 0;
+    return (a.grossCents.sum() - a.settledGross + a.adjustmentCents.sum() - a.settledAdjustment) / 100.0;
+  }
+
+  // Take everything owed to one driver without a fee, e.g. before the driver moves to another shard
+  public synchronized double release(String driverId)
+  {
+    Accrual a = accruals.remove(driverId);
+    if (a == null)
+      return 0;
+    return (a.grossCents.sum() - a.settledGross + a.adjustmentCents.sum() - a.settledAdjustment) / 100.0;
+  }
+
+  // Run one settlement cycle over every driver with earnings or adjustments. Must not run at the
+  // same time as another settlement; trips may keep accruing while it runs and count towards the
+  // next cycle
+  public synchronized List<Payout> settle()
+  {
+    cycle++;
+    List<Payout> payouts = accruals.entrySet().parallelStream()
+        .map(e -> settle(e.getKey(), e.getValue()))
+        .filter(p -> p != null)
+        .sorted((a, b) -> a.driverId.compareTo(b.driverId))
+        .collect(Collectors.toCollection(ArrayList::new));
+    return payouts;
+  }
+
+  private Payout settle(String driverId, Accrual a)
+  {
+    long tripsTotal = a.trips.sum();
+    long grossTotal = a.grossCents.sum();
+    long adjustmentTotal = a.adjustmentCents.sum();
+    long trips = tripsTotal - a.settledTrips;
+    long gross = grossTotal - a.settledGross;
+    long adjustment = adjustmentTotal - a.settledAdjustment;
+    if (trips == 0 && gross == 0 && adjustment == 0)
+      return null;
+    long fee = Math.round(gross * FEERATE);
+    long payout = gross - fee + adjustment;
+    a.settledTrips = tripsTotal;
+    a.settledGross = grossTotal;
+    a.settledAdjustment = adjustmentTotal;
+    if (payout < 0)
+    {
+      a.settledAdjustment -= payout; // still owed back, taken from the next cycle
+      payout = 0;
+    }
+    return new Payout(driverId, trips, gross, fee, adjustment, payout);
+  }
+
+  // Write a cycle's settlement file, settlement-<city>-<cycle>.csv. Returns its name, or null when
+  // files are turned off
+  public String write(List<Payout> payouts) throws IOException
+  {
+    if (directory == null)
+      return null;
+    String name = directory + "/settlement-" + city + "-" + cycle + ".csv";
+    long trips = 0, gross = 0, fees = 0, adjustments = 0, paid = 0;
+    try (PrintWriter out = new PrintWriter(new FileWriter(name)))
+    {
+      out.println("driver,trips,gross,fee,adjustment,payout");
+      for (Payout p : payouts)
+      {
+        out.println(p.driverId + "," + p.trips + "," + cents(p.grossCents) + "," + cents(p.feeCents) + "," +
+                    cents(p.adjustmentCents) + "," + cents(p.payoutCents));
+        trips += p.trips;
+        gross += p.grossCents;
+        fees += p.feeCents;
+        adjustments += p.adjustmentCents;
+        paid += p.payoutCents;
+      }
+      out.println("TOTAL," + trips + "," + cents(gross) + "," + cents(fees) + "," + cents(adjustments) + "," + cents(paid));
+    }
+    return name;
+  }
+
+  static String cents(long cents)
+  {
+    return String.format("%.2f", cents / 100.0);
+  }
+}
@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+
+/*
+ *
+ * Spatial index of pending pooled ride requests.
+ *
+ * Every city block has a bucket holding the pooled rides whose pickup is on that block, so
+ * finding candidates near a pickup only looks at the blocks inside a small radius instead of
+ * scanning every zone queue.
+ */
+public class PendingRideIndex
+{
+  // Blocks are numbered 1..GRIDSIZE in both directions
+  private static final int GRIDSIZE = 9;
+
+  // Bucket of block (x, y) is cells.get(x * (GRIDSIZE + 1) + y)
+  private ArrayList<ArrayList<TMUberRide>> cells;
+  private int size;
+
+  public PendingRideIndex()
+  {
+    cells = new ArrayList<ArrayList<TMUberRide>>((GRIDSIZE + 1) * (GRIDSIZE + 1));
+    for (int i = 0; i < (GRIDSIZE + 1) * (GRIDSIZE + 1); i++)
+      cells.add(new ArrayList<TMUberRide>());
+    size = 0;
+  }
+
+  private ArrayList<TMUberRide> cell(int x, int y)
+  {
+    return cells.get(x * (GRIDSIZE + 1) + y);
+  }
+
+  public void add(TMUberRide ride)
+  {
+    int block = CityMap.parseBlock(ride.getFrom());
+    cell(block >> 4, block & 15).add(ride);
+    size++;
+  }
+
+  // Remove this exact request (not an equal one) from the index
+  public boolean remove(TMUberService ride)
+  {
+    if (!(ride instanceof TMUberRide))
+      return false;
+    int block = CityMap.parseBlock(ride.getFrom());
+    ArrayList<TMUberRide> cell = cell(block >> 4, block & 15);
+    for (int i = 0; i < cell.size(); i++)
+    {
+      if (cell.get(i) == ride)
+      {
+        cell.remove(i);
+        size--;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  // All pending pooled rides with a pickup within radius city blocks of the given block,
+  // closest blocks first
+  public ArrayList<TMUberRide> near(int block, int radius)
+  {
+    int x = block >> 4;
+    int y = block & 15;
+    ArrayList<TMUberRide> found = new ArrayList<TMUberRide>();
+    if (size == 0)
+      return found;
+    for (int d = 0; d <= radius; d++)
+    {
+      // Walk the ring of blocks at exactly distance d
+      for (int dx = -d; dx <= d; dx++)
+      {
+        int dy = d - Math.abs(dx);
+        addCell(found, x + dx, y + dy);
+        if (dy != 0)
+          addCell(found, x + dx, y - dy);
+      }
+    }
+    return found;
+  }
+
+  private void addCell(ArrayList<TMUberRide> found, int x, int y)
+  {
+    if (x < 1 || x > GRIDSIZE || y < 1 || y > GRIDSIZE)
+      return;
+    found.addAll(cell(x, y));
+  }
+}
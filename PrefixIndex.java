@@ -0,0 +1,285 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ *
+ * Finds values by a prefix of their key (a name or a licence plate), ignoring case, in key order.
+ *
+ * The index is a ternary search tree kept in flat int arrays, one slot per node, so millions of
+ * keys cost a few arrays and no objects per node; keys sharing a prefix share its nodes. Values
+ * hang off the node of the last character of their key, in a linked list of postings (values with
+ * the same key stay in the order they were added).
+ *
+ * Every node also counts the values in its subtree. Counting the matches of a prefix is one walk
+ * down the prefix, and a page deep into the matches skips whole subtrees by their count instead of
+ * visiting every match before it. Adding and removing a key walk its path once.
+ */
+public class PrefixIndex<T>
+{
+  private static final int NONE = -1;
+
+  // Nodes
+  private char[] ch;
+  private int[] lo;
+  private int[] eq;
+  private int[] hi;
+  private int[] count;      // values in the subtree: lo, this node, eq and hi
+  private int[] first;      // first posting of the key ending at this node
+  private int nodes;
+  private int root;
+
+  // Postings
+  private Object[] values;
+  private int[] next;
+  private int postings;
+  private int free;         // removed postings, linked through next
+
+  public PrefixIndex()
+  {
+    ch = new char[64];
+    lo = new int[64];
+    eq = new int[64];
+    hi = new int[64];
+    count = new int[64];
+    first = new int[64];
+    values = new Object[64];
+    next = new int[64];
+    root = NONE;
+    free = NONE;
+  }
+
+  // Number of values indexed
+  public int size()
+  {
+    return root == NONE ? 0 : count[root];
+  }
+
+  public void add(String key, T value)
+  {
+    if (key == null || key.isEmpty())
+      return;
+    if (root == NONE)
+      root = newNode(lower(key, 0));
+    int n = root;
+    int i = 0;
+    while (true)
+    {
+      count[n]++;
+      char c = lower(key, i);
+      if (c < ch[n])
+      {
+        if (lo[n] == NONE)
+        {
+          int child = newNode(c);   // grows the arrays: not inline in the store
+          lo[n] = child;
+        }
+        n = lo[n];
+      }
+      else if (c > ch[n])
+      {
+        if (hi[n] == NONE)
+        {
+          int child = newNode(c);   // grows the arrays: not inline in the store
+          hi[n] = child;
+        }
+        n = hi[n];
+      }
+      else if (++i < key.length())
+      {
+        if (eq[n] == NONE)
+        {
+          int child = newNode(lower(key, i));   // grows the arrays: not inline in the store
+          eq[n] = child;
+        }
+        n = eq[n];
+      }
+      else
+        break;
+    }
+    // Append to the key's postings
+    int p = newPosting(value);
+    if (first[n] == NONE)
+      first[n] = p;
+    else
+    {
+      int last = first[n];
+      while (next[last] != NONE)
+        last = next[last];
+      next[last] = p;
+    }
+  }
+
+  // Remove a value (the same object, not an equal one) added under key. Returns false if it was not there
+  public boolean remove(String key, T value)
+  {
+    if (key == null || key.isEmpty())
+      return false;
+    int n = last(key);
+    if (n == NONE)
+      return false;
+    int prev = NONE;
+    int p = first[n];
+    while (p != NONE && values[p] != value)
+    {
+      prev = p;
+      p = next[p];
+    }
+    if (p == NONE)
+      return false;
+    if (prev == NONE)
+      first[n] = next[p];
+    else
+      next[prev] = next[p];
+    values[p] = null;
+    next[p] = free;
+    free = p;
+    // Take the value off the counts along the key's path
+    int m = root;
+    int i = 0;
+    while (true)
+    {
+      count[m]--;
+      char c = lower(key, i);
+      if (c < ch[m])
+        m = lo[m];
+      else if (c > ch[m])
+        m = hi[m];
+      else if (++i < key.length())
+        m = eq[m];
+      else
+        break;
+    }
+    return true;
+  }
+
+  // Number of values whose key starts with prefix
+  public int count(String prefix)
+  {
+    if (prefix == null || prefix.isEmpty())
+      return size();
+    int n = last(prefix);
+    if (n == NONE)
+      return 0;
+    return postingsAt(n) + (eq[n] == NONE ? 0 : count[eq[n]]);
+  }
+
+  // Up to limit values whose key starts with prefix, in key order, skipping the first offset
+  public List<T> search(String prefix, int offset, int limit)
+  {
+    ArrayList<T> page = new ArrayList<T>(Math.max(0, Math.min(limit, 64)));
+    if (offset < 0 || limit <= 0)
+      return page;
+    if (prefix == null || prefix.isEmpty())
+    {
+      collect(root, offset, limit, page);
+      return page;
+    }
+    int n = last(prefix);
+    if (n == NONE)
+      return page;
+    // The prefix itself is a key: its values come before every longer key
+    offset = collectPostings(n, offset, limit, page);
+    collect(eq[n], offset, limit, page);
+    return page;
+  }
+
+  // In order walk of a subtree: lo, the key ending here, eq, hi. Returns what is left of offset
+  private int collect(int n, int offset, int limit, List<T> page)
+  {
+    if (n == NONE || page.size() >= limit)
+      return offset;
+    if (offset >= count[n])
+      return offset - count[n];
+    offset = collect(lo[n], offset, limit, page);
+    offset = collectPostings(n, offset, limit, page);
+    offset = collect(eq[n], offset, limit, page);
+    return collect(hi[n], offset, limit, page);
+  }
+
+  @SuppressWarnings("unchecked")
+  private int collectPostings(int n, int offset, int limit, List<T> page)
+  {
+    for (int p = first[n]; p != NONE && page.size() < limit; p = next[p])
+    {
+      if (offset > 0)
+        offset--;
+      else
+        page.add((T) values[p]);
+    }
+    return offset;
+  }
+
+  private int postingsAt(int n)
+  {
+    int k = 0;
+    for (int p = first[n]; p != NONE; p = next[p])
+      k++;
+    return k;
+  }
+
+  // Node of the last character of key, NONE if no key starts with it
+  private int last(String key)
+  {
+    int n = root;
+    int i = 0;
+    while (n != NONE)
+    {
+      char c = lower(key, i);
+      if (c < ch[n])
+        n = lo[n];
+      else if (c > ch[n])
+        n = hi[n];
+      else if (++i < key.length())
+        n = eq[n];
+      else
+        return n;
+    }
+    return NONE;
+  }
+
+  private static char lower(String key, int i)
+  {
+    return Character.toLowerCase(key.charAt(i));
+  }
+
+  private int newNode(char c)
+  {
+    if (nodes == ch.length)
+    {
+      int size = nodes * 2;
+      ch = Arrays.copyOf(ch, size);
+      lo = Arrays.copyOf(lo, size);
+      eq = Arrays.copyOf(eq, size);
+      hi = Arrays.copyOf(hi, size);
+      count = Arrays.copyOf(count, size);
+      first = Arrays.copyOf(first, size);
+    }
+    ch[nodes] = c;
+    lo[nodes] = NONE;
+    eq[nodes] = NONE;
+    hi[nodes] = NONE;
+    count[nodes] = 0;
+    first[nodes] = NONE;
+    return nodes++;
+  }
+
+  private int newPosting(Object value)
+  {
+    int p = free;
+    if (p != NONE)
+      free = next[p];
+    else
+    {
+      if (postings == values.length)
+      {
+        values = Arrays.copyOf(values, postings * 2);
+        next = Arrays.copyOf(next, postings * 2);
+      }
+      p = postings++;
+    }
+    values[p] = value;
+    next[p] = NONE;
+    return p;
+  }
+}
@@ -0,0 +1,203 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+/*
+ *
+ * Replica side of replication. Follows a primary's ReplicationPublisher, applies its mutation
+ * stream to a local TMUberSystemManager in batches and reports how far behind it is.
+ *
+ * If the primary stops sending (no entries and no heartbeat for FAILOVERMILLIS) the replica
+ * promotes itself: its manager starts running timers and movement again and onPromote is run
+ * so the owner can start accepting requests. A replica the primary no longer keeps the log for
+ * (BEHIND) stops following without promoting, as the primary is still alive.
+ */
+public class ReplicaNode
+{
+  // Silence from the primary that triggers failover
+  public static final int FAILOVERMILLIS = 500;
+  // Most entries applied under one lock
+  private static final int MAXBATCH = 256;
+
+  private final TMUberSystemManager tmuber;
+  private volatile long applied = 0;
+  private volatile long head = 0;
+  private volatile boolean promoted = false;
+
+  public ReplicaNode(TMUberSystemManager tmuber)
+  {
+    this.tmuber = tmuber;
+    tmuber.setReplica(true);
+  }
+
+  // Mutations the primary has made that this replica has not applied yet
+  public long getLag()
+  {
+    return Math.max(0, head - applied);
+  }
+
+  public long getApplied()
+  {
+    return applied;
+  }
+
+  public boolean isPromoted()
+  {
+    return promoted;
+  }
+
+  // Follow the primary until it fails, then promote. Blocks the calling thread
+  public void follow(int primaryPort, Runnable onPromote)
+  {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), primaryPort);
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+         PrintWriter out = new PrintWriter(socket.getOutputStream(), true))
+    {
+      socket.setSoTimeout(FAILOVERMILLIS);
+      out.println("FROM" + ZoneShard.SEP + applied);
+      String[][] batch = new String[MAXBATCH][];
+      while (true)
+      {
+        String line = in.readLine();
+        if (line == null)
+          break;
+        // Gather whatever else has already arrived into the same batch
+        int n = 0;
+        while (line != null)
+        {
+          String[] f = line.split("\\" + ZoneShard.SEP, -1);
+          if (f[0].equals("BEHIND"))
+          {
+            System.out.println("Replica Too Far Behind Primary: Needs Mutation #" + (applied + 1) +
+                               ", Oldest Kept Is #" + (Long.parseLong(f[1]) + 1));
+            return;
+          }
+          if (f[0].equals("HB"))
+            head = Math.max(head, Long.parseLong(f[1]));
+          else
+            batch[n++] = f;
+          line = n < MAXBATCH && in.ready() ? in.readLine() : null;
+        }
+        if (n > 0)
+        {
+          applyBatch(batch, n);
+          out.println("ACK" + ZoneShard.SEP + applied);
+        }
+      }
+    }
+    catch (SocketTimeoutException e)
+    {
+      // Primary is silent: fail over
+    }
+    catch (IOException e)
+    {
+      // Primary is gone: fail over
+    }
+    promote();
+    if (onPromote != null)
+      onPromote.run();
+  }
+
+  private void applyBatch(String[][] batch, int n)
+  {
+    synchronized (tmuber)
+    {
+      for (int i = 0; i < n; i++)
+      {
+        long seq = Long.parseLong(batch[i][0]);
+        if (seq <= applied)
+          continue; // already have it
+        try
+        {
+          apply(tmuber, batch[i], 1);
+        }
+        catch (RuntimeException e)
+        {
+          // The primary accepted it so this should not happen, report and keep going
+          System.out.println("Replica Could Not Apply #" + seq + ": " + e.getMessage());
+        }
+        applied = seq;
+        head = Math.max(head, seq);
+      }
+      tmuber.publishSnapshot();
+    }
+  }
+
+  // Stop following and act as the primary
+  public void promote()
+  {
+    synchronized (tmuber)
+    {
+      tmuber.setReplica(false);
+      promoted = true;
+    }
+  }
+
+  // Apply one mutation (fields from start on) to a manager
+  static void apply(TMUberSystemManager m, String[] f, int start)
+  {
+    String cmd = f[start];
+    String[] a = Arrays.copyOfRange(f, start, f.length);
+    if (cmd.equals("ADDUSER"))
+      m.addUser(new User(a[1], a[2], a[3], Double.parseDouble(a[4])));
+    else if (cmd.equals("ADDDRIVER"))
+      m.addDriver(ZoneShard.decodeDriver(a, 1));
+    else if (cmd.equals("REMOVEDRIVER"))
+      m.removeDriver(a[1]);
+    else if (cmd.equals("XL"))
+      m.setDriverXL(a[1], Boolean.parseBoolean(a[2]));
+    else if (cmd.equals("REQRIDE"))
+    {
+      // REQRIDE|account|from|to|passengers|xl|pooled|cost|surge|time
+      User user = m.getUser(a[1]);
+      if (user == null)
+        throw new UserNotFoundException("User Account Not Found " + a[1]);
+      TMUberRide ride = new TMUberRide(a[2], a[3], user, CityMap.getDistance(a[2], a[3]), Double.parseDouble(a[7]));
+      ride.setNumPassengers(Integer.parseInt(a[4]));
+      ride.setRequestedXL(Boolean.parseBoolean(a[5]));
+      ride.setPooled(Boolean.parseBoolean(a[6]));
+      ride.setSurge(Double.parseDouble(a[8]));
+      m.replay(ride, Long.parseLong(a[9]));
+    }
+    else if (cmd.equals("REQDLVY"))
+    {
+      // REQDLVY|account|from|to|restaurant|order|cost|surge|time
+      User user = m.getUser(a[1]);
+      if (user == null)
+        throw new UserNotFoundException("User Account Not Found " + a[1]);
+      TMUberDelivery delivery = new TMUberDelivery(a[2], a[3], user, CityMap.getDistance(a[2], a[3]),
+                                                   Double.parseDouble(a[6]), a[4], a[5]);
+      delivery.setSurge(Double.parseDouble(a[7]));
+      m.replay(delivery, Long.parseLong(a[8]));
+    }
+    else if (cmd.equals("PICKUP"))
+      m.pickupAt(a[1], Integer.parseInt(a[2]), Integer.parseInt(a[3]));
+    else if (cmd.equals("DROPOFF"))
+      m.dropOff(a[1]);
+    else if (cmd.equals("CANCEL"))
+      m.cancelServiceRequest(Integer.parseInt(a[1]), Integer.parseInt(a[2]));
+    else if (cmd.equals("ESCALATE"))
+      m.escalateAt(Integer.parseInt(a[1]), Integer.parseInt(a[2]));
+    else if (cmd.equals("EXPIRE"))
+      m.expireAt(Integer.parseInt(a[1]), Integer.parseInt(a[2]));
+    else if (cmd.equals("PLACE"))
+      m.placeDriver(a[1], a[2]);
+    else if (cmd.equals("SETTLE"))
+      m.settlePayouts();
+    else if (cmd.equals("ADJUST"))
+      m.adjustDriverPay(a[1], Double.parseDouble(a[2]));
+    else if (cmd.equals("SETWALLET"))
+      m.syncWallet(a[1], Double.parseDouble(a[2]));
+    else if (cmd.equals("IDEMKEY"))
+      m.rememberKey(a[1], a[2], Long.parseLong(a[3]));
+    else if (cmd.equals("TRAVELTIME"))
+      m.setTravelTime(a[1], a[2], Integer.parseInt(a[3]));
+    else
+      throw new IllegalArgumentException("Unknown Mutation " + cmd);
+  }
+}
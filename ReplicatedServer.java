@@ -0,0 +1,71 @@
+import java.io.IOException;
+
+/*
+ *
+ * Runs a TMUberSystemManager as a primary or as a hot standby replica.
+ *
+ * Both serve the ZoneShard request protocol on a command port. The replica's command port is
+ * read only until it promotes itself after the primary fails. Every node also republishes its
+ * mutation stream, so after failover further replicas can follow the new primary.
+ *
+ * Usage:
+ *   java ReplicatedServer primary <commandPort> <replicationPort>
+ *   java ReplicatedServer replica <commandPort> <replicationPort> <primaryReplicationPort>
+ */
+public class ReplicatedServer
+{
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 3 || (args[0].equals("replica") && args.length < 4))
+    {
+      System.out.println("Usage: java ReplicatedServer primary <commandPort> <replicationPort>");
+      System.out.println("       java ReplicatedServer replica <commandPort> <replicationPort> <primaryReplicationPort>");
+      return;
+    }
+    int commandPort = Integer.parseInt(args[1]);
+    int replicationPort = Integer.parseInt(args[2]);
+
+    TMUberSystemManager tmuber = new TMUberSystemManager();
+    tmuber.setAdmissionControl(true);
+    ReplicationPublisher publisher = new ReplicationPublisher();
+    tmuber.setMutationListener(publisher);
+    publisher.start(replicationPort);
+
+    // One server owns every zone
+    int[] zones = new int[tmuber.getCity().getNumZones()];
+    for (int zone = 0; zone < zones.length; zone++)
+      zones[zone] = zone;
+    ZoneShard server = new ZoneShard(tmuber, zones);
+    if (args[0].equals("replica"))
+    {
+      int primaryPort = Integer.parseInt(args[3]);
+      ReplicaNode replica = new ReplicaNode(tmuber);
+      server.setReadOnly(true);
+      Thread follower = new Thread(() -> replica.follow(primaryPort, () -> {
+        server.setReadOnly(false);
+        System.out.println("Promoted to Primary at Mutation #" + replica.getApplied());
+      }));
+      follower.setDaemon(true);
+      follower.start();
+
+      // Report lag once a second while following
+      Thread lag = new Thread(() -> {
+        while (!replica.isPromoted())
+        {
+          System.out.println("Replica Lag: " + replica.getLag() + " Applied: " + replica.getApplied());
+          try
+          {
+            Thread.sleep(1000);
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+        }
+      });
+      lag.setDaemon(true);
+      lag.start();
+    }
+    server.serve(commandPort);
+  }
+}
@@ -0,0 +1,186 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ *
+ * Primary side of replication. Records the ordered stream of mutations made by a
+ * TMUberSystemManager and streams it over TCP to any number of hot standby replicas.
+ *
+ * Wire format, one line each:
+ *   primary -> replica: "<seq>|<mutation fields>"   or   "HB|<head seq>" when idle
+ *                       "BEHIND|<oldest kept seq>" if the replica asks for entries already dropped
+ *   replica -> primary: "FROM|<last applied seq>" once, then "ACK|<applied seq>" after each batch
+ *
+ * Only the tail of the stream is kept in memory: entries every connected replica has acknowledged
+ * are dropped once more than RETAIN newer ones exist. A replica that starts or reconnects within
+ * the last RETAIN mutations catches up from the log, one further behind is told BEHIND.
+ */
+public class ReplicationPublisher implements TMUberSystemManager.MutationListener
+{
+  // Idle replicas get a heartbeat this often so they can tell the primary is alive
+  public static final long HEARTBEATMILLIS = 100;
+  // Acknowledged mutations kept for replicas that start late or reconnect
+  public static final int RETAIN = 65536;
+  // Entries dropped at once, so trimming the front of the log is paid for rarely
+  private static final int TRIMCHUNK = 4096;
+
+  private final ArrayList<String> log;             // entry i has sequence number base + i + 1
+  private final Map<String, Long> acked;           // last sequence acknowledged by each replica
+  private long base = 0;                           // mutations dropped from the front of the log
+
+  public ReplicationPublisher()
+  {
+    log = new ArrayList<String>();
+    acked = new ConcurrentHashMap<String, Long>();
+  }
+
+  // Called by the manager for every change, in order
+  public synchronized void mutation(String[] fields)
+  {
+    log.add(String.join(ZoneShard.SEP, fields));
+    if (log.size() >= RETAIN + TRIMCHUNK)
+      trim();
+    notifyAll();
+  }
+
+  // Drop the entries older than the last RETAIN that every connected replica has acknowledged
+  private void trim()
+  {
+    long keep = head() - RETAIN;
+    for (long seq : acked.values())
+      keep = Math.min(keep, seq);
+    if (keep - base >= TRIMCHUNK)
+    {
+      log.subList(0, (int) (keep - base)).clear();
+      base = keep;
+    }
+  }
+
+  // Sequence number of the newest mutation
+  public synchronized long head()
+  {
+    return base + log.size();
+  }
+
+  // Sequence number of the oldest mutation still kept, less one
+  public synchronized long base()
+  {
+    return base;
+  }
+
+  // How many mutations each connected replica still has to apply
+  public Map<String, Long> replicaLag()
+  {
+    Map<String, Long> lag = new TreeMap<String, Long>();
+    long head = head();
+    for (Map.Entry<String, Long> e : acked.entrySet())
+      lag.put(e.getKey(), head - e.getValue());
+    return lag;
+  }
+
+  // Accept replicas on a loopback port in the background
+  public void start(int port) throws IOException
+  {
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    Thread t = new Thread(() -> {
+      while (true)
+      {
+        try
+        {
+          Socket socket = server.accept();
+          Thread sender = new Thread(() -> serve(socket));
+          sender.setDaemon(true);
+          sender.start();
+        }
+        catch (IOException e)
+        {
+          return;
+        }
+      }
+    });
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // Stream the log to one replica, sending everything new in one batch per wake up
+  private void serve(Socket socket)
+  {
+    String name = socket.getRemoteSocketAddress().toString();
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+         PrintWriter out = new PrintWriter(s.getOutputStream(), false))
+    {
+      String[] hello = in.readLine().split("\\" + ZoneShard.SEP);
+      long sent = Long.parseLong(hello[1]);
+      long oldest;
+      synchronized (this)
+      {
+        // Registered under the lock so a trim cannot drop what this replica still needs
+        oldest = base;
+        if (sent >= oldest)
+          acked.put(name, sent);
+      }
+      if (sent < oldest)
+      {
+        out.println("BEHIND" + ZoneShard.SEP + oldest);
+        out.flush();
+        return;
+      }
+
+      // Acknowledgements come back on the same socket
+      Thread reader = new Thread(() -> {
+        try
+        {
+          String line;
+          while ((line = in.readLine()) != null)
+          {
+            String[] f = line.split("\\" + ZoneShard.SEP);
+            if (f[0].equals("ACK"))
+              acked.put(name, Long.parseLong(f[1]));
+          }
+        }
+        catch (IOException e)
+        {
+          // replica went away
+        }
+      });
+      reader.setDaemon(true);
+      reader.start();
+
+      while (!out.checkError())
+      {
+        String[] batch;
+        long head;
+        synchronized (this)
+        {
+          if (head() == sent)
+            wait(HEARTBEATMILLIS);
+          head = head();
+          batch = log.subList((int) (sent - base), (int) (head - base)).toArray(new String[0]);
+        }
+        if (batch.length == 0)
+          out.println("HB" + ZoneShard.SEP + head);
+        for (String entry : batch)
+          out.println(++sent + ZoneShard.SEP + entry);
+        out.flush();
+      }
+    }
+    catch (IOException | InterruptedException | RuntimeException e)
+    {
+      // replica went away or sent garbage
+    }
+    finally
+    {
+      acked.remove(name);
+    }
+  }
+}
@@ -0,0 +1,432 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ *
+ * Compact binary format for ride and delivery requests, shared by journals, replication,
+ * network intake and replay files.
+ *
+ * Every record starts with a fixed 7 byte header followed by varints:
+ *   byte   kind         RIDE or DELIVERY
+ *   byte   flags        XL, POOLED, PRICED, NAMEDORDER
+ *   byte   passengers   0 for deliveries
+ *   short  from         packed address, see packAddress()
+ *   short  to
+ *   varint account id
+ *   delivery:  varint restaurant (id << 1, | 1 when the name follows), [varint length, UTF-8 name]
+ *              varint order number, or varint length + UTF-8 order id if NAMEDORDER
+ *   priced:    varint cost in cents, 8 byte surge, varint request time (ms)
+ *
+ * Restaurant names are interned per stream: the first record of a restaurant carries its name and
+ * later ones only its id, so a decoder must read the records of one encoder in order.
+ *
+ * Encoding writes straight into the caller's buffer and decoding reads straight out of it into a
+ * reusable Record; addresses decode to shared strings, so neither side copies or allocates per
+ * record apart from new restaurant names and non numeric order ids.
+ */
+public class RequestCodec
+{
+  public static final byte RIDE = 1;
+  public static final byte DELIVERY = 2;
+
+  private static final int XL = 1;
+  private static final int POOLED = 2;
+  private static final int PRICED = 4;
+  private static final int NAMEDORDER = 8;
+
+  // Longest restaurant name or order id in UTF-8 bytes
+  public static final int MAXNAME = 255;
+  // Upper bound on the size of one record, so writers know when to flush
+  public static final int MAXRECORD = 7 + 10 + 2 * (5 + MAXNAME) + 10 + 8 + 10;
+
+  // Decoded addresses, indexed by packed address
+  private static final String[] ADDRESSES = new String[1 << 13];
+
+  // A decoded request. Reused from record to record
+  public static class Record
+  {
+    public byte kind;
+    public boolean xl;
+    public boolean pooled;
+    public boolean priced;
+    public int passengers;
+    public String from;
+    public String to;
+    public long account;
+    public String restaurant;
+    public long orderNumber;  // order id when it is numeric
+    public String orderName;  // otherwise
+    public long costCents;
+    public double surge;
+    public long requestTime;
+
+    public String getAccountId()
+    {
+      return String.valueOf(account);
+    }
+
+    public String getFoodOrderId()
+    {
+      return orderName != null ? orderName : String.valueOf(orderNumber);
+    }
+
+    public double getCost()
+    {
+      return costCents / 100.0;
+    }
+  }
+
+  private final HashMap<String, Integer> restaurantIds; // encoder side
+  private final ArrayList<String> restaurants;          // decoder side
+  private String defined; // restaurant first named by the record being encoded
+
+  public RequestCodec()
+  {
+    restaurantIds = new HashMap<String, Integer>();
+    restaurants = new ArrayList<String>();
+  }
+
+  // Addresses
+
+  // "34 5th Street" -> residence number (7 bits), ordinal (4 bits), avenue bit, lower case bit.
+  // The exact capitalisation is only kept for "Street"/"street" and "Avenue"/"avenue"
+  public static int packAddress(String address)
+  {
+    if (CityMap.parseBlock(address) < 0)
+      throw new IllegalArgumentException("Invalid Address " + address);
+    // parseBlock has checked the layout, so the parts are read in place without allocating:
+    // two digit number, ordinal (3 characters), street or avenue
+    int i = CityMap.skipSpace(address, 0);
+    int number = Character.digit(address.charAt(i), 10) * 10 + Character.digit(address.charAt(i + 1), 10);
+    i = CityMap.skipSpace(address, i + 2);
+    int ordinal = Character.digit(address.charAt(i), 10);
+    i = CityMap.skipSpace(address, i + 3);
+    boolean avenue = address.regionMatches(true, i, "avenue", 0, 6);
+    boolean lower = Character.isLowerCase(address.charAt(i));
+    return number << 6 | ordinal << 2 | (avenue ? 2 : 0) | (lower ? 1 : 0);
+  }
+
+  public static String unpackAddress(int packed)
+  {
+    packed &= ADDRESSES.length - 1;
+    String address = ADDRESSES[packed];
+    if (address == null)
+    {
+      int number = packed >>> 6;
+      int ordinal = (packed >>> 2) & 15;
+      if (number < 10 || ordinal < 1 || ordinal > 9)
+        throw new IllegalArgumentException("Invalid Packed Address " + packed);
+      String suffix = "th";
+      if (ordinal == 1) suffix = "st";
+      else if (ordinal == 2) suffix = "nd";
+      else if (ordinal == 3) suffix = "rd";
+      String type = (packed & 2) != 0 ? "Avenue" : "Street";
+      if ((packed & 1) != 0)
+        type = type.toLowerCase();
+      address = number + " " + ordinal + suffix + " " + type;
+      ADDRESSES[packed] = address; // strings are immutable so racing threads just build the same one
+    }
+    return address;
+  }
+
+  // Encoding
+
+  // Encode a request. Priced records also carry the quoted cost, surge and request time.
+  // A request that cannot be encoded leaves the buffer as it was
+  public void encode(TMUberService req, boolean priced, ByteBuffer out)
+  {
+    int start = out.position();
+    try
+    {
+      write(req, priced, out);
+    }
+    catch (RuntimeException e)
+    {
+      undo(out, start);
+      throw e;
+    }
+  }
+
+  // Encode a record, e.g. one read from another format
+  public void encode(Record r, ByteBuffer out)
+  {
+    int start = out.position();
+    try
+    {
+      write(r, out);
+    }
+    catch (RuntimeException e)
+    {
+      undo(out, start);
+      throw e;
+    }
+  }
+
+  // Drop a partly written record, and the restaurant it defined so the ids stay in step
+  private void undo(ByteBuffer out, int start)
+  {
+    out.position(start);
+    if (defined != null)
+      restaurantIds.remove(defined);
+    defined = null;
+  }
+
+  private void write(TMUberService req, boolean priced, ByteBuffer out)
+  {
+    defined = null;
+    boolean ride = req instanceof TMUberRide;
+    int flags = priced ? PRICED : 0;
+    int passengers = 0;
+    String order = null;
+    if (ride)
+    {
+      TMUberRide r = (TMUberRide) req;
+      flags |= (r.isRequestedXL() ? XL : 0) | (r.isPooled() ? POOLED : 0);
+      passengers = r.getNumPassengers();
+    }
+    else
+    {
+      order = ((TMUberDelivery) req).getFoodOrderId();
+      if (!isNumber(order))
+        flags |= NAMEDORDER;
+    }
+    writeHeader(out, ride ? RIDE : DELIVERY, flags, passengers, req.getFrom(), req.getTo(),
+                req.getUser().getAccountNumber());
+    if (!ride)
+      writeDelivery(out, ((TMUberDelivery) req).getRestaurant(), order, flags);
+    if (priced)
+      writePrice(out, Math.round(req.getCost() * 100), req.getSurge(), req.getRequestTime());
+  }
+
+  private void write(Record r, ByteBuffer out)
+  {
+    defined = null;
+    int flags = (r.xl ? XL : 0) | (r.pooled ? POOLED : 0) | (r.priced ? PRICED : 0);
+    if (r.kind == DELIVERY && r.orderName != null)
+      flags |= NAMEDORDER;
+    writeHeader(out, r.kind, flags, r.passengers, r.from, r.to, r.account);
+    if (r.kind == DELIVERY)
+      writeDelivery(out, r.restaurant, r.getFoodOrderId(), flags);
+    if (r.priced)
+      writePrice(out, r.costCents, r.surge, r.requestTime);
+  }
+
+  private void writeHeader(ByteBuffer out, byte kind, int flags, int passengers, String from, String to, long account)
+  {
+    if (passengers < 0 || passengers > 255)
+      throw new IllegalArgumentException("Invalid Number of Passengers " + passengers);
+    out.put(kind);
+    out.put((byte) flags);
+    out.put((byte) passengers);
+    out.putShort((short) packAddress(from));
+    out.putShort((short) packAddress(to));
+    putVarLong(out, account);
+  }
+
+  private void writeDelivery(ByteBuffer out, String restaurant, String order, int flags)
+  {
+    Integer id = restaurantIds.get(restaurant);
+    if (id != null)
+      putVarLong(out, (long) id << 1);
+    else
+    {
+      id = restaurantIds.size();
+      putVarLong(out, (long) id << 1 | 1);
+      putName(out, restaurant);
+      restaurantIds.put(restaurant, id);
+      defined = restaurant;
+    }
+    if ((flags & NAMEDORDER) != 0)
+      putName(out, order);
+    else
+      putVarLong(out, Long.parseLong(order));
+  }
+
+  private static void writePrice(ByteBuffer out, long costCents, double surge, long requestTime)
+  {
+    putVarLong(out, costCents);
+    out.putDouble(surge);
+    putVarLong(out, requestTime);
+  }
+
+  // Decoding
+
+  // Decode the next record into r. Returns false, leaving the buffer where it was, when the
+  // buffer does not hold a whole record yet
+  public boolean decode(ByteBuffer in, Record r)
+  {
+    int start = in.position();
+    int known = restaurants.size();
+    try
+    {
+      r.kind = in.get();
+      if (r.kind != RIDE && r.kind != DELIVERY)
+        throw new IllegalArgumentException("Invalid Record Type " + r.kind);
+      int flags = in.get();
+      r.xl = (flags & XL) != 0;
+      r.pooled = (flags & POOLED) != 0;
+      r.priced = (flags & PRICED) != 0;
+      r.passengers = in.get() & 0xff;
+      r.from = unpackAddress(in.getShort());
+      r.to = unpackAddress(in.getShort());
+      r.account = getVarLong(in);
+      r.restaurant = null;
+      r.orderName = null;
+      r.orderNumber = 0;
+      if (r.kind == DELIVERY)
+      {
+        long id = getVarLong(in);
+        if ((id & 1) != 0)
+          restaurants.add(getName(in));
+        if ((id >>> 1) >= restaurants.size())
+          throw new IllegalArgumentException("Unknown Restaurant #" + (id >>> 1));
+        r.restaurant = restaurants.get((int) (id >>> 1));
+        if ((flags & NAMEDORDER) != 0)
+          r.orderName = getName(in);
+        else
+          r.orderNumber = getVarLong(in);
+      }
+      r.costCents = 0;
+      r.surge = 1.0;
+      r.requestTime = 0;
+      if (r.priced)
+      {
+        r.costCents = getVarLong(in);
+        r.surge = in.getDouble();
+        r.requestTime = getVarLong(in);
+      }
+      return true;
+    }
+    catch (BufferUnderflowException e)
+    {
+      // Partial record: forget any restaurant it defined and try again when more has arrived
+      while (restaurants.size() > known)
+        restaurants.remove(restaurants.size() - 1);
+      in.position(start);
+      return false;
+    }
+  }
+
+  // Build the service a record describes for a user
+  public static TMUberService toService(Record r, User user)
+  {
+    int distance = CityMap.getDistance(r.from, r.to);
+    TMUberService req;
+    if (r.kind == RIDE)
+    {
+      TMUberRide ride = new TMUberRide(r.from, r.to, user, distance, r.getCost());
+      ride.setNumPassengers(r.passengers);
+      ride.setRequestedXL(r.xl);
+      ride.setPooled(r.pooled);
+      req = ride;
+    }
+    else
+      req = new TMUberDelivery(r.from, r.to, user, distance, r.getCost(), r.restaurant, r.getFoodOrderId());
+    req.setSurge(r.surge);
+    return req;
+  }
+
+  // Run every record in a buffer through a manager: priced records are replayed as quoted, the
+  // others are requested (and priced) like requests typed at the UI. Returns the number accepted
+  public int apply(ByteBuffer in, TMUberSystemManager tmuber)
+  {
+    Record r = new Record();
+    int accepted = 0;
+    int n = 0;
+    while (in.hasRemaining())
+    {
+      if (!decode(in, r))
+        throw new IllegalArgumentException("Truncated Record at Byte " + in.position());
+      n++;
+      try
+      {
+        if (r.priced)
+        {
+          User user = tmuber.getUser(r.account);
+          if (user == null)
+            throw new UserNotFoundException("User Account Not Found " + r.getAccountId());
+          tmuber.replay(toService(r, user), r.requestTime);
+        }
+        else if (r.kind == RIDE)
+          tmuber.requestRide(r.getAccountId(), r.from, r.to, Math.max(1, r.passengers), r.xl, r.pooled);
+        else
+          tmuber.requestDelivery(r.getAccountId(), r.from, r.to, r.restaurant, r.getFoodOrderId());
+        accepted++;
+      }
+      catch (RuntimeException e)
+      {
+        System.out.println("Record #" + n + ": " + e.getMessage());
+      }
+    }
+    return accepted;
+  }
+
+  // Primitive encodings
+
+  static void putVarLong(ByteBuffer out, long v)
+  {
+    if (v < 0)
+      throw new IllegalArgumentException("Negative Value " + v);
+    while ((v & ~0x7FL) != 0)
+    {
+      out.put((byte) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.put((byte) v);
+  }
+
+  static long getVarLong(ByteBuffer in)
+  {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      byte b = in.get();
+      v |= (long) (b & 0x7F) << shift;
+      if (b >= 0)
+        return v;
+    }
+    throw new IllegalArgumentException("Malformed Varint");
+  }
+
+  private static void putName(ByteBuffer out, String name)
+  {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAXNAME)
+      throw new IllegalArgumentException("Name Too Long " + name);
+    putVarLong(out, bytes.length);
+    out.put(bytes);
+  }
+
+  private static String getName(ByteBuffer in)
+  {
+    int length = (int) getVarLong(in);
+    if (length > MAXNAME)
+      throw new IllegalArgumentException("Name Too Long");
+    if (in.remaining() < length)
+      throw new BufferUnderflowException();
+    if (in.hasArray())
+    {
+      String name = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+      in.position(in.position() + length);
+      return name;
+    }
+    // Direct or mapped buffer
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Digits only, without leading zeros, so it survives a round trip through a number
+  private static boolean isNumber(String s)
+  {
+    if (s == null || s.length() == 0 || s.length() > 18 || (s.length() > 1 && s.charAt(0) == '0'))
+      return false;
+    for (int i = 0; i < s.length(); i++)
+      if (s.charAt(i) < '0' || s.charAt(i) > '9')
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,209 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ *
+ * Converts a JSONL file of requests, one flat JSON object per line, to the RequestCodec binary
+ * format, e.g.
+ *   {"type": "RIDE", "account": "9000", "from": "34 5th Street", "to": "71 9th Street", "passengers": 2, "xl": false, "pooled": true}
+ *   {"type": "DELIVERY", "account": "9001", "from": "34 5th Street", "to": "38 4th Street", "restaurant": "Burgers", "order": "5"}
+ * Lines that also have "cost" (and optionally "surge" and "time") become priced records that are
+ * replayed exactly as quoted.
+ *
+ * Usage: java RequestConverter <in.jsonl> <out.bin>
+ */
+public class RequestConverter
+{
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 2)
+    {
+      System.out.println("Usage: java RequestConverter <in.jsonl> <out.bin>");
+      return;
+    }
+    int[] counts = convert(args[0], args[1]);
+    System.out.println(counts[0] + " Requests Converted, " + counts[1] + " Lines Skipped");
+  }
+
+  // Returns {records written, lines skipped}
+  public static int[] convert(String inFile, String outFile) throws IOException
+  {
+    RequestCodec codec = new RequestCodec();
+    RequestCodec.Record r = new RequestCodec.Record();
+    ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+    int written = 0;
+    int skipped = 0;
+    int lineNumber = 0;
+    try (BufferedReader in = new BufferedReader(new FileReader(inFile));
+         FileChannel out = FileChannel.open(Paths.get(outFile), StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      String line;
+      while ((line = in.readLine()) != null)
+      {
+        lineNumber++;
+        if (line.trim().isEmpty())
+          continue;
+        try
+        {
+          toRecord(parseObject(line), r);
+          if (buf.remaining() < RequestCodec.MAXRECORD)
+            flush(buf, out);
+          codec.encode(r, buf);
+          written++;
+        }
+        catch (RuntimeException e)
+        {
+          System.out.println("Line " + lineNumber + ": " + e.getMessage());
+          skipped++;
+        }
+      }
+      flush(buf, out);
+    }
+    return new int[] {written, skipped};
+  }
+
+  private static void flush(ByteBuffer buf, FileChannel out) throws IOException
+  {
+    buf.flip();
+    while (buf.hasRemaining())
+      out.write(buf);
+    buf.clear();
+  }
+
+  // Fill a record from the fields of one JSON line
+  static void toRecord(Map<String, String> f, RequestCodec.Record r)
+  {
+    String type = f.getOrDefault("type", "RIDE");
+    if (type.equalsIgnoreCase(TMUberRide.TYPENAME))
+      r.kind = RequestCodec.RIDE;
+    else if (type.equalsIgnoreCase(TMUberDelivery.TYPENAME))
+      r.kind = RequestCodec.DELIVERY;
+    else
+      throw new IllegalArgumentException("Unknown Type " + type);
+    r.account = Long.parseLong(required(f, "account"));
+    r.from = required(f, "from");
+    r.to = required(f, "to");
+    r.xl = Boolean.parseBoolean(f.get("xl"));
+    r.pooled = Boolean.parseBoolean(f.get("pooled"));
+    r.passengers = r.kind == RequestCodec.RIDE ? Integer.parseInt(f.getOrDefault("passengers", "1")) : 0;
+    r.restaurant = null;
+    r.orderName = null;
+    r.orderNumber = 0;
+    if (r.kind == RequestCodec.DELIVERY)
+    {
+      r.restaurant = required(f, "restaurant");
+      String order = required(f, "order");
+      if (order.matches("0|[1-9][0-9]{0,17}"))
+        r.orderNumber = Long.parseLong(order);
+      else
+        r.orderName = order;
+    }
+    r.priced = f.containsKey("cost");
+    r.costCents = r.priced ? Math.round(Double.parseDouble(f.get("cost")) * 100) : 0;
+    r.surge = Double.parseDouble(f.getOrDefault("surge", "1.0"));
+    r.requestTime = Long.parseLong(f.getOrDefault("time", "0"));
+  }
+
+  private static String required(Map<String, String> f, String key)
+  {
+    String value = f.get(key);
+    if (value == null)
+      throw new IllegalArgumentException("Missing \"" + key + "\"");
+    return value;
+  }
+
+  // Parse one flat JSON object (string, number, boolean and null values) into key -> text
+  static Map<String, String> parseObject(String line)
+  {
+    HashMap<String, String> fields = new HashMap<String, String>();
+    int[] pos = {skipSpace(line, 0)};
+    expect(line, pos, '{');
+    if (peek(line, pos) == '}')
+      return fields;
+    while (true)
+    {
+      String key = parseString(line, pos);
+      expect(line, pos, ':');
+      String value;
+      if (peek(line, pos) == '"')
+        value = parseString(line, pos);
+      else
+      {
+        int start = pos[0];
+        while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0)
+          pos[0]++;
+        value = line.substring(start, pos[0]);
+        if (value.isEmpty())
+          throw new IllegalArgumentException("Missing Value for \"" + key + "\"");
+        if (value.equals("null"))
+          value = null;
+      }
+      if (value != null)
+        fields.put(key, value);
+      char c = peek(line, pos);
+      pos[0]++;
+      if (c == '}')
+        return fields;
+      if (c != ',')
+        throw new IllegalArgumentException("Malformed JSON at Column " + pos[0]);
+      pos[0] = skipSpace(line, pos[0]);
+    }
+  }
+
+  private static String parseString(String s, int[] pos)
+  {
+    expect(s, pos, '"');
+    StringBuilder sb = new StringBuilder();
+    int i = pos[0];
+    while (i < s.length() && s.charAt(i) != '"')
+    {
+      char c = s.charAt(i++);
+      if (c == '\\' && i < s.length())
+      {
+        char e = s.charAt(i++);
+        if (e == 'u' && i + 4 <= s.length())
+        {
+          c = (char) Integer.parseInt(s.substring(i, i + 4), 16);
+          i += 4;
+        }
+        else if (e == 'n') c = '\n';
+        else if (e == 't') c = '\t';
+        else c = e;
+      }
+      sb.append(c);
+    }
+    if (i >= s.length())
+      throw new IllegalArgumentException("Unterminated String");
+    pos[0] = i + 1;
+    return sb.toString();
+  }
+
+  private static void expect(String s, int[] pos, char c)
+  {
+    if (peek(s, pos) != c)
+      throw new IllegalArgumentException("Expected '" + c + "' at Column " + (pos[0] + 1));
+    pos[0] = skipSpace(s, pos[0] + 1);
+  }
+
+  // Next non blank character (0 at the end of the line)
+  private static char peek(String s, int[] pos)
+  {
+    pos[0] = skipSpace(s, pos[0]);
+    return pos[0] < s.length() ? s.charAt(pos[0]) : 0;
+  }
+
+  private static int skipSpace(String s, int i)
+  {
+    while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+      i++;
+    return i;
+  }
+}
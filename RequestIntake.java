@@ -0,0 +1,270 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ *
+ * Request intake pipeline in front of TMUberSystemManager. Every ride and delivery request goes
+ * through it.
+ *
+ * There is one preallocated ring buffer per pickup zone (and one more for pickups outside the
+ * city, which validation turns away). Producers, on any number of threads, route a request to the
+ * ring of its pickup zone, claim a slot there with a CAS on the ring's claim sequence, copy the
+ * request into the slot and publish it. Nothing is allocated and no lock is taken on the producer
+ * side. A full ring makes submit return -1 so callers can back off.
+ *
+ * Each ring has a single writer: the manager's thread drains it in sequence order and runs each
+ * request through the stages validate -> price -> dedup -> commit to the zone queue. Requests of
+ * one zone are committed in the order they were submitted, and a burst in one zone never holds up
+ * the ring of another.
+ *
+ * Callers that want the outcome of their own request (e.g. requestRide) drain the ring of their
+ * ticket up to that ticket, see drainFor().
+ */
+public class RequestIntake
+{
+  // Told about every request the pipeline commits or turns away (except the one drainFor() waits on)
+  public interface Listener
+  {
+    void accepted(long ticket, TMUberService req);
+    void rejected(long ticket, String accountId, RuntimeException error);
+  }
+
+  // One preallocated entry of a ring. Fields are overwritten every time the slot is reused
+  private static class Slot
+  {
+    boolean delivery;
+    String accountId;
+    String from;
+    String to;
+    int numPassengers;
+    boolean xl;
+    boolean pooled;
+    String restaurant;
+    String foodOrderId;
+    TripHandle handle;
+  }
+
+  // The ring of one pickup zone
+  private static class Ring
+  {
+    final Slot[] slots;
+    final int mask;
+    // Next sequence a producer will claim
+    final AtomicLong claimed = new AtomicLong(0);
+    // Sequence stored in a slot once its producer has finished writing it
+    final AtomicLongArray published;
+    // Next sequence the writer will process
+    volatile long consumed = 0;
+
+    Ring(int size)
+    {
+      slots = new Slot[size];
+      mask = size - 1;
+      published = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++)
+      {
+        slots[i] = new Slot();
+        published.set(i, -1);
+      }
+    }
+  }
+
+  private final TMUberSystemManager tmuber;
+  private final CityMap city;
+  private final Ring[] rings;
+
+  private Listener listener;
+  private long accepted = 0;
+  private long rejected = 0;
+
+  // Outcome of the ticket drainFor() is waiting on
+  private long waitingFor = -1;
+  private RuntimeException error;
+  private TMUberService committed;
+
+  // capacity (per zone) is rounded up to a power of two
+  public RequestIntake(TMUberSystemManager tmuber, int capacity)
+  {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.tmuber = tmuber;
+    this.city = tmuber.getCity();
+    rings = new Ring[city.getNumZones() + 1];
+    for (int i = 0; i < rings.length; i++)
+      rings[i] = new Ring(size);
+  }
+
+  public void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  // Submit a ride. Returns the request's ticket, or -1 if the ring of its zone is full
+  public long submitRide(String accountId, String from, String to, int numPassengers, boolean xl, boolean pooled)
+  {
+    return submit(false, accountId, from, to, numPassengers, xl, pooled, null, null, null);
+  }
+
+  // Submit a delivery. Returns the request's ticket, or -1 if the ring of its zone is full
+  public long submitDelivery(String accountId, String from, String to, String restaurant, String foodOrderId)
+  {
+    return submit(true, accountId, from, to, 0, false, false, restaurant, foodOrderId, null);
+  }
+
+  // Submit with a handle that is failed, or given the request, once the request has been through
+  // the stages
+  long submit(boolean delivery, String accountId, String from, String to, int numPassengers, boolean xl,
+              boolean pooled, String restaurant, String foodOrderId, TripHandle handle)
+  {
+    // Route to the ring of the pickup zone. CityMap is immutable so any thread can read it
+    int zone = city.zoneOf(from);
+    int r = zone >= 0 ? zone : rings.length - 1;
+    Ring ring = rings[r];
+    long seq = claim(ring);
+    if (seq < 0)
+      return -1;
+    Slot slot = ring.slots[(int) (seq & ring.mask)];
+    slot.delivery = delivery;
+    slot.accountId = accountId;
+    slot.from = from;
+    slot.to = to;
+    slot.numPassengers = numPassengers;
+    slot.xl = xl;
+    slot.pooled = pooled;
+    slot.restaurant = restaurant;
+    slot.foodOrderId = foodOrderId;
+    slot.handle = handle;
+    ring.published.set((int) (seq & ring.mask), seq);
+    return seq * rings.length + r;
+  }
+
+  // Claim the next free sequence, or -1 if the writer is a full ring behind
+  private static long claim(Ring ring)
+  {
+    while (true)
+    {
+      long seq = ring.claimed.get();
+      if (seq - ring.consumed >= ring.slots.length)
+        return -1;
+      if (ring.claimed.compareAndSet(seq, seq + 1))
+        return seq;
+    }
+  }
+
+  // Process every published request, one zone ring after the other. Manager thread only.
+  // Returns the number of requests taken from the rings
+  public int drain()
+  {
+    int count = 0;
+    for (int r = 0; r < rings.length; r++)
+      count += drain(r, Long.MAX_VALUE);
+    return count;
+  }
+
+  // Process the ring of a ticket up to and including it (earlier requests of the zone go first).
+  // Manager thread only, and the ticket must have been published and not drained yet. A producer
+  // that claimed an earlier slot of the ring but has not published it yet is waited for, so
+  // afterwards the ticket has always been processed: getError() is what the request failed with,
+  // or null and getCommitted() is the queued request
+  void drainFor(long ticket)
+  {
+    Ring ring = rings[(int) (ticket % rings.length)];
+    long seq = ticket / rings.length;
+    if (ring.consumed > seq)
+      throw new IllegalStateException("Ticket " + ticket + " Already Drained");
+    waitingFor = ticket;
+    error = null;
+    committed = null;
+    try
+    {
+      while (ring.consumed <= seq)
+      {
+        if (drain((int) (ticket % rings.length), seq) == 0)
+          Thread.yield();  // an earlier slot is claimed but still being written
+      }
+    }
+    finally
+    {
+      waitingFor = -1;
+    }
+  }
+
+  RuntimeException getError()
+  {
+    return error;
+  }
+
+  TMUberService getCommitted()
+  {
+    return committed;
+  }
+
+  private int drain(int r, long last)
+  {
+    Ring ring = rings[r];
+    int count = 0;
+    long next = ring.consumed;
+    while (next <= last && ring.published.get((int) (next & ring.mask)) == next)
+    {
+      Slot slot = ring.slots[(int) (next & ring.mask)];
+      process(slot, next * rings.length + r);
+      // Drop references so the ring does not keep old strings alive
+      slot.accountId = slot.from = slot.to = slot.restaurant = slot.foodOrderId = null;
+      slot.handle = null;
+      next++;
+      ring.consumed = next;
+      count++;
+    }
+    return count;
+  }
+
+  private void process(Slot slot, long ticket)
+  {
+    try
+    {
+      // Stage 1: validate account and addresses
+      User user = tmuber.checkRequest(slot.accountId, slot.from, slot.to);
+      // Stage 2: price (also checks funds)
+      TMUberService req;
+      if (slot.delivery)
+        req = tmuber.quoteDelivery(user, slot.from, slot.to, slot.restaurant, slot.foodOrderId);
+      else
+        req = tmuber.quoteRide(user, slot.from, slot.to, slot.numPassengers, slot.xl, slot.pooled);
+      // Stage 3: dedup against pending requests, stage 4: commit to the zone queue
+      tmuber.commit(req, slot.handle);
+      accepted++;
+      if (ticket == waitingFor)
+        committed = req;
+      else if (listener != null)
+        listener.accepted(ticket, req);
+    }
+    catch (RuntimeException e)
+    {
+      rejected++;
+      if (slot.handle != null)
+        slot.handle.fail(e);
+      if (ticket == waitingFor)
+        error = e;
+      else if (listener != null)
+        listener.rejected(ticket, slot.accountId, e);
+    }
+  }
+
+  // Requests waiting in the rings
+  public long backlog()
+  {
+    long n = 0;
+    for (Ring ring : rings)
+      n += ring.claimed.get() - ring.consumed;
+    return n;
+  }
+
+  public long getAccepted()
+  {
+    return accepted;
+  }
+
+  public long getRejected()
+  {
+    return rejected;
+  }
+}
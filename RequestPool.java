@@ -0,0 +1,76 @@
+import java.util.ArrayDeque;
+
+/*
+ *
+ * Recycles finished ride and delivery requests so that, once the pool has warmed up, taking and
+ * completing requests does not create new request objects.
+ *
+ * A request may only be recycled when nothing else can still reach it: it has left the queues,
+ * the pool index, the delivery batcher and the driver, and no TripHandle handed it out. At most
+ * MAXFREE of each kind are kept, anything past that is left to the garbage collector.
+ * Used by the thread running the manager only.
+ */
+public class RequestPool
+{
+  public static final int MAXFREE = 4096;
+
+  private final ArrayDeque<TMUberRide> rides;
+  private final ArrayDeque<TMUberDelivery> deliveries;
+  private long reused;
+  private long created;
+
+  public RequestPool()
+  {
+    rides = new ArrayDeque<TMUberRide>();
+    deliveries = new ArrayDeque<TMUberDelivery>();
+  }
+
+  public TMUberRide ride(String from, String to, User user, int distance, double cost)
+  {
+    TMUberRide ride = rides.poll();
+    if (ride == null)
+    {
+      created++;
+      return new TMUberRide(from, to, user, distance, cost);
+    }
+    reused++;
+    ride.reuse(from, to, user, distance, cost);
+    return ride;
+  }
+
+  public TMUberDelivery delivery(String from, String to, User user, int distance, double cost,
+                                 String restaurant, String order)
+  {
+    TMUberDelivery delivery = deliveries.poll();
+    if (delivery == null)
+    {
+      created++;
+      return new TMUberDelivery(from, to, user, distance, cost, restaurant, order);
+    }
+    reused++;
+    delivery.reuse(from, to, user, distance, cost, restaurant, order);
+    return delivery;
+  }
+
+  // Give back a finished request. Requests a caller still holds through a TripHandle are kept out
+  public void recycle(TMUberService req)
+  {
+    if (req.getTripHandle() != null)
+      return;
+    req.clear();
+    if (req instanceof TMUberRide && rides.size() < MAXFREE)
+      rides.push((TMUberRide) req);
+    else if (req instanceof TMUberDelivery && deliveries.size() < MAXFREE)
+      deliveries.push((TMUberDelivery) req);
+  }
+
+  public long getReused()
+  {
+    return reused;
+  }
+
+  public long getCreated()
+  {
+    return created;
+  }
+}
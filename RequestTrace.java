@@ -0,0 +1,195 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ *
+ * Java Flight Recorder events for the life of a service request, so a recording shows where a
+ * slow request spent its time: being validated, queued in its zone, waiting for the driver to
+ * arrive or in transit.
+ *
+ * Every event carries the city, the request id (given out when the request is queued), its pickup
+ * zone and, once known, the driver id. Ids are only unique within a city, so the city tells the
+ * requests of cities hosted together apart. Durations are measured on the system clock, which
+ * follows the simulation when it is pushed ahead, and are in milliseconds.
+ *
+ * With no recording running, or these events disabled in the recording settings, each call costs
+ * a check of isEnabled() and the event object never escapes, so the JIT can drop it. Enable them
+ * with e.g. java -XX:StartFlightRecording:filename=tmuber.jfr,settings=profile TMUberUI
+ */
+public class RequestTrace
+{
+  @Name("tmuber.RequestSubmitted")
+  @Label("Request Submitted")
+  @Category({"TMUber", "Requests"})
+  @StackTrace(false)
+  static class Submitted extends Event
+  {
+    @Label("City") String city;
+    @Label("Account") long account;
+    @Label("Zone") int zone;
+  }
+
+  // Spans the validation of a new request
+  @Name("tmuber.RequestValidated")
+  @Label("Request Validated")
+  @Category({"TMUber", "Requests"})
+  @StackTrace(false)
+  static class Validated extends Event
+  {
+    @Label("City") String city;
+    @Label("Account") long account;
+    @Label("Zone") int zone;
+    @Label("Accepted") boolean accepted;
+  }
+
+  @Name("tmuber.RequestEnqueued")
+  @Label("Request Enqueued")
+  @Category({"TMUber", "Requests"})
+  @StackTrace(false)
+  static class Enqueued extends Event
+  {
+    @Label("City") String city;
+    @Label("Request Id") long requestId;
+    @Label("Account") long account;
+    @Label("Zone") int zone;
+    @Label("Queue Length") int queueLength;
+  }
+
+  @Name("tmuber.RequestPickedUp")
+  @Label("Request Picked Up")
+  @Category({"TMUber", "Requests"})
+  @StackTrace(false)
+  static class PickedUp extends Event
+  {
+    @Label("City") String city;
+    @Label("Request Id") long requestId;
+    @Label("Zone") int zone;
+    @Label("Driver Id") long driverId;
+    @Label("Queued") @Timespan(Timespan.MILLISECONDS) long queuedMillis;
+    @Label("Escalated") boolean escalated;
+  }
+
+  @Name("tmuber.RequestDroppedOff")
+  @Label("Request Dropped Off")
+  @Category({"TMUber", "Requests"})
+  @StackTrace(false)
+  static class DroppedOff extends Event
+  {
+    @Label("City") String city;
+    @Label("Request Id") long requestId;
+    @Label("Zone") int zone;
+    @Label("Driver Id") long driverId;
+    @Label("Queued") @Timespan(Timespan.MILLISECONDS) long queuedMillis;
+    @Description("Pick up to drop off, including the drive to the pickup when movement is simulated")
+    @Label("In Transit") @Timespan(Timespan.MILLISECONDS) long transitMillis;
+    @Label("Total") @Timespan(Timespan.MILLISECONDS) long totalMillis;
+  }
+
+  @Name("tmuber.RequestCancelled")
+  @Label("Request Cancelled")
+  @Category({"TMUber", "Requests"})
+  @StackTrace(false)
+  static class Cancelled extends Event
+  {
+    @Label("City") String city;
+    @Label("Request Id") long requestId;
+    @Label("Zone") int zone;
+    @Label("Queued") @Timespan(Timespan.MILLISECONDS) long queuedMillis;
+    @Label("Expired") boolean expired;
+  }
+
+  static void submitted(String city, long account, int zone)
+  {
+    Submitted e = new Submitted();
+    if (!e.isEnabled())
+      return;
+    e.city = city;
+    e.account = account;
+    e.zone = zone;
+    e.commit();
+  }
+
+  // Start timing a validation, null when the event is off
+  static Validated validating()
+  {
+    Validated e = new Validated();
+    if (!e.isEnabled())
+      return null;
+    e.begin();
+    return e;
+  }
+
+  static void validated(Validated e, String city, long account, int zone, boolean accepted)
+  {
+    if (e == null)
+      return;
+    e.end();
+    if (!e.shouldCommit())
+      return;
+    e.city = city;
+    e.account = account;
+    e.zone = zone;
+    e.accepted = accepted;
+    e.commit();
+  }
+
+  static void enqueued(String city, TMUberService req, int zone, int queueLength)
+  {
+    Enqueued e = new Enqueued();
+    if (!e.isEnabled())
+      return;
+    e.city = city;
+    e.requestId = req.getRequestId();
+    e.account = req.getUser().getAccountNumber();
+    e.zone = zone;
+    e.queueLength = queueLength;
+    e.commit();
+  }
+
+  static void pickedUp(String city, TMUberService req, int zone, Driver driver, long now)
+  {
+    PickedUp e = new PickedUp();
+    if (!e.isEnabled())
+      return;
+    e.city = city;
+    e.requestId = req.getRequestId();
+    e.zone = zone;
+    e.driverId = driver.getIdNumber();
+    e.queuedMillis = now - req.getRequestTime();
+    e.escalated = req.isEscalated();
+    e.commit();
+  }
+
+  static void droppedOff(String city, TMUberService req, int zone, Driver driver, long now)
+  {
+    DroppedOff e = new DroppedOff();
+    if (!e.isEnabled())
+      return;
+    e.city = city;
+    e.requestId = req.getRequestId();
+    e.zone = zone;
+    e.driverId = driver.getIdNumber();
+    e.queuedMillis = req.getPickupTime() - req.getRequestTime();
+    e.transitMillis = now - req.getPickupTime();
+    e.totalMillis = now - req.getRequestTime();
+    e.commit();
+  }
+
+  static void cancelled(String city, TMUberService req, int zone, long now, boolean expired)
+  {
+    Cancelled e = new Cancelled();
+    if (!e.isEnabled())
+      return;
+    e.city = city;
+    e.requestId = req.getRequestId();
+    e.zone = zone;
+    e.queuedMillis = now - req.getRequestTime();
+    e.expired = expired;
+    e.commit();
+  }
+}
@@ -0,0 +1,240 @@
+import java.util.Arrays;
+
+/*
+ *
+ * Weighted road graph over a square grid of city blocks.
+ *
+ * Every block is connected to its neighbours along avenues and streets. Each connection has a
+ * travel time that can be changed at runtime (traffic) or set to CLOSED (road works).
+ *
+ * Shortest travel times are computed with Dijkstra from one source block at a time and kept in a
+ * cache, so repeated lookups are a plain array read. When a connection changes only the cached
+ * sources whose results could be affected are dropped:
+ *  - a slower or closed road only matters to sources whose shortest path tree uses it
+ *  - a faster road only matters to sources that can now reach one end quicker through it
+ * Roads are two-way so travel times are symmetric.
+ */
+public class RoadGraph
+{
+  // Travel time meaning the road cannot be used
+  public static final long CLOSED = -1;
+  private static final long UNREACHABLE = Long.MAX_VALUE;
+  // The four neighbouring blocks: x and y steps
+  private static final int[][] MOVES = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+
+  private final int size;       // blocks per side, numbered 1..size
+  private final long[] avenue;  // avenue[id(x, y)] is the road from (x, y) to (x+1, y)
+  private final long[] street;  // street[id(x, y)] is the road from (x, y) to (x, y+1)
+  private final long[][] cache; // cache[source] is the travel time to every block, null if not computed
+
+  // Reused by Dijkstra
+  private final long[] heap;
+  private int heapSize;
+
+  public RoadGraph(int size, long blockMillis)
+  {
+    this.size = size;
+    int blocks = size * size;
+    avenue = new long[blocks];
+    street = new long[blocks];
+    for (int i = 0; i < blocks; i++)
+    {
+      avenue[i] = blockMillis;
+      street[i] = blockMillis;
+    }
+    cache = new long[blocks][];
+    heap = new long[blocks * 4 + 1];
+  }
+
+  public int getSize()
+  {
+    return size;
+  }
+
+  // Block id (0..size*size-1) of a block
+  public int id(int x, int y)
+  {
+    return (x - 1) * size + (y - 1);
+  }
+
+  // Shortest travel time between two blocks, or -1 if roads closures cut them off
+  public long travelTime(int fromId, int toId)
+  {
+    long[] dist = cache[fromId];
+    if (dist == null)
+    {
+      // Roads are two-way so the tree of the other end works just as well
+      if (cache[toId] != null)
+        return result(cache[toId][fromId]);
+      dist = dijkstra(fromId);
+      cache[fromId] = dist;
+    }
+    return result(dist[toId]);
+  }
+
+  private static long result(long d)
+  {
+    return d == UNREACHABLE ? CLOSED : d;
+  }
+
+  // The neighbouring block to drive to next on a shortest path from one block to another,
+  // or -1 if already there or there is no open path
+  public int nextStep(int fromId, int toId)
+  {
+    if (fromId == toId)
+      return -1;
+    // Tree rooted at the destination gives the remaining time from every block
+    long[] toTarget = cache[toId];
+    if (toTarget == null)
+    {
+      toTarget = dijkstra(toId);
+      cache[toId] = toTarget;
+    }
+    int best = -1;
+    long bestTime = UNREACHABLE;
+    int x = fromId / size + 1;
+    int y = fromId % size + 1;
+    for (int[] m : MOVES)
+    {
+      int nx = x + m[0];
+      int ny = y + m[1];
+      if (nx < 1 || nx > size || ny < 1 || ny > size)
+        continue;
+      long w = weight(x, y, nx, ny);
+      int n = id(nx, ny);
+      if (w == CLOSED || toTarget[n] == UNREACHABLE)
+        continue;
+      if (w + toTarget[n] < bestTime)
+      {
+        bestTime = w + toTarget[n];
+        best = n;
+      }
+    }
+    return best;
+  }
+
+  // Travel time of the road between two neighbouring blocks
+  public long weight(int x1, int y1, int x2, int y2)
+  {
+    if (x1 == x2 && Math.abs(y1 - y2) == 1)
+      return street[id(x1, Math.min(y1, y2))];
+    if (y1 == y2 && Math.abs(x1 - x2) == 1)
+      return avenue[id(Math.min(x1, x2), y1)];
+    throw new IllegalArgumentException("Blocks are not neighbours");
+  }
+
+  // Change the travel time of the road between two neighbouring blocks (CLOSED to close it)
+  public void setWeight(int x1, int y1, int x2, int y2, long travelTime)
+  {
+    long old = weight(x1, y1, x2, y2);
+    if (old == travelTime)
+      return;
+    if (x1 == x2)
+      street[id(x1, Math.min(y1, y2))] = travelTime;
+    else
+      avenue[id(Math.min(x1, x2), y1)] = travelTime;
+
+    int u = id(x1, y1);
+    int v = id(x2, y2);
+    boolean slower = travelTime == CLOSED || (old != CLOSED && travelTime > old);
+    for (int s = 0; s < cache.length; s++)
+    {
+      long[] dist = cache[s];
+      if (dist == null)
+        continue;
+      if (slower)
+      {
+        // Only affected if the road was on a shortest path from s
+        if (old != CLOSED && dist[u] != UNREACHABLE &&
+            (dist[u] + old == dist[v] || dist[v] + old == dist[u]))
+          cache[s] = null;
+      }
+      else
+      {
+        // Only affected if the road now gives a shorter way to one of its ends
+        if ((dist[u] != UNREACHABLE && dist[u] + travelTime < dist[v]) ||
+            (dist[v] != UNREACHABLE && dist[v] + travelTime < dist[u]))
+          cache[s] = null;
+      }
+    }
+  }
+
+  // Number of sources currently cached
+  public int cachedSources()
+  {
+    int count = 0;
+    for (long[] dist : cache)
+      if (dist != null)
+        count++;
+    return count;
+  }
+
+  // Single source shortest travel times using a binary heap of (time, block) pairs
+  private long[] dijkstra(int source)
+  {
+    long[] dist = new long[size * size];
+    Arrays.fill(dist, UNREACHABLE);
+    dist[source] = 0;
+    heapSize = 0;
+    push(0, source);
+    while (heapSize > 0)
+    {
+      long top = pop();
+      int node = (int) (top & 0xFFFFF);
+      long d = top >>> 20;
+      if (d > dist[node])
+        continue; // stale entry
+      int x = node / size + 1;
+      int y = node % size + 1;
+      for (int[] m : MOVES)
+      {
+        int nx = x + m[0];
+        int ny = y + m[1];
+        if (nx < 1 || nx > size || ny < 1 || ny > size)
+          continue;
+        long w = weight(x, y, nx, ny);
+        if (w == CLOSED)
+          continue;
+        int n = id(nx, ny);
+        if (d + w < dist[n])
+        {
+          dist[n] = d + w;
+          push(dist[n], n);
+        }
+      }
+    }
+    return dist;
+  }
+
+  // Heap entries pack the time in the high bits and the block id in the low 20 bits
+  private void push(long d, int node)
+  {
+    long entry = (d << 20) | node;
+    int i = heapSize++;
+    while (i > 0 && heap[(i - 1) / 2] > entry)
+    {
+      heap[i] = heap[(i - 1) / 2];
+      i = (i - 1) / 2;
+    }
+    heap[i] = entry;
+  }
+
+  private long pop()
+  {
+    long top = heap[0];
+    long last = heap[--heapSize];
+    int i = 0;
+    while (2 * i + 1 < heapSize)
+    {
+      int c = 2 * i + 1;
+      if (c + 1 < heapSize && heap[c + 1] < heap[c])
+        c++;
+      if (heap[c] >= last)
+        break;
+      heap[i] = heap[c];
+      i = c;
+    }
+    heap[i] = last;
+    return top;
+  }
+}
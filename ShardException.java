@@ -0,0 +1,6 @@
+class ShardException extends RuntimeException {
+  ShardException(){}
+  public ShardException(String message){
+    super(message);
+  }
+}
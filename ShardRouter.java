@@ -0,0 +1,323 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+
+/*
+ *
+ * Thin router in front of a set of ZoneShard processes.
+ *
+ * Every zone is owned by one shard (a shard may own several zones). Requests go to the shard that
+ * owns the pickup zone, driver commands go to the shard that currently owns the driver. When a
+ * drop off or a drive leaves an available driver in a zone owned by another shard, the driver is
+ * removed from the old shard and added to the new one.
+ *
+ * Users are registered on every shard, and after each drop off the new wallet balance is copied
+ * to the other shards so any shard can check funds for the next request. Each shard only holds
+ * money for the requests queued on it, so before a request is sent the router asks the other
+ * shards what they hold for the user and the request is checked against that too (WITHHELD).
+ * Requests and drop offs take turns on one lock so a balance is never read half synced.
+ */
+public class ShardRouter
+{
+  // Connection to one shard
+  private static class ShardLink
+  {
+    final int port;
+    final Socket socket;
+    final BufferedReader in;
+    final PrintWriter out;
+
+    ShardLink(int port) throws IOException
+    {
+      this.port = port;
+      socket = new Socket(InetAddress.getLoopbackAddress(), port);
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      out = new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    // Send one request and wait for its reply
+    synchronized String[] call(String request) throws IOException
+    {
+      out.println(request);
+      String reply = in.readLine();
+      if (reply == null)
+        throw new IOException("Shard on Port " + port + " Closed the Connection");
+      return reply.split("\\" + ZoneShard.SEP, -1);
+    }
+  }
+
+  private final ShardLink[] zoneOwner;          // zoneOwner[zone]
+  private final ArrayList<ShardLink> shards;
+  private final Map<String, Integer> driverZone; // zone of the shard that owns each driver
+  private final Object wallets = new Object();   // held by anything that reads or syncs balances
+  // Ids for users and drivers registered through this router, unique across its shards
+  private final IdAllocator userIds = IdAllocator.users();
+  private final IdAllocator driverIds = IdAllocator.drivers();
+
+  // ports[zone] is the port of the shard that owns the zone
+  public ShardRouter(int[] ports) throws IOException
+  {
+    zoneOwner = new ShardLink[ports.length];
+    shards = new ArrayList<ShardLink>();
+    Map<Integer, ShardLink> byPort = new HashMap<Integer, ShardLink>();
+    for (int zone = 0; zone < ports.length; zone++)
+    {
+      ShardLink link = byPort.get(ports[zone]);
+      if (link == null)
+      {
+        link = new ShardLink(ports[zone]);
+        byPort.put(ports[zone], link);
+        shards.add(link);
+      }
+      zoneOwner[zone] = link;
+    }
+    driverZone = new HashMap<String, Integer>();
+  }
+
+  // Start one shard process per zone of the default city on localhost, using ports basePort,
+  // basePort+1 and so on
+  public static ArrayList<Process> launchLocalShards(int basePort) throws IOException
+  {
+    ArrayList<Process> processes = new ArrayList<Process>();
+    String java = System.getProperty("java.home") + "/bin/java";
+    String classpath = System.getProperty("java.class.path");
+    for (int zone = 0; zone < CityMap.DEFAULT.getNumZones(); zone++)
+    {
+      ProcessBuilder pb = new ProcessBuilder(java, "-cp", classpath, "ZoneShard",
+                                             String.valueOf(basePort + zone), String.valueOf(zone));
+      pb.redirectErrorStream(true);
+      pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+      processes.add(pb.start());
+    }
+    return processes;
+  }
+
+  // Connect to shards that are still starting up
+  public static ShardRouter connect(int[] ports, long timeoutMillis) throws IOException, InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (true)
+    {
+      try
+      {
+        return new ShardRouter(ports);
+      }
+      catch (IOException e)
+      {
+        if (System.currentTimeMillis() > deadline)
+          throw e;
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  // Send to a shard and turn an error reply into the matching exception
+  private String[] call(ShardLink shard, String... fields) throws IOException
+  {
+    String[] reply = shard.call(String.join(ZoneShard.SEP, fields));
+    if (reply[0].equals("ERR"))
+      throw new ShardException(reply.length > 1 ? reply[1] : "Shard Error");
+    return reply;
+  }
+
+  private ShardLink ownerOf(String address)
+  {
+    int zone = CityMap.getCityZone(address);
+    if (zone < 0)
+      throw new AddressException("Invalid Address " + address);
+    return zoneOwner[zone];
+  }
+
+  private ShardLink driverShard(String driverId)
+  {
+    Integer zone = driverZone.get(driverId);
+    if (zone == null)
+      throw new DriverNotFoundException("Driver not found with ID: " + driverId);
+    return zoneOwner[zone];
+  }
+
+  public String registerNewUser(String name, String address, double wallet) throws IOException
+  {
+    if (!CityMap.validAddress(address))
+      throw new InvalidUserAddressException("Invalid User Address " + address);
+    String id = String.valueOf(userIds.next());
+    for (ShardLink shard : shards)
+      call(shard, "ADDUSER", id, name, address, String.valueOf(wallet));
+    return id;
+  }
+
+  public String registerNewDriver(String name, String carModel, String plate, String address) throws IOException
+  {
+    String id = String.valueOf(driverIds.next());
+    call(ownerOf(address), "ADDDRIVER", id, name, carModel, plate, address, "0", "false");
+    driverZone.put(id, CityMap.getCityZone(address));
+    return id;
+  }
+
+  public void requestRide(String accountId, String from, String to) throws IOException
+  {
+    request(ownerOf(from), accountId, "REQRIDE", accountId, from, to);
+  }
+
+  public void requestDelivery(String accountId, String from, String to, String restaurant, String order) throws IOException
+  {
+    request(ownerOf(from), accountId, "REQDLVY", accountId, from, to, restaurant, order);
+  }
+
+  // Send a request to its shard with what the other shards hold for the user
+  private String[] request(ShardLink target, String accountId, String... request) throws IOException
+  {
+    synchronized (wallets)
+    {
+      double elsewhere = 0;
+      for (ShardLink shard : shards)
+      {
+        if (shard != target)
+          elsewhere += Double.parseDouble(call(shard, "HELD", accountId)[1]);
+      }
+      String[] fields = new String[request.length + 3];
+      fields[0] = "WITHHELD";
+      fields[1] = accountId;
+      fields[2] = String.valueOf(elsewhere);
+      System.arraycopy(request, 0, fields, 3, request.length);
+      return call(target, fields);
+    }
+  }
+
+  public void pickup(String driverId) throws IOException
+  {
+    call(driverShard(driverId), "PICKUP", driverId);
+  }
+
+  public void driveTo(String driverId, String address) throws IOException
+  {
+    String[] reply = call(driverShard(driverId), "DRIVETO", driverId, address);
+    handOver(driverId, Integer.parseInt(reply[1]));
+  }
+
+  public void dropOff(String driverId) throws IOException
+  {
+    String[] reply;
+    synchronized (wallets)
+    {
+      reply = call(driverShard(driverId), "DROPOFF", driverId);
+      // Copy the user's new balance to the other shards
+      for (ShardLink shard : shards)
+      {
+        if (shard != driverShard(driverId))
+          call(shard, "SETWALLET", reply[2], reply[3]);
+      }
+    }
+    // A driver still carrying pooled riders or batched orders stays where it is
+    if (Boolean.parseBoolean(reply[4]))
+      handOver(driverId, Integer.parseInt(reply[1]));
+  }
+
+  public void cancelServiceRequest(int reqnum, int zone) throws IOException
+  {
+    if (zone < 0 || zone >= zoneOwner.length)
+      throw new InvalidZoneException("Invalid Zone #");
+    call(zoneOwner[zone], "CANCELREQ", String.valueOf(reqnum), String.valueOf(zone));
+  }
+
+  // Total revenue across all shards
+  public double totalRevenue() throws IOException
+  {
+    double total = 0;
+    for (ShardLink shard : shards)
+      total += Double.parseDouble(call(shard, "REVENUES")[1]);
+    return total;
+  }
+
+  // Shard that owns a driver right now (its zone's owner)
+  public int getDriverShardPort(String driverId)
+  {
+    return driverShard(driverId).port;
+  }
+
+  // Move a driver to the shard that owns its new zone, if that is a different shard
+  private void handOver(String driverId, int newZone) throws IOException
+  {
+    ShardLink from = driverShard(driverId);
+    ShardLink to = zoneOwner[newZone];
+    if (from != to)
+    {
+      String[] driver = call(from, "REMOVEDRIVER", driverId);
+      String[] add = new String[driver.length];
+      add[0] = "ADDDRIVER";
+      System.arraycopy(driver, 1, add, 1, driver.length - 1);
+      call(to, add);
+    }
+    driverZone.put(driverId, newZone);
+  }
+
+  public void close() throws IOException
+  {
+    for (ShardLink shard : shards)
+      shard.socket.close();
+  }
+
+  // Start one local shard per zone and route commands typed as protocol lines, e.g.
+  // REGUSER|name|address|wallet, REGDRIVER|name|model|plate|address, REQRIDE|account|from|to,
+  // PICKUP|driverId, DROPOFF|driverId, DRIVETO|driverId|address, REVENUES
+  public static void main(String[] args) throws Exception
+  {
+    int basePort = args.length > 0 ? Integer.parseInt(args[0]) : 7400;
+    ArrayList<Process> processes = launchLocalShards(basePort);
+    try
+    {
+      int[] ports = new int[CityMap.DEFAULT.getNumZones()];
+      for (int zone = 0; zone < ports.length; zone++)
+        ports[zone] = basePort + zone;
+      ShardRouter router = connect(ports, 10000);
+      Scanner scanner = new Scanner(System.in);
+      System.out.print(">");
+      while (scanner.hasNextLine())
+      {
+        String[] f = scanner.nextLine().split("\\" + ZoneShard.SEP, -1);
+        try
+        {
+          if (f[0].equalsIgnoreCase("Q"))
+            break;
+          else if (f[0].equalsIgnoreCase("REGUSER"))
+            System.out.println("User " + router.registerNewUser(f[1], f[2], Double.parseDouble(f[3])));
+          else if (f[0].equalsIgnoreCase("REGDRIVER"))
+            System.out.println("Driver " + router.registerNewDriver(f[1], f[2], f[3], f[4]));
+          else if (f[0].equalsIgnoreCase("REQRIDE"))
+            router.requestRide(f[1], f[2], f[3]);
+          else if (f[0].equalsIgnoreCase("REQDLVY"))
+            router.requestDelivery(f[1], f[2], f[3], f[4], f[5]);
+          else if (f[0].equalsIgnoreCase("PICKUP"))
+            router.pickup(f[1]);
+          else if (f[0].equalsIgnoreCase("DRIVETO"))
+            router.driveTo(f[1], f[2]);
+          else if (f[0].equalsIgnoreCase("DROPOFF"))
+          {
+            router.dropOff(f[1]);
+            System.out.println("Driver " + f[1] + " Now on Shard Port " + router.getDriverShardPort(f[1]));
+          }
+          else if (f[0].equalsIgnoreCase("REVENUES"))
+            System.out.println("Total Revenue: " + router.totalRevenue());
+        }
+        catch (RuntimeException e)
+        {
+          System.out.println(e.getMessage());
+        }
+        System.out.print(">");
+      }
+      router.close();
+    }
+    finally
+    {
+      for (Process p : processes)
+        p.destroy();
+    }
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ *
+ * Clock used by the system for request timestamps, timers and driver movement.
+ *
+ * It follows the wall clock but can be pushed forward by the simulator (or the TICK command) to
+ * replay minutes of driving in an instant.
+ */
+public class SimulationClock
+{
+  private long offset; // how far the simulation has been pushed ahead of the wall clock
+
+  public SimulationClock()
+  {
+    offset = 0;
+  }
+
+  public long now()
+  {
+    return System.currentTimeMillis() + offset;
+  }
+
+  // Jump the clock forward
+  public void advance(long millis)
+  {
+    if (millis > 0)
+      offset += millis;
+  }
+}
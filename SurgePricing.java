@@ -0,0 +1,144 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ *
+ * This class keeps track of supply (available drivers) and demand (request arrivals) in every zone
+ * and turns them into a surge multiplier that is applied on top of the base rates.
+ *
+ * Demand is counted in a rolling window made of a small ring of time buckets per zone, so every
+ * event only touches one bucket and one running sum (O(1) per event). Time is the system's
+ * SimulationClock, so pushing the clock ahead (TICK) ages demand like real time does.
+ * The current multiplier of every zone is published in an atomic array, so readers only lock
+ * when the window has moved on since the multiplier was last worked out.
+ */
+public class SurgePricing
+{
+  // Rolling window is NUMBUCKETS buckets of BUCKETMILLIS each (i.e. the last minute)
+  private static final int NUMBUCKETS = 12;
+  private static final long BUCKETMILLIS = 5000;
+
+  // Multiplier is always kept between these bounds
+  public static final double MINSURGE = 1.0;
+  public static final double MAXSURGE = 3.0;
+  // How fast the multiplier grows once demand passes supply
+  private static final double SENSITIVITY = 0.25;
+
+  private final int numZones;
+  private final SimulationClock clock;
+  private final int[][] arrivals;     // arrivals[zone][bucket]
+  private final long[] lastSlot;      // last time slot seen per zone, used to expire old buckets lazily
+  private final int[] windowTotal;    // running sum of arrivals[zone][*]
+  private final int[] availableDrivers;
+
+  // Multiplier per zone stored as raw double bits so it can be read without locking, and the time
+  // slot it was worked out in
+  private final AtomicLongArray surge;
+  private final AtomicLongArray surgeSlot;
+
+  public SurgePricing(int numZones, SimulationClock clock)
+  {
+    this.numZones = numZones;
+    this.clock = clock;
+    arrivals = new int[numZones][NUMBUCKETS];
+    lastSlot = new long[numZones];
+    windowTotal = new int[numZones];
+    availableDrivers = new int[numZones];
+    surge = new AtomicLongArray(numZones);
+    surgeSlot = new AtomicLongArray(numZones);
+    for (int i = 0; i < numZones; i++)
+      surge.set(i, Double.doubleToRawLongBits(MINSURGE));
+  }
+
+  // Current multiplier for a zone. Demand that fell out of the window since the zone's last event
+  // is dropped first, so a quiet zone cools down without new events
+  public double getSurge(int zone)
+  {
+    if (zone < 0 || zone >= numZones)
+      return MINSURGE;
+    long now = clock.now();
+    if (now / BUCKETMILLIS > surgeSlot.get(zone))
+      refresh(zone, now);
+    return Double.longBitsToDouble(surge.get(zone));
+  }
+
+  private synchronized void refresh(int zone, long now)
+  {
+    advance(zone, now);
+    recompute(zone);
+  }
+
+  // A new ride/delivery request arrived in this zone
+  public synchronized void recordRequest(int zone)
+  {
+    if (zone < 0 || zone >= numZones)
+      return;
+    int bucket = advance(zone, clock.now());
+    arrivals[zone][bucket]++;
+    windowTotal[zone]++;
+    recompute(zone);
+  }
+
+  // A driver became available in this zone (registered, dropped off or drove here)
+  public synchronized void driverAvailable(int zone)
+  {
+    if (zone < 0 || zone >= numZones)
+      return;
+    availableDrivers[zone]++;
+    advance(zone, clock.now());
+    recompute(zone);
+  }
+
+  // A driver is no longer available in this zone (picked someone up or drove away)
+  public synchronized void driverUnavailable(int zone)
+  {
+    if (zone < 0 || zone >= numZones || availableDrivers[zone] == 0)
+      return;
+    availableDrivers[zone]--;
+    advance(zone, clock.now());
+    recompute(zone);
+  }
+
+  public synchronized int getAvailableDrivers(int zone)
+  {
+    return availableDrivers[zone];
+  }
+
+  public synchronized int getRecentRequests(int zone)
+  {
+    advance(zone, clock.now());
+    return windowTotal[zone];
+  }
+
+  // Move the ring forward to the bucket for time now, clearing buckets that fell out of the window.
+  // At most NUMBUCKETS buckets are cleared so this is still constant time.
+  private int advance(int zone, long now)
+  {
+    long slot = now / BUCKETMILLIS;
+    long last = lastSlot[zone];
+    if (slot > last)
+    {
+      long first = Math.max(last + 1, slot - NUMBUCKETS + 1);
+      for (long s = first; s <= slot; s++)
+      {
+        int b = (int) (s % NUMBUCKETS);
+        windowTotal[zone] -= arrivals[zone][b];
+        arrivals[zone][b] = 0;
+      }
+      lastSlot[zone] = slot;
+    }
+    return (int) (lastSlot[zone] % NUMBUCKETS);
+  }
+
+  private void recompute(int zone)
+  {
+    double ratio = (double) windowTotal[zone] / Math.max(1, availableDrivers[zone]);
+    double value = MINSURGE;
+    if (ratio > 1)
+      value = MINSURGE + SENSITIVITY * (ratio - 1);
+    value = Math.min(MAXSURGE, value);
+    // Round to one decimal so users see stable prices (e.g. 1.3x)
+    value = Math.round(value * 10) / 10.0;
+    surge.set(zone, Double.doubleToRawLongBits(value));
+    surgeSlot.set(zone, lastSlot[zone]);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ *
+ * One state change of the system as seen by subscribers of the event stream (see EventStream).
+ *
+ * Events are immutable and only carry ids, addresses and amounts, never the live User, Driver or
+ * request objects, so a subscriber can read them on its own thread while the manager keeps
+ * changing the objects they describe. Fields that do not apply to a kind are -1 or null.
+ */
+public class SystemEvent
+{
+  public enum Kind
+  {
+    USERADDED,        // account
+    DRIVERADDED,      // driver, zone
+    DRIVERREMOVED,    // driver, zone
+    DRIVERSTATUS,     // driver, zone, status
+    REQUESTQUEUED,    // account, zone, from, to, amount = quoted cost
+    REQUESTASSIGNED,  // account, driver, zone, from, to
+    REQUESTCOMPLETED, // account, driver, zone, from, to, amount = driver's share
+    REQUESTCANCELLED, // account, zone, from, to
+    REQUESTEXPIRED,   // account, zone, from, to
+    PAYOUT            // driver, amount = paid out in a settlement
+  }
+
+  public final Kind kind;
+  public final long time;
+  public final long account;
+  public final long driver;
+  public final int zone;
+  public final Driver.Status status;
+  public final String from;
+  public final String to;
+  public final double amount;
+
+  public SystemEvent(Kind kind, long time, long account, long driver, int zone, Driver.Status status,
+                     String from, String to, double amount)
+  {
+    this.kind = kind;
+    this.time = time;
+    this.account = account;
+    this.driver = driver;
+    this.zone = zone;
+    this.status = status;
+    this.from = from;
+    this.to = to;
+    this.amount = amount;
+  }
+
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder(kind.name());
+    if (account >= 0)
+      sb.append(" User ").append(account);
+    if (driver >= 0)
+      sb.append(" Driver ").append(driver);
+    if (zone >= 0)
+      sb.append(" Zone ").append(zone);
+    if (status != null)
+      sb.append(' ').append(status);
+    if (from != null)
+      sb.append(" From ").append(from).append(" To ").append(to);
+    if (kind == Kind.REQUESTQUEUED || kind == Kind.REQUESTCOMPLETED || kind == Kind.PAYOUT)
+      sb.append(String.format(" $%.2f", amount));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,320 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+ *
+ * Immutable point-in-time view of the users, drivers and pending service requests.
+ *
+ * The manager builds a new snapshot on its own thread at the end of a command (a version
+ * boundary) and publishes it through a volatile reference, so any other thread can read a
+ * consistent view in O(1) without locking. Parts that did not change since the last version are
+ * shared with the previous snapshot instead of being copied again: users and drivers are kept in
+ * ViewLists so a new version only makes views of the ones that changed, and a zone queue that
+ * changed reuses the views of the requests still in it.
+ */
+public final class SystemSnapshot
+{
+  // Copy of a user's state
+  public static final class UserView
+  {
+    public final String accountId;
+    public final String name;
+    public final String address;
+    public final double wallet;
+    public final int rides;
+    public final int deliveries;
+
+    UserView(User u)
+    {
+      accountId = u.getAccountId();
+      name = u.getName();
+      address = u.getAddress();
+      wallet = u.getWallet();
+      rides = u.getRides();
+      deliveries = u.getDeliveries();
+    }
+
+    // Same format as User.printInfo()
+    public void printInfo()
+    {
+      System.out.printf("User: Id: %-5s Name: %-15s Address: %-15s Wallet: %2.2f", accountId, name, address, wallet);
+    }
+  }
+
+  // Copy of a pending ride or delivery request
+  public static final class RequestView
+  {
+    public final String type;
+    public final String from;
+    public final String to;
+    public final double cost;
+    public final String accountId;
+    // Position of the user's view in the snapshot, so wallet changes need no copy here
+    final int userSlot;
+    final long requestId;
+    public final int numPassengers;
+    public final boolean requestedXL;
+    public final boolean pooled;
+    public final String restaurant;   // null for rides
+    public final String foodOrderId;  // null for rides
+
+    RequestView(TMUberService s, int userSlot)
+    {
+      this.userSlot = userSlot;
+      requestId = s.getRequestId();
+      type = s.getServiceType();
+      from = s.getFrom();
+      to = s.getTo();
+      cost = s.getCost();
+      accountId = s.getUser().getAccountId();
+      if (s instanceof TMUberRide)
+      {
+        TMUberRide ride = (TMUberRide) s;
+        numPassengers = ride.getNumPassengers();
+        requestedXL = ride.isRequestedXL();
+        pooled = ride.isPooled();
+      }
+      else
+      {
+        numPassengers = 0;
+        requestedXL = false;
+        pooled = false;
+      }
+      if (s instanceof TMUberDelivery)
+      {
+        restaurant = ((TMUberDelivery) s).getRestaurant();
+        foodOrderId = ((TMUberDelivery) s).getFoodOrderId();
+      }
+      else
+      {
+        restaurant = null;
+        foodOrderId = null;
+      }
+    }
+
+    // Same format as TMUberRide/TMUberDelivery printInfo()
+    public void printInfo(UserView user)
+    {
+      System.out.printf("\nType: %-9s From: %-15s To: %-15s", type, from, to);
+      System.out.print("\n");
+      if (user != null)
+        user.printInfo();
+      if (restaurant != null)
+        System.out.printf("\nRestaurant: %-9s Food Order #: %-3s", restaurant, foodOrderId);
+      else if (requestedXL || pooled || numPassengers > 1)
+        System.out.printf("\nPassengers: %-3d XL: %-5s Pool: %-5s", numPassengers, requestedXL, pooled);
+    }
+  }
+
+  // Copy of a driver's state
+  public static final class DriverView
+  {
+    public final String id;
+    public final String name;
+    public final String carModel;
+    public final String licensePlate;
+    public final double wallet;
+    public final Driver.Status status;
+    public final String address;
+    public final int zone;
+    public final boolean xl;
+    public final List<String[]> stops; // {from, to} of every request on board, in drop off order
+
+    DriverView(Driver d)
+    {
+      id = d.getId();
+      name = d.getName();
+      carModel = d.getCarModel();
+      licensePlate = d.getLicensePlate();
+      wallet = d.getWallet();
+      status = d.getStatus();
+      address = d.getAddress();
+      zone = d.getZone();
+      xl = d.isXL();
+      ArrayList<String[]> s = new ArrayList<String[]>();
+      for (TMUberService service : d.getOnBoard())
+        s.add(new String[] {service.getFrom(), service.getTo()});
+      stops = Collections.unmodifiableList(s);
+    }
+
+    // Same format as Driver.printInfo()
+    public void printInfo()
+    {
+      System.out.printf("Id: %-3s Name: %-15s Car Model: %-15s License Plate: %-10s Wallet: %2.2f",
+          id, name, carModel, licensePlate, wallet);
+      System.out.println("");
+      System.out.printf("Status: %-3s  Address: %-15s Zone: %-15s", status, address, zone);
+      System.out.println("");
+      if (status == Driver.Status.DRIVING && !stops.isEmpty())
+      {
+        System.out.printf("From: %-3s To: %-15s ", stops.get(0)[0], stops.get(0)[1]);
+        System.out.println("");
+        for (int i = 1; i < stops.size(); i++)
+        {
+          System.out.printf("Next From: %-3s To: %-15s ", stops.get(i)[0], stops.get(i)[1]);
+          System.out.println("");
+        }
+      }
+    }
+  }
+
+  private final long version;
+  private final ViewList<UserView> users;
+  private final ViewList<DriverView> drivers;
+  private final List<List<RequestView>> zones;
+  private final double totalRevenue;
+
+  SystemSnapshot(long version, ViewList<UserView> users, ViewList<DriverView> drivers,
+                 List<List<RequestView>> zones, double totalRevenue)
+  {
+    this.version = version;
+    this.users = users;
+    this.drivers = drivers;
+    this.zones = zones;
+    this.totalRevenue = totalRevenue;
+  }
+
+  // Empty snapshot used before anything is published
+  static SystemSnapshot empty(int numZones)
+  {
+    ArrayList<List<RequestView>> zones = new ArrayList<List<RequestView>>();
+    for (int i = 0; i < numZones; i++)
+      zones.add(Collections.<RequestView>emptyList());
+    return new SystemSnapshot(0, ViewList.<UserView>empty(), ViewList.<DriverView>empty(),
+                              Collections.unmodifiableList(zones), 0);
+  }
+
+  SystemSnapshot next(long version, ViewList<UserView> users, ViewList<DriverView> drivers,
+                      List<List<RequestView>> zones, double totalRevenue)
+  {
+    return new SystemSnapshot(version, users, drivers, zones, totalRevenue);
+  }
+
+  static ViewList<UserView> copyUsers(List<User> users)
+  {
+    ArrayList<UserView> views = new ArrayList<UserView>(users.size());
+    for (User u : users)
+      views.add(new UserView(u));
+    return ViewList.of(views);
+  }
+
+  // The previous views with those of the changed users replaced and those of new users (at the
+  // end of users) appended. slots is the position of every user in users
+  static ViewList<UserView> updateUsers(ViewList<UserView> views, List<User> users, Collection<User> changed,
+                                        Map<User, Integer> slots)
+  {
+    // Past a point one copy is cheaper than a path copy per user
+    if (changed.size() > users.size() / 8)
+      return copyUsers(users);
+    int size = views.size();
+    for (User u : changed)
+    {
+      Integer slot = slots.get(u);
+      if (slot != null && slot < size)
+        views = views.with(slot, new UserView(u));
+    }
+    for (int i = size; i < users.size(); i++)
+      views = views.plus(new UserView(users.get(i)));
+    return views;
+  }
+
+  static ViewList<DriverView> copyDrivers(List<Driver> drivers)
+  {
+    ArrayList<DriverView> views = new ArrayList<DriverView>(drivers.size());
+    for (Driver d : drivers)
+      views.add(new DriverView(d));
+    return ViewList.of(views);
+  }
+
+  // Same as updateUsers() for drivers
+  static ViewList<DriverView> updateDrivers(ViewList<DriverView> views, List<Driver> drivers,
+                                            Collection<Driver> changed, Map<Driver, Integer> slots)
+  {
+    if (changed.size() > drivers.size() / 8)
+      return copyDrivers(drivers);
+    int size = views.size();
+    for (Driver d : changed)
+    {
+      Integer slot = slots.get(d);
+      if (slot != null && slot < size)
+        views = views.with(slot, new DriverView(d));
+    }
+    for (int i = size; i < drivers.size(); i++)
+      views = views.plus(new DriverView(drivers.get(i)));
+    return views;
+  }
+
+  // Views of a zone queue. Requests that were already queued keep their view from previous:
+  // queues only lose requests or gain them at the back, so one pass over both finds them
+  static List<RequestView> copyRequests(Iterable<TMUberService> queue, List<RequestView> previous,
+                                        Map<User, Integer> userSlots)
+  {
+    ArrayList<RequestView> views = new ArrayList<RequestView>();
+    int p = 0;
+    for (TMUberService s : queue)
+    {
+      int q = p;
+      while (q < previous.size() && previous.get(q).requestId != s.getRequestId())
+        q++;
+      if (q < previous.size())
+      {
+        views.add(previous.get(q));
+        p = q + 1;
+      }
+      else
+      {
+        Integer slot = userSlots.get(s.getUser());
+        views.add(new RequestView(s, slot == null ? -1 : slot));
+      }
+    }
+    return Collections.unmodifiableList(views);
+  }
+
+  // Version of the system state this snapshot shows
+  public long getVersion()
+  {
+    return version;
+  }
+
+  // Users in listing order
+  public ViewList<UserView> getUsers()
+  {
+    return users;
+  }
+
+  // The user who made a pending request, as of this snapshot
+  public UserView getUser(RequestView request)
+  {
+    return request.userSlot >= 0 && request.userSlot < users.size() ? users.get(request.userSlot) : null;
+  }
+
+  // Print a pending request with its user as of this snapshot
+  public void printRequest(RequestView request)
+  {
+    request.printInfo(getUser(request));
+  }
+
+  public ViewList<DriverView> getDrivers()
+  {
+    return drivers;
+  }
+
+  // Pending requests of a zone, front of the queue first
+  public List<RequestView> getRequests(int zone)
+  {
+    return zones.get(zone);
+  }
+
+  public int getNumZones()
+  {
+    return zones.size();
+  }
+
+  public double getTotalRevenue()
+  {
+    return totalRevenue;
+  }
+}
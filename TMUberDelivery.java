@@ -1,3 +1,5 @@
+import java.util.Objects;
+
 /*
  * 
  * This class simulates a food delivery service for a simple Uber app
@@ -7,6 +9,12 @@
 public class TMUberDelivery extends TMUberService
 {
   public static final String TYPENAME = "DELIVERY";
+
+  // Restaurant names are shared through a small fixed cache, so the deliveries of one restaurant
+  // keep one copy of its name. A name that collides replaces the one in its slot, so the cache
+  // never grows however many restaurants there are (Strings are immutable, so racing is harmless)
+  private static final int NAMECACHE = 1024;
+  private static final String[] restaurantNames = new String[NAMECACHE];
  
   private String restaurant; 
   private String foodOrderId;
@@ -14,10 +22,36 @@ public class TMUberDelivery extends TMUberService
   public TMUberDelivery(String from, String to, User user, int distance, double cost,
                         String restaurant, String order)
   {
-    super(from, to, user, distance, cost, TMUberDelivery.TYPENAME);
-    this.restaurant = restaurant;
+    super(from, to, user, distance, cost);
+    this.restaurant = intern(restaurant);
+    this.foodOrderId = order;
+  }
+
+  // Set up a recycled delivery, see RequestPool
+  void reuse(String from, String to, User user, int distance, double cost, String restaurant, String order)
+  {
+    init(from, to, user, distance, cost);
+    this.restaurant = intern(restaurant);
     this.foodOrderId = order;
   }
+
+  void clear()
+  {
+    super.clear();
+    foodOrderId = null;
+  }
+
+  private static String intern(String name)
+  {
+    if (name == null)
+      return null;
+    int slot = name.hashCode() & (NAMECACHE - 1);
+    String cached = restaurantNames[slot];
+    if (name.equals(cached))
+      return cached;
+    restaurantNames[slot] = name;
+    return name;
+  }
  
   
   public String getServiceType()
@@ -32,7 +66,7 @@ public class TMUberDelivery extends TMUberService
 
   public void setRestaurant(String restaurant)
   {
-    this.restaurant = restaurant;
+    this.restaurant = intern(restaurant);
   }
 
   public String getFoodOrderId()
@@ -59,7 +93,7 @@ public class TMUberDelivery extends TMUberService
     
     // Now check if this delivery and other delivery are equal
     TMUberDelivery delivery = (TMUberDelivery)other;
-    return super.equals(other) && delivery.getRestaurant().equals(restaurant) && 
+    return super.equals(other) && Objects.equals(delivery.restaurant, restaurant) && 
                                   delivery.getFoodOrderId().equals(foodOrderId);
   }
   /*
@@ -68,6 +102,6 @@ public class TMUberDelivery extends TMUberService
   public void printInfo()
   {
     super.printInfo();
-    System.out.printf("\nRestaurant: %-9s Food Order #: %-3s", restaurant, foodOrderId); 
+    System.out.printf("\nRestaurant: %-9s Food Order #: %-3s", getRestaurant(), foodOrderId); 
   }
 }
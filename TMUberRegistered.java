@@ -2,36 +2,29 @@ import java.util.ArrayList;
 import java.io.File;  // Import the File class
 import java.io.IOException;
 import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class TMUberRegistered
 {
-    // These variables are used to generate user account and driver ids
-    private static int firstUserAccountID = 900;
-    private static int firstDriverId = 700;
-
-    // Generate a new user account id
-    public static String generateUserAccountId(ArrayList<User> current)
-    {
-        return "" + firstUserAccountID + current.size();
-    }
-
-    // Generate a new driver id
-    public static String generateDriverId(ArrayList<Driver> current)
-    {
-        return "" + firstDriverId + current.size();
-    }
+    // Ids are taken from the allocator this many at a time
+    private static final int IDBLOCK = 64;
 
     // Database of Preregistered users
     // In Assignment 2 these will be loaded from a file
     // The test scripts and test outputs included with the skeleton code use these
     // users and drivers below. You may want to work with these to test your code (i.e. check your output with the
     // sample output provided). 
-    public static ArrayList<User> loadPreregisteredUsers(String filename) throws IOException {
+    public static ArrayList<User> loadPreregisteredUsers(String filename, IdAllocator allocator) throws IOException {
         ArrayList<User> users = new ArrayList<>();
         File userFile = new File(filename);
         Scanner scanner = new Scanner(userFile);
+        IdAllocator.Block ids = allocator.reserve(IDBLOCK);
         while (scanner.hasNextLine()) {
-            String id = generateUserAccountId(users);
+            if (!ids.hasNext())
+                ids = allocator.reserve(IDBLOCK);
+            long id = ids.next();
             String name = scanner.nextLine();
             String address = scanner.nextLine();
             double wallet = Double.parseDouble(scanner.nextLine());
@@ -39,17 +32,21 @@ public class TMUberRegistered
             users.add(new User(id, name, address, wallet));
         }
         scanner.close();
+        allocator.release(ids);
         return users;
     }
 
     // Database of Preregistered users
     // In Assignment 2 these will be loaded from a file
-    public static ArrayList<Driver> loadPreregisteredDrivers(String filename) throws IOException {
+    public static ArrayList<Driver> loadPreregisteredDrivers(String filename, IdAllocator allocator) throws IOException {
         ArrayList<Driver> drivers = new ArrayList<>();
         File driverFile = new File(filename);
         Scanner scanner = new Scanner(driverFile);
+        IdAllocator.Block ids = allocator.reserve(IDBLOCK);
         while (scanner.hasNextLine()) {
-            String id = generateDriverId(drivers);
+            if (!ids.hasNext())
+                ids = allocator.reserve(IDBLOCK);
+            long id = ids.next();
             String name = scanner.nextLine();
             String carModel = scanner.nextLine();
             String carLicense = scanner.nextLine();
@@ -57,7 +54,14 @@ public class TMUberRegistered
             drivers.add(new Driver(id, name, carModel, carLicense, address));
         }
         scanner.close();
+        allocator.release(ids);
         return drivers;
     }
-}
 
+    // Map a binary requests file (see RequestCodec) into memory, read only
+    public static ByteBuffer loadRequests(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
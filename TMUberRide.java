@@ -8,14 +8,28 @@ public class TMUberRide extends TMUberService
 {
   private int numPassengers;
   private boolean requestedXL;
+  private boolean pooled; // User agrees to share the car with other riders
   
   public static final String TYPENAME = "RIDE";
   
   public TMUberRide(String from, String to, User user, int distance, double cost)
   {
-    super(from, to, user, distance, cost, TMUberRide.TYPENAME);
+    super(from, to, user, distance, cost);
+    resetOptions();
+  }
+
+  // Set up a recycled ride, see RequestPool
+  void reuse(String from, String to, User user, int distance, double cost)
+  {
+    init(from, to, user, distance, cost);
+    resetOptions();
+  }
+
+  private void resetOptions()
+  {
     requestedXL = false;
     numPassengers = 1;
+    pooled = false;
   }
   
   public String getServiceType()
@@ -42,4 +56,24 @@ public class TMUberRide extends TMUberService
   {
     this.requestedXL = requestedXL;
   }
+
+  public boolean isPooled()
+  {
+    return pooled;
+  }
+
+  public void setPooled(boolean pooled)
+  {
+    this.pooled = pooled;
+  }
+
+  /*
+   * Print Information about a Ride Request
+   */
+  public void printInfo()
+  {
+    super.printInfo();
+    if (requestedXL || pooled || numPassengers > 1)
+      System.out.printf("\nPassengers: %-3d XL: %-5s Pool: %-5s", numPassengers, requestedXL, pooled);
+  }
 }
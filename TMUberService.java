@@ -3,26 +3,57 @@
  * General class that simulates a ride or a delivery in a simple Uber app
  * 
  * This class is made abstract since we never create an object.
+ *
+ * Requests are kept compact since thousands can be waiting: addresses are stored packed in a
+ * short each (see RequestCodec.packAddress) and read back as shared strings, the type comes from
+ * the subclass and the cost is kept in whole cents. Request objects are reused through a
+ * RequestPool once they are done, so everything is set in init() rather than the constructor.
+ * The escalation and expiry timers stay with the object and are scheduled again for each request.
  */
 abstract public class TMUberService implements Comparable<TMUberService>
 {
-  private String from;
-  private String to;
+  private short from;   // packed addresses
+  private short to;
   private User user;
-  private String type;  // Currently Ride or Delivery but other services could be added      
   private int distance; // Units are City Blocks
-  private double cost;  // Cost of the service
+  private long costCents; // Cost of the service
+  private double surge; // Surge multiplier applied when the request was made
+  private long requestTime; // When the request was made (milliseconds)
+  private long requestId;   // Given out when the request is queued, for tracing
+  private long pickupTime;  // When a driver took the request, 0 before that
+  private boolean escalated; // Waited past its SLA so drivers in any zone may take it
+  private TimerWheel.Timeout escalationTimer;
+  private TimerWheel.Timeout expiryTimer;
+  private TripHandle tripHandle; // set when the request was submitted through the async API
   
-  public TMUberService(String from, String to, User user, int distance, double cost, String type)
+  public TMUberService(String from, String to, User user, int distance, double cost)
+  {
+    init(from, to, user, distance, cost);
+  }
+
+  // Set up a new or recycled request. Final as the constructor calls it
+  final void init(String from, String to, User user, int distance, double cost)
   {
     //this.serviceNumber = serviceNum;
-    this.from = from;
-    this.to = to;
+    setFrom(from);
+    setTo(to);
     this.user = user;
     this.distance = distance;
-    this.cost = cost;
-    this.type = type;
+    setCost(cost);
     this.distance = 0;
+    this.surge = 1.0;
+    this.requestTime = System.currentTimeMillis();
+    this.requestId = 0;
+    this.pickupTime = 0;
+    this.escalated = false;
+    this.tripHandle = null;
+  }
+
+  // Drop the references a finished request holds before it goes back to the pool
+  void clear()
+  {
+    user = null;
+    tripHandle = null;
   }
 
 
@@ -32,19 +63,19 @@ abstract public class TMUberService implements Comparable<TMUberService>
   // Getters and Setters
   public String getFrom()
   {
-    return from;
+    return RequestCodec.unpackAddress(from);
   }
   public void setFrom(String from)
   {
-    this.from = from;
+    this.from = (short) RequestCodec.packAddress(from);
   }
   public String getTo()
   {
-    return to;
+    return RequestCodec.unpackAddress(to);
   }
   public void setTo(String to)
   {
-    this.to = to;
+    this.to = (short) RequestCodec.packAddress(to);
   }
   public User getUser()
   {
@@ -64,11 +95,75 @@ abstract public class TMUberService implements Comparable<TMUberService>
   }
   public double getCost()
   {
-    return cost;
+    return costCents / 100.0;
   }
   public void setCost(double cost)
   {
-    this.cost = cost;
+    this.costCents = Math.round(cost * 100);
+  }
+  public double getSurge()
+  {
+    return surge;
+  }
+  public void setSurge(double surge)
+  {
+    this.surge = surge;
+  }
+  public long getRequestTime()
+  {
+    return requestTime;
+  }
+  public void setRequestTime(long requestTime)
+  {
+    this.requestTime = requestTime;
+  }
+  public long getRequestId()
+  {
+    return requestId;
+  }
+  public void setRequestId(long requestId)
+  {
+    this.requestId = requestId;
+  }
+  public long getPickupTime()
+  {
+    return pickupTime;
+  }
+  public void setPickupTime(long pickupTime)
+  {
+    this.pickupTime = pickupTime;
+  }
+  public boolean isEscalated()
+  {
+    return escalated;
+  }
+  public void setEscalated(boolean escalated)
+  {
+    this.escalated = escalated;
+  }
+  public TimerWheel.Timeout getEscalationTimer()
+  {
+    return escalationTimer;
+  }
+  public void setEscalationTimer(TimerWheel.Timeout escalationTimer)
+  {
+    this.escalationTimer = escalationTimer;
+  }
+  public TimerWheel.Timeout getExpiryTimer()
+  {
+    return expiryTimer;
+  }
+  public void setExpiryTimer(TimerWheel.Timeout expiryTimer)
+  {
+    this.expiryTimer = expiryTimer;
+  }
+  public TripHandle getTripHandle()
+  {
+    return tripHandle;
+  }
+  public void setTripHandle(TripHandle tripHandle)
+  {
+    this.tripHandle = tripHandle;
   }
 
   // Compare 2 service requests based on distance
@@ -82,13 +177,13 @@ abstract public class TMUberService implements Comparable<TMUberService>
   public boolean equals(Object other)
   {
     TMUberService otherService = (TMUberService) other;
-    return type.equals(otherService.type) && user.equals(otherService.user);
+    return getServiceType().equals(otherService.getServiceType()) && user.equals(otherService.user);
   }
   
   // Print Information 
   public void printInfo()
   {
-    System.out.printf("\nType: %-9s From: %-15s To: %-15s", type, from, to);
+    System.out.printf("\nType: %-9s From: %-15s To: %-15s", getServiceType(), getFrom(), getTo());
     System.out.print("\n");
     //System.out.printf("\nUser: Id: %-9s Name: %-15s Address: %-15s  Wallet: %-15s", user.getAccountId(), user.getName(), from, user.getWallet());
     user.printInfo();
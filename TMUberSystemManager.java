@@ -2,11 +2,19 @@
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Queue;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.Iterator; 
+import java.util.List;
+import java.io.IOException;
 
 /*
  * 
@@ -17,78 +25,223 @@ import java.util.Iterator;
  */
 public class TMUberSystemManager
 {
-  private Map<String, User>   users;
+  private Map<Long, User>     users;
   private ArrayList<Driver> drivers;
 
+  // This manager's own ids, so cities hosted in one process number independently
+  private final IdAllocator userIds;
+  private final IdAllocator driverIds;
+  private final IdAllocator requestIds;
+
   private Queue<TMUberService>[] serviceRequests;
   private ArrayList<User> listUsers;
 
   public double totalRevenue; // Total revenues accumulated via rides and deliveries
+
+  // Supply/demand per zone used to compute the surge multiplier
+  private SurgePricing pricing;
+
+  // Pending pooled rides indexed by pickup block
+  private PendingRideIndex poolIndex;
+  // Extra city blocks a pooled rider will accept compared to riding alone
+  private static final int MAXDETOUR = 3;
+
+  // Pending deliveries grouped by restaurant and pickup block
+  private DeliveryBatcher deliveryBatcher;
+
+  // Finished requests, reused for new ones
+  private RequestPool requestPool;
+
+  // Pending requests are escalated (any zone may pick them up) once they wait SLAMILLIS
+  // and cancelled once they wait REQUESTTTL
+  private static final long SLAMILLIS = 2 * 60 * 1000;
+  private static final long REQUESTTTL = 10 * 60 * 1000;
+  private TimerWheel timers;
+  // Shared by the timers of every request, so scheduling them captures nothing
+  private final TimerWheel.Task escalateTask = t -> escalate((TMUberService) t.getTarget());
+  private final TimerWheel.Task expireTask = t -> expire((TMUberService) t.getTarget());
+  private int slaBreaches;      // requests that waited longer than SLAMILLIS
+  private int escalatedRequests; // escalated requests still waiting in the queues
+  private int expiredRequests;  // requests cancelled because they waited longer than REQUESTTTL
+  private long totalWaitMillis; // time picked up requests spent waiting in the queues
+  private int pickedUp;
+
+  // Driver earnings accrue per trip and are paid out every SETTLEMILLIS
+  private static final long SETTLEMILLIS = 60 * 60 * 1000;
+  private PayoutEngine payouts;
+
+  // Demand forecast and moves of idle drivers towards the zones that will need them, planned
+  // every REBALANCEMILLIS
+  private static final long REBALANCEMILLIS = 5 * 60 * 1000;
+  private DemandForecast forecast;
+  private DemandForecast.Mode rebalanceMode;
+  private List<DemandForecast.Move> recommended;
+  private int rebalanceMoves;
+  // Pickup waits while rebalancing was on, to compare with the waits while it was off
+  private long rebalancedWaitMillis;
+  private int rebalancedPickups;
+
+  // Token buckets per user and per zone in front of the request and cancel commands, null when
+  // turned off. Off by default so the console is not throttled; the servers (ZoneShard,
+  // ReplicatedServer, CityHost) turn it on. A user may make USERBURST commands at once and
+  // USERRATE a second after that, a zone ZONEBURST and ZONERATE; a zone with more than
+  // SHEDBACKLOG waiting requests sheds new ones
+  private static final double USERRATE = 0.2;
+  private static final int USERBURST = 5;
+  private static final double ZONERATE = 50;
+  private static final int ZONEBURST = 200;
+  private static final int SHEDBACKLOG = 500;
+  private AdmissionControl admission;
+
+  // Outcomes of requests sent with an idempotency key, kept IDEMPOTENCYTTL so retries are not booked twice
+  private static final int IDEMPOTENCYKEYS = 100000;
+  private static final long IDEMPOTENCYTTL = 24 * 60 * 60 * 1000;
+  private IdempotencyCache idempotency;
+
+  // Runs the completions of the futures handed out by submitRide/submitDelivery
+  private Executor completions;
+
+  // Lifecycle events for subscribers, created on the first subscribe()
+  private volatile EventStream events;
+
+  // Name and licence plate search, kept up to date as users and drivers come and go
+  public static final int SEARCHPAGE = 20;
+  private PrefixIndex<User> userNames;
+  private PrefixIndex<Driver> driverNames;
+  private PrefixIndex<Driver> licencePlates;
+
+  // Requests from any thread wait in per zone rings until the manager commits them
+  private static final int INTAKESLOTS = 1024;
+  private RequestIntake intake;
+
+  // Driver location pings, applied in one pass every LOCATIONMILLIS (or on applyLocations())
+  private static final long LOCATIONMILLIS = 1000;
+  private LocationIngest locations;
+
+  // Simulation time and driver movement. With movement off drivers jump straight to their
+  // destination as soon as a command is given
+  private SimulationClock clock;
+  private DriverMovement movement;
+  private boolean simulateMovement;
+  // Travel time of every road in the city
+  private RoadGraph roads;
+
+  // Receives every change to the system state, in order, so another process can replay it
+  public interface MutationListener
+  {
+    void mutation(String[] fields);
+  }
+  private MutationListener mutationListener;
+  // A replica only changes through the replicated stream: no timers or movement of its own
+  private boolean replica;
+
+  // Last published read only view of the system, see publishSnapshot()
+  private volatile SystemSnapshot snapshot;
+  private long version;
+  // Parts of the state changed since the last snapshot: single users and drivers, or all of
+  // them after a reorder, and zone queues
+  private Set<User> changedUsers;
+  private Set<Driver> changedDrivers;
+  private boolean usersReordered;
+  private boolean driversReordered;
+  private boolean[] zonesChanged;
+  // Position of every user in listUsers and every driver in drivers, i.e. of its snapshot view
+  private IdentityHashMap<User, Integer> userSlots;
+  private IdentityHashMap<Driver, Integer> driverSlots;
   
-  // Rates per city block
-  private static final double DELIVERYRATE = 1.2;
-  private static final double RIDERATE = 1.5;
+  // The city served: its size, zones and rates per city block
+  private final CityMap city;
+
+  // Counters kept in a registry that may be shared with other cities
+  private MetricsRegistry metrics;
+  private LongAdder requestCount;
+  private LongAdder pickupCount;
+  private LongAdder dropOffCount;
+  private LongAdder cancelCount;
+  private LongAdder expiredCount;
+  private LongAdder rejectedCount;
   
   // Portion of a ride/delivery cost paid to the driver
   private static final double PAYRATE = 0.1;
 
-  // These variables are used to generate user account and driver ids
-  int userAccountId = 900;
-  int driverId = 700;
-
   public TMUberSystemManager()
   {
+    this(CityMap.DEFAULT, TripHandle.defaultExecutor(), new MetricsRegistry());
+  }
+
+  // A manager for one city. Several managers can share the executor and the metrics registry
+  public TMUberSystemManager(CityMap city, Executor completions, MetricsRegistry metrics)
+  {
+    this.city = city;
     // Using treemap so it is automatically sorted by userId
     users   = new TreeMap<>();
     drivers = new ArrayList<Driver>();
+    userIds = IdAllocator.users();
+    driverIds = IdAllocator.drivers();
+    requestIds = IdAllocator.requests();
 
     // Convering map to an arraylist
     listUsers = new ArrayList<>(users.values());
+    userSlots = new IdentityHashMap<User, Integer>();
+    driverSlots = new IdentityHashMap<Driver, Integer>();
+    userNames = new PrefixIndex<User>();
+    driverNames = new PrefixIndex<Driver>();
+    licencePlates = new PrefixIndex<Driver>();
     // Creating Queue object for each zone
-    serviceRequests = (Queue<TMUberService>[]) new Queue[4];
+    // ArrayDeque grows its backing array instead of allocating a node per request
+    serviceRequests = (Queue<TMUberService>[]) new Queue[city.getNumZones()];
     for (int i = 0; i < serviceRequests.length; i++) {
-        serviceRequests[i] = new LinkedList<TMUberService>();
+        serviceRequests[i] = new ArrayDeque<TMUberService>();
     }
     totalRevenue = 0;
+    clock = new SimulationClock();
+    pricing = new SurgePricing(serviceRequests.length, clock);
+    poolIndex = new PendingRideIndex();
+    deliveryBatcher = new DeliveryBatcher();
+    requestPool = new RequestPool();
+    idempotency = new IdempotencyCache(IDEMPOTENCYKEYS, IDEMPOTENCYTTL);
+    roads = new RoadGraph(city.getSize(), DriverMovement.BLOCKMILLIS);
+    movement = new DriverMovement(roads, city);
+    simulateMovement = false;
+    // 1 second ticks, 512 ticks per turn of the wheel
+    timers = new TimerWheel(512, 1000, now());
+    payouts = new PayoutEngine(city.getName());
+    scheduleSettlement();
+    forecast = new DemandForecast(city);
+    rebalanceMode = DemandForecast.Mode.OFF;
+    recommended = new ArrayList<DemandForecast.Move>();
+    scheduleRebalance();
+    locations = new LocationIngest(driverIds);
+    intake = new RequestIntake(this, INTAKESLOTS);
+    scheduleLocations();
+    this.completions = completions;
+    setMetrics(metrics);
+    snapshot = SystemSnapshot.empty(serviceRequests.length);
+    version = 0;
+    changedUsers = Collections.newSetFromMap(new IdentityHashMap<User, Boolean>());
+    changedDrivers = Collections.newSetFromMap(new IdentityHashMap<Driver, Boolean>());
+    zonesChanged = new boolean[serviceRequests.length];
   }
 
+  // Loaded users already carry ids from getUserIds(), so they are added as they are
   void setUsers(ArrayList<User> userList){
-
-    // If there are already registered users, shift the loaded users since it always starts at accountId 9000
-    if(users.size()>=1){
-      int shift = users.size();
-      for (User user : userList) {
-        // Change Id to shift how many users are already registered
-        int newId = Integer.parseInt(user.getAccountId().substring(2))+shift;
-        
-        user.setAccountId("900"+String.valueOf(newId));
-        users.put(user.getAccountId(), user);
-
-        // adding to listusers so it adds in the proper order 
-        listUsers.add(user);
-      }
-    } else{
-      for (User user : userList) {
-        users.put(user.getAccountId(), user);
-        listUsers.add(user);
-      }
+    for (User user : userList) {
+      userExists(user.getAccountNumber());
+      users.put(user.getAccountNumber(), user);
+      // adding to listusers so it adds in the proper order
+      listUser(user);
+      userNames.add(user.getName(), user);
+      publishUser(user);
     }
-    
-    
   }
 
   void setDrivers(ArrayList<Driver> driverList){
-    if(drivers.size()>=1){
-      int shift = drivers.size();
-      for (Driver driver : driverList) {
-        int newId = Integer.parseInt(driver.getId().substring(2))+shift;
-        driver.setId("700"+String.valueOf(newId));
-        drivers.add(driver);
-      }
-    } else{
-      for (Driver driver : driverList) {
-        drivers.add(driver);
-      }
+    for (Driver driver : driverList) {
+      placeInCity(driver);
+      listDriver(driver);
+      indexDriver(driver);
+      pricing.driverAvailable(driver.getZone());
+      publishDriver(driver);
     }
   }
   // General string variable used to store an error message when something is invalid 
@@ -101,35 +254,22 @@ public class TMUberSystemManager
   //   return errMsg;
   // }
   
-  // Generate a new user account id
-  private String generateUserAccountId()
-  {
-    return "" + userAccountId + users.size();
-  }
-  
-  // Generate a new driver id
-  private String generateDriverId()
+  // Given user account id, find user in list of users
+  public User getUser(String accountId)
   {
-    return "" + driverId + drivers.size();
+    return getUser(IdAllocator.parse(accountId));
   }
 
-  // Given user account id, find user in list of users
-  public User getUser(String accountId)
+  public User getUser(long accountId)
   {
     return users.get(accountId);
   }
   
   // Check for duplicate user
-  private void userExists(String accountId) throws UserExistsException
-  {
-    // Iterate through the entries of the map
-    for (Map.Entry<String, User> entry : users.entrySet()) {
-      // Check if the accountId matches the key
-      if (entry.getKey().equals(accountId)) {
-          // If match is found return user exists exception
-          throw new UserExistsException("User Already Exists in System ");
-      }
-    }
+  private void userExists(long accountId) throws UserExistsException
+  {
+    if (users.containsKey(accountId))
+      throw new UserExistsException("User Already Exists in System ");
   }
   
  // Check for duplicate driver
@@ -147,7 +287,7 @@ public class TMUberSystemManager
   
  
  // Given a user, check if user ride/delivery request already exists in service requests
- private void existingRequest(TMUberService req)
+ void existingRequest(TMUberService req)
  {
    // Iterating through the queues 
    for (Queue<TMUberService> queue : serviceRequests) {
@@ -164,15 +304,22 @@ public class TMUberSystemManager
  }
 
   
-  // Calculate the cost of a ride or of a delivery based on distance 
-  private double getDeliveryCost(int distance)
+  // Calculate the cost of a ride or of a delivery based on distance and the surge multiplier
+  // The result is rounded to cents so the quoted price is exactly what is charged at drop off
+  private double getDeliveryCost(int distance, double surge)
+  {
+    return Math.round(distance * city.getDeliveryRate() * surge * 100) / 100.0;
+  }
+
+  private double getRideCost(int distance, double surge)
   {
-    return distance * DELIVERYRATE;
+    return Math.round(distance * city.getRideRate() * surge * 100) / 100.0;
   }
 
-  private double getRideCost(int distance)
+  // Current surge multiplier of a zone (1.0 means no surge)
+  public double getSurge(int zone)
   {
-    return distance * RIDERATE;
+    return pricing.getSurge(zone);
   }
 
   // Go through all drivers and see if one is available
@@ -190,8 +337,9 @@ public class TMUberSystemManager
 
   // get Driver based on driverID
   public Driver getDriver(String accountId){
+    long id = IdAllocator.parse(accountId);
     for(Driver d: drivers){
-      if(d.getId().equals(accountId)){
+      if(d.getIdNumber() == id){
         return d;
       } 
     }
@@ -210,15 +358,17 @@ public class TMUberSystemManager
       throw new DriverNotFoundException(errMsg);
     }
 
+    updateSimulation();
+
     // Get the driver's current address to find the zone
     String currentAddress = driver.getAddress();
-    int zone = CityMap.getCityZone(currentAddress);
+    int zone = city.zoneOf(currentAddress);
 
     // Get the queue for the driver's zone
     Queue<TMUberService> zoneQueue = serviceRequests[zone];
 
-    // Check if any requests in this zone
-    if (zoneQueue.isEmpty()) {
+    // Check if any requests in this zone (escalated requests in other zones also count)
+    if (zoneQueue.isEmpty() && escalatedRequests == 0) {
       errMsg = "No Service Request in Zone " + zone;
       throw new NoServiceRequestException(errMsg);
     }
@@ -228,18 +378,249 @@ public class TMUberSystemManager
       errMsg = "Driver already has active request";
       throw new DriverExistsException(errMsg); 
     }
-    // Remove the TMUberService object from the front of the queue, and save it to a variable
-    TMUberService serviceRequest = zoneQueue.remove();
+    // Take the first request in the queue that this driver's car can serve
+    // (XL requests only go to XL vehicles). With movement simulated, the one it can reach first
+    TMUberService serviceRequest = simulateMovement ? findNearest(driver, zoneQueue, false)
+                                                    : findServable(driver, zoneQueue, false);
+    // Widen the search to escalated requests waiting in the other zones
+    for (int i = 0; i < serviceRequests.length && serviceRequest == null; i++) {
+      if (i != zone) {
+        serviceRequest = simulateMovement ? findNearest(driver, serviceRequests[i], true)
+                                          : findServable(driver, serviceRequests[i], true);
+      }
+    }
+    if (serviceRequest == null) {
+      errMsg = "No Service Request in Zone " + zone + " for Driver " + driverId;
+      throw new NoServiceRequestException(errMsg);
+    }
+    assign(driver, serviceRequest, zone);
+  }
+
+  // Replicated pickup: the driver takes exactly the request the primary's driver took, found by
+  // its zone and position in the queue (the primary may have chosen it by ETA)
+  void pickupAt(String driverId, int zone, int index)
+  {
+    Driver driver = getDriver(driverId);
+    if (driver == null) {
+      errMsg = "Driver not found with ID: "+ driverId;
+      throw new DriverNotFoundException(errMsg);
+    }
+    assign(driver, requestAt(zone, index), city.zoneOf(driver.getAddress()));
+  }
+
+  // Give a queued request (and any pooled riders or batched orders that go with it) to a driver
+  // in zone
+  private void assign(Driver driver, TMUberService serviceRequest, int zone)
+  {
+    // Where the request was, for the replicas
+    int requestZone = city.zoneOf(serviceRequest.getFrom());
+    int index = mutationListener == null ? 0 : positionOf(serviceRequest);
+    removeRequest(serviceRequest);
+    poolIndex.remove(serviceRequest);
+    deliveryBatcher.remove(serviceRequest);
+
+    // Driver no longer counts as supply in this zone
+    pricing.driverUnavailable(zone);
 
     // Set the new service variable in the Driver object
     driver.setService(serviceRequest);
 
+    // Pooled rides collect other compatible riders waiting nearby
+    if (serviceRequest instanceof TMUberRide && ((TMUberRide) serviceRequest).isPooled()) {
+      buildPool(driver, (TMUberRide) serviceRequest);
+    }
+    // Deliveries take the other recent orders from the same restaurant and block
+    if (serviceRequest instanceof TMUberDelivery) {
+      batchDeliveries(driver, (TMUberDelivery) serviceRequest);
+    }
+
     // Set driver status
     driver.setStatus(Driver.Status.DRIVING);
 
-    // Set the driver address and zone to the From address for this service request
-    driver.setAddress(serviceRequest.getFrom());
-    driver.setZone(serviceRequest.getFrom());
+    // Requests assigned to the driver no longer expire
+    for (TMUberService req : driver.getOnBoard()) {
+      timers.cancel(req.getEscalationTimer());
+      timers.cancel(req.getExpiryTimer());
+      if (req.isEscalated()) {
+        escalatedRequests--;
+      }
+      if (req.getTripHandle() != null)
+        req.getTripHandle().assign(driver);
+      emit(SystemEvent.Kind.REQUESTASSIGNED, req, driver, 0);
+    }
+
+    if (simulateMovement) {
+      // Drive to every pickup in turn, then on to the drop offs (see movementListener)
+      driver.setHeadingToPickup(true);
+      movement.setDestination(driver, driver.nextPickup().getFrom(), now());
+    } else {
+      // Set the driver address and zone to the From address of each pickup as it is made
+      movement.stop(driver);
+      while (driver.nextPickup() != null) {
+        TMUberService next = driver.nextPickup();
+        driver.setAddress(next.getFrom());
+        driver.setZone(city.zoneOf(next.getFrom()));
+        collect(driver, now());
+      }
+    }
+    emit(SystemEvent.Kind.DRIVERSTATUS, null, driver, 0);
+    // The driver and the queues the requests were taken from
+    markDriver(driver);
+    for (TMUberService req : driver.getOnBoard())
+      markZone(city.zoneOf(req.getFrom()));
+    publish("PICKUP", driver.getId(), String.valueOf(requestZone), String.valueOf(index));
+  }
+
+  // The driver is at the pickup of its next request: the rider (or order) is now in the car
+  private void collect(Driver driver, long time)
+  {
+    TMUberService req = driver.collect();
+    totalWaitMillis += time - req.getRequestTime();
+    pickedUp++;
+    req.setPickupTime(time);
+    RequestTrace.pickedUp(city.getName(), req, city.zoneOf(req.getFrom()), driver, time);
+    pickupCount.increment();
+    if (rebalanceMode != DemandForecast.Mode.OFF) {
+      rebalancedWaitMillis += time - req.getRequestTime();
+      rebalancedPickups++;
+    }
+  }
+
+  // The first request in the queue this driver can serve
+  private TMUberService findServable(Driver driver, Queue<TMUberService> queue, boolean escalatedOnly)
+  {
+    for (TMUberService candidate : queue) {
+      if ((!escalatedOnly || candidate.isEscalated()) && canServe(driver, candidate)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  // The request in the queue this driver can serve and reach first by road.
+  // Requests already past their SLA go before the others; ties go to the one that waited longest
+  private TMUberService findNearest(Driver driver, Queue<TMUberService> queue, boolean escalatedOnly)
+  {
+    TMUberService best = null;
+    long bestEta = 0;
+    for (TMUberService candidate : queue) {
+      if ((escalatedOnly && !candidate.isEscalated()) || !canServe(driver, candidate)) {
+        continue;
+      }
+      long eta = movement.eta(driver.getAddress(), candidate.getFrom());
+      if (best == null || (candidate.isEscalated() && !best.isEscalated()) ||
+          (candidate.isEscalated() == best.isEscalated() && eta < bestEta)) {
+        best = candidate;
+        bestEta = eta;
+      }
+    }
+    return best;
+  }
+
+  // Check if a driver's car fits this request
+  private boolean canServe(Driver driver, TMUberService req)
+  {
+    if (!(req instanceof TMUberRide)) {
+      return true;
+    }
+    TMUberRide ride = (TMUberRide) req;
+    if (ride.isRequestedXL() && !driver.isXL()) {
+      return false;
+    }
+    return driver.getPassengers() + ride.getNumPassengers() <= driver.getCapacity();
+  }
+
+  // Add pending pooled rides near the first pickup as long as every rider's detour stays within MAXDETOUR
+  private void buildPool(Driver driver, TMUberRide first)
+  {
+    ArrayList<TMUberRide> riders = new ArrayList<TMUberRide>();
+    riders.add(first);
+
+    for (TMUberRide candidate : poolIndex.near(CityMap.parseBlock(first.getFrom()), MAXDETOUR)) {
+      if (!canServe(driver, candidate)) {
+        continue;
+      }
+      riders.add(candidate);
+      ArrayList<TMUberRide> route = planPool(riders);
+      if (route == null) {
+        riders.remove(riders.size() - 1);
+        continue;
+      }
+      // Candidate is now on board so take it out of the pending requests
+      poolIndex.remove(candidate);
+      removeRequest(candidate);
+      driver.setOnBoard(new ArrayList<TMUberService>(route));
+    }
+    // Riders are picked up in the order they joined (see planPool)
+    driver.setPickups(riders);
+  }
+
+  // Pickups happen in the order riders joined, drop offs go to the nearest remaining destination.
+  // Returns the drop off order, or null if some rider's detour is over MAXDETOUR
+  private ArrayList<TMUberRide> planPool(ArrayList<TMUberRide> riders)
+  {
+    // Distance along the route where each rider was picked up
+    int[] pickedAt = new int[riders.size()];
+    int travelled = 0;
+    String at = riders.get(0).getFrom();
+    for (int i = 0; i < riders.size(); i++) {
+      travelled += CityMap.getDistance(at, riders.get(i).getFrom());
+      at = riders.get(i).getFrom();
+      pickedAt[i] = travelled;
+    }
+
+    ArrayList<TMUberRide> order = new ArrayList<TMUberRide>();
+    boolean[] dropped = new boolean[riders.size()];
+    for (int n = 0; n < riders.size(); n++) {
+      int next = -1;
+      for (int i = 0; i < riders.size(); i++) {
+        if (!dropped[i] && (next < 0 ||
+            CityMap.getDistance(at, riders.get(i).getTo()) < CityMap.getDistance(at, riders.get(next).getTo()))) {
+          next = i;
+        }
+      }
+      TMUberRide ride = riders.get(next);
+      travelled += CityMap.getDistance(at, ride.getTo());
+      at = ride.getTo();
+      dropped[next] = true;
+      int direct = CityMap.getDistance(ride.getFrom(), ride.getTo());
+      if (travelled - pickedAt[next] - direct > MAXDETOUR) {
+        return null;
+      }
+      order.add(ride);
+    }
+    return order;
+  }
+
+  // Put every batched order for this pickup on board, in the planned drop off order
+  private void batchDeliveries(Driver driver, TMUberDelivery first)
+  {
+    ArrayList<TMUberDelivery> batch = deliveryBatcher.takeBatch(first);
+    if (batch.size() == 1) {
+      return;
+    }
+    for (TMUberDelivery delivery : batch) {
+      if (delivery != first) {
+        removeRequest(delivery);
+      }
+    }
+    driver.setOnBoard(new ArrayList<TMUberService>(DeliveryBatcher.planRoute(first.getFrom(), batch)));
+    // Every order of the batch is collected at the same restaurant
+    driver.setPickups(batch);
+  }
+
+  // Remove this exact request from whichever zone queue holds it
+  private void removeRequest(TMUberService req)
+  {
+    for (Queue<TMUberService> queue : serviceRequests) {
+      Iterator<TMUberService> it = queue.iterator();
+      while (it.hasNext()) {
+        if (it.next() == req) {
+          it.remove();
+          return;
+        }
+      }
+    }
   }
 
   void driveTo(String driverId, String address){
@@ -252,25 +633,46 @@ public class TMUberSystemManager
     throw new DriverNotFoundException(errMsg);
    }
 
-   if (!CityMap.validAddress(address)){
+   if (!city.isValid(address)){
     throw new AddressException("Invalid Address");
    }
+   if (driver.getStatus() == Driver.Status.AVAILABLE && simulateMovement){
+    updateSimulation();
+   }
+   sendDriver(driver, address);
    // Set the drivers address to the proper address
-   if (driver.getStatus() == Driver.Status.AVAILABLE){
-    driver.setAddress(address);
-    driver.setZone(driver.getAddress());
+   if (driver.getStatus() == Driver.Status.AVAILABLE && simulateMovement){
+    System.out.print("Driver "+driverId+" Heading To "+address+" ETA "+movement.remaining(driver)/1000+" Seconds");
+   } else if (driver.getStatus() == Driver.Status.AVAILABLE){
     System.out.print("Driver "+driverId+" Now in Zone "+driver.getZone());
    }
   }
 
+  // Start an available driver towards address, or put it there straight away without movement
+  private void sendDriver(Driver driver, String address)
+  {
+    if (driver.getStatus() != Driver.Status.AVAILABLE)
+      return;
+    if (simulateMovement) {
+      movement.setDestination(driver, address, now());
+    } else {
+      pricing.driverUnavailable(driver.getZone());
+      driver.setAddress(address);
+      driver.setZone(city.zoneOf(driver.getAddress()));
+      pricing.driverAvailable(driver.getZone());
+      publishPlace(driver);
+    }
+  }
+
   // Print Information (printInfo()) about all registered users in the system
   public void listAllUsers()
   {
+    List<SystemSnapshot.UserView> users = publishSnapshot().getUsers();
     System.out.println();
     int index = 1;
-    for (int i = 0; i<listUsers.size(); i++){
+    for (int i = 0; i<users.size(); i++){
       System.out.printf("%-2s. ", index++);
-      listUsers.get(i).printInfo();
+      users.get(i).printInfo();
       System.out.println();
     }
   }
@@ -278,6 +680,7 @@ public class TMUberSystemManager
   // Print Information (printInfo()) about all registered drivers in the system
   public void listAllDrivers()
   {
+    List<SystemSnapshot.DriverView> drivers = publishSnapshot().getDrivers();
     System.out.println("");
     
     for (int i = 0; i < drivers.size(); i++)
@@ -296,21 +699,23 @@ public class TMUberSystemManager
   // Print Information (printInfo()) about all current service requests
   public void listAllServiceRequests()
   {
+    updateSimulation();
+    SystemSnapshot view = publishSnapshot();
     // Iterate through the queues
-    for(int i = 0; i<4;i++){
+    for(int i = 0; i<view.getNumZones();i++){
       int index = 1;
       System.out.println("");
       System.out.println("ZONE "+i);
       System.out.println("======");
 
       // Iterate through the service requests in each zone (i)
-      for (TMUberService service : serviceRequests[i]) {
+      for (SystemSnapshot.RequestView service : view.getRequests(i)) {
         System.out.println("");
         System.out.print(index + ". ");
         for (int j = 0; j < 60; j++) {
             System.out.print("-");
         }
-        service.printInfo();
+        view.printRequest(service);
         System.out.println("");
         index++;
       }
@@ -328,7 +733,7 @@ public class TMUberSystemManager
       throw new InvalidUserNameException("Invalid User Name " + name);
     }
     // Check to ensure address is valid
-    if (!CityMap.validAddress(address))
+    if (!city.isValid(address))
     {
       errMsg = "Invalid User Address " + address;
       throw new InvalidUserAddressException("Invalid User Address " + address);
@@ -339,15 +744,77 @@ public class TMUberSystemManager
       errMsg = "Invalid Money in Wallet";
       throw new MoneyInWalletException("Invalid Money in Wallet");
     }
-    User user = new User(generateUserAccountId(), name, address, wallet);
+    User user = new User(userIds.next(), name, address, wallet);
 
     // Check for duplicate user
     // Exception is thrown in userExists method
-    userExists(user.getAccountId());
+    userExists(user.getAccountNumber());
 
-    users.put(user.getAccountId(), user);
-    listUsers.add(user);
-    
+    users.put(user.getAccountNumber(), user);
+    listUser(user);
+    userNames.add(user.getName(), user);
+    publishUser(user);
+  }
+
+  // Add a user that already has an account id (e.g. registered through the shard router)
+  void addUser(User user)
+  {
+    userExists(user.getAccountNumber());
+    userIds.advancePast(user.getAccountNumber());
+    users.put(user.getAccountNumber(), user);
+    listUser(user);
+    userNames.add(user.getName(), user);
+    publishUser(user);
+  }
+
+  // Take over a driver that already has an id (e.g. handed over from another shard)
+  void addDriver(Driver driver)
+  {
+    driverExists(driver);
+    placeInCity(driver);
+    driverIds.advancePast(driver.getIdNumber());
+    listDriver(driver);
+    indexDriver(driver);
+    if (driver.getStatus() == Driver.Status.AVAILABLE)
+      pricing.driverAvailable(driver.getZone());
+    publishDriver(driver);
+  }
+
+  // Hand a driver over to someone else. Only available drivers can leave
+  Driver removeDriver(String driverId)
+  {
+    Driver driver = getDriver(driverId);
+    if (driver == null) {
+      errMsg = "Driver not found with ID: "+ driverId;
+      throw new DriverNotFoundException(errMsg);
+    }
+    if (driver.getStatus() != Driver.Status.AVAILABLE) {
+      errMsg = "Driver already has active request";
+      throw new DriverExistsException(errMsg);
+    }
+    movement.stop(driver);
+    drivers.remove(driver);
+    reslotDrivers();
+    driverNames.remove(driver.getName(), driver);
+    licencePlates.remove(driver.getLicensePlate(), driver);
+    pricing.driverUnavailable(driver.getZone());
+    driver.pay(payouts.release(driverId));      // unsettled earnings leave with the driver
+    publish("REMOVEDRIVER", driverId);
+    emit(SystemEvent.Kind.DRIVERREMOVED, null, driver, 0);
+    return driver;
+  }
+
+  // Mark a driver's car as an XL vehicle (or back to a regular one)
+  public void setDriverXL(String driverId, boolean xl)
+  {
+    Driver driver = getDriver(driverId);
+    if (driver == null) {
+      errMsg = "Driver not found with ID: "+ driverId;
+      throw new DriverNotFoundException(errMsg);
+    }
+    driver.setXL(xl);
+    markDriver(driver);
+    publish("XL", driverId, String.valueOf(xl));
   }
 
   // Add a new driver to the system
@@ -374,19 +841,220 @@ public class TMUberSystemManager
     }
 
     // Check to ensure drivers address is valid
-    if (!CityMap.validAddress(address)){
+    if (!city.isValid(address)){
       throw new AddressException("Invalid Address: " + address);
     }
     
     // Check for duplicate driver. If not a duplicate, add the driver to the drivers list
-    Driver driver = new Driver(generateDriverId(), name, carModel, carLicencePlate, address);
+    Driver driver = new Driver(driverIds.next(), name, carModel, carLicencePlate, address);
     driverExists(driver);
-    drivers.add(driver);  
+    placeInCity(driver);
+    listDriver(driver);
+    indexDriver(driver);
+    pricing.driverAvailable(driver.getZone());
+    publishDriver(driver);
   }
 
   // Request a ride. User wallet will be reduced when drop off happens
   public void requestRide(String accountId, String from, String to)
   {
+    requestRide(accountId, from, to, 1, false, false);
+  }
+
+  // Request a ride for a number of passengers, optionally in an XL vehicle and/or shared with other riders
+  public void requestRide(String accountId, String from, String to, int numPassengers, boolean xl, boolean pooled)
+  {
+    await(intake.submitRide(accountId, from, to, numPassengers, xl, pooled));
+  }
+
+  // Request a food delivery. User wallet will be reduced when drop off happens
+  public void requestDelivery(String accountId, String from, String to, String restaurant, String foodOrderId)
+  {
+    await(intake.submitDelivery(accountId, from, to, restaurant, foodOrderId));
+  }
+
+  // Request a ride at most once per idempotency key. A retry with a key already used gets the
+  // first outcome back without running again: the id of the request that was queued, or the
+  // exception it failed with. Failures that a retry could get past (see transientFailure) are not
+  // remembered, and a null key means the request has no key
+  public long requestRide(String idempotencyKey, String accountId, String from, String to, int numPassengers,
+                          boolean xl, boolean pooled)
+  {
+    IdempotencyCache.Outcome first = firstOutcome(idempotencyKey, accountId);
+    if (first != null)
+      return first.requestId;
+    try {
+      TMUberService req = await(intake.submitRide(accountId, from, to, numPassengers, xl, pooled));
+      return rememberKey(idempotencyKey, accountId, req.getRequestId());
+    } catch (RuntimeException e) {
+      if (idempotencyKey != null && !transientFailure(e))
+        idempotency.putFailure(idempotencyKey, accountId, e, now());
+      throw e;
+    }
+  }
+
+  public long requestDelivery(String idempotencyKey, String accountId, String from, String to, String restaurant,
+                              String foodOrderId)
+  {
+    IdempotencyCache.Outcome first = firstOutcome(idempotencyKey, accountId);
+    if (first != null)
+      return first.requestId;
+    try {
+      TMUberService delivery = await(intake.submitDelivery(accountId, from, to, restaurant, foodOrderId));
+      return rememberKey(idempotencyKey, accountId, delivery.getRequestId());
+    } catch (RuntimeException e) {
+      if (idempotencyKey != null && !transientFailure(e))
+        idempotency.putFailure(idempotencyKey, accountId, e, now());
+      throw e;
+    }
+  }
+
+  // Failures that depend on the moment rather than the request: the wallet, the load on the
+  // system, or a request of the user's still pending. A retry may well succeed
+  private static boolean transientFailure(RuntimeException e)
+  {
+    return e instanceof InvalidFundsException || e instanceof AdmissionException ||
+           e instanceof IntakeFullException || e instanceof RideExistsException ||
+           e instanceof DelExistsException;
+  }
+
+  // The outcome of the first request sent with this key, null if the key is new or null
+  private IdempotencyCache.Outcome firstOutcome(String idempotencyKey, String accountId)
+  {
+    if (idempotencyKey == null)
+      return null;
+    IdempotencyCache.Outcome first = idempotency.get(idempotencyKey, now());
+    if (first == null)
+      return null;
+    if (!first.accountId.equals(accountId)) {
+      errMsg = "Idempotency Key Already Used by Another Account";
+      throw new IdempotencyKeyException(errMsg);
+    }
+    if (first.error != null) {
+      errMsg = first.error.getMessage();
+      throw first.error;
+    }
+    return first;
+  }
+
+  // Remember a queued request under its key; replicas get the key too so a retry sent to a
+  // promoted replica is still recognised
+  long rememberKey(String idempotencyKey, String accountId, long requestId)
+  {
+    if (idempotencyKey == null)
+      return requestId;
+    idempotency.putSuccess(idempotencyKey, accountId, requestId, now());
+    publish("IDEMKEY", idempotencyKey, accountId, String.valueOf(requestId));
+    return requestId;
+  }
+
+  // Async versions of requestRide/requestDelivery. Instead of throwing, a rejected request fails
+  // the futures of the handle returned (errMsg is set all the same)
+  public TripHandle submitRide(String accountId, String from, String to, int numPassengers, boolean xl, boolean pooled)
+  {
+    TripHandle handle = new TripHandle(completions);
+    submit(handle, intake.submit(false, accountId, from, to, numPassengers, xl, pooled, null, null, handle));
+    return handle;
+  }
+
+  public TripHandle submitDelivery(String accountId, String from, String to, String restaurant, String foodOrderId)
+  {
+    TripHandle handle = new TripHandle(completions);
+    submit(handle, intake.submit(true, accountId, from, to, 0, false, false, restaurant, foodOrderId, handle));
+    return handle;
+  }
+
+  // The intake fails the handle itself when the request is turned away
+  private void submit(TripHandle handle, long ticket)
+  {
+    try {
+      await(ticket);
+    } catch (IntakeFullException e) {
+      handle.fail(e);
+    } catch (RuntimeException e) {
+      // handle already failed
+    }
+  }
+
+  // Request intake
+
+  // Where requests are submitted from any thread, see RequestIntake
+  public RequestIntake getIntake()
+  {
+    return intake;
+  }
+
+  // Run every request waiting in the intake through validation, pricing and dedup into its zone
+  // queue. Returns how many were taken
+  public int drainIntake()
+  {
+    return intake.drain();
+  }
+
+  // Commit the intake up to a request submitted on this thread, and return the queued request or
+  // throw what it was turned away with
+  private TMUberService await(long ticket)
+  {
+    if (ticket < 0) {
+      errMsg = "Too Many Pending Requests - Try Again";
+      throw new IntakeFullException(errMsg);
+    }
+    intake.drainFor(ticket);
+    if (intake.getError() != null) {
+      errMsg = intake.getError().getMessage();
+      throw intake.getError();
+    }
+    return intake.getCommitted();
+  }
+
+  // Last stages of the intake: dedup a priced request and add it to its zone queue
+  void commit(TMUberService req, TripHandle handle)
+  {
+    try {
+      // Only one ride request per user at a time, one delivery per restaurant and food order #
+      existingRequest(req);
+      if (handle != null)
+        req.setTripHandle(handle);
+      enqueue(req);
+    } catch (RuntimeException e) {
+      // A duplicate or unfunded request never reached a queue, so nothing else holds it
+      req.setTripHandle(null);
+      requestPool.recycle(req);
+      throw e;
+    }
+    if (handle != null)
+      handle.setRequest(req);
+  }
+
+  public void setCompletionExecutor(Executor executor)
+  {
+    completions = executor;
+  }
+
+  // The stages of the RequestIntake pipeline
+
+  // Validate the user account and the from/to addresses of a new request
+  User checkRequest(String accountId, String from, String to)
+  {
+    int zone = city.zoneOf(from);
+    long account = IdAllocator.parse(accountId);
+    RequestTrace.submitted(city.getName(), account, zone);
+    RequestTrace.Validated trace = RequestTrace.validating();
+    boolean accepted = false;
+    try {
+      User user = validateRequest(accountId, from, to, zone);
+      accepted = true;
+      return user;
+    } finally {
+      RequestTrace.validated(trace, city.getName(), account, zone, accepted);
+    }
+  }
+
+  private User validateRequest(String accountId, String from, String to, int zone)
+  {
+    admit(accountId, zone, zone >= 0 ? serviceRequests[zone].size() : 0);
+    // Drop stale requests first so they do not block the user from requesting again
+    updateSimulation();
     // Check valid user account
     User user = getUser(accountId);
     if (user == null)
@@ -395,85 +1063,122 @@ public class TMUberSystemManager
       throw new UserNotFoundException(errMsg);
     }
     // Check for a valid from and to addresses
-    if (!CityMap.validAddress(from))
+    if (!city.isValid(from))
     {
       errMsg = "Invalid Address " + from;
       throw new AddressException(errMsg);
     }
-    if (!CityMap.validAddress(to))
+    if (!city.isValid(to))
     {
       errMsg = "Invalid Address " + to;
       throw new AddressException(errMsg);
     }
-    // Get the distance for this ride
-    int distance = CityMap.getDistance(from, to);         // city blocks
-    int requestZone = CityMap.getCityZone(from);
     // Distance == 0 or == 1 is not accepted - walk!
-    if (distance <= 1)
+    if (CityMap.getDistance(from, to) <= 1)
     {
       errMsg = "Insufficient Travel Distance";
       throw new DistanceException(errMsg);
     }
+    return user;
+  }
+
+  // Price a ride and build the request
+  TMUberRide quoteRide(User user, String from, String to, int numPassengers, boolean xl, boolean pooled)
+  {
+    // Check the passengers fit in the requested vehicle
+    int seats = xl ? Driver.XLSEATS : Driver.SEATS;
+    if (numPassengers < 1 || numPassengers > seats)
+    {
+      errMsg = "Invalid Number of Passengers " + numPassengers;
+      throw new PassengerException(errMsg);
+    }
+    int distance = CityMap.getDistance(from, to);         // city blocks
+    int requestZone = city.zoneOf(from);
     // Check if user has enough money in wallet for this trip
-    double cost = getRideCost(distance);
-    if (user.getWallet() < cost)
+    // The surge multiplier is read once here and fixed for the life of the request
+    double surge = pricing.getSurge(requestZone);
+    double cost = getRideCost(distance, surge);
+    if (user.getAvailable() < cost)
     {
       errMsg = "Insufficient Funds";
       throw new InvalidFundsException(errMsg);
     }
 
     // Create the request
-    TMUberRide req = new TMUberRide(from, to, user, distance, cost);
-    
-    // Check if existing ride request for this user - only one ride request per user at a time
-    existingRequest(req);
-    // Add to appropriate queue based on zone #
-    serviceRequests[requestZone].add(req);
-    user.addRide();
+    TMUberRide req = requestPool.ride(from, to, user, distance, cost);
+    req.setSurge(surge);
+    req.setNumPassengers(numPassengers);
+    req.setRequestedXL(xl);
+    req.setPooled(pooled);
+    return req;
   }
 
-  // Request a food delivery. User wallet will be reduced when drop off happens
-  public void requestDelivery(String accountId, String from, String to, String restaurant, String foodOrderId)
+  // Price a delivery and build the request
+  TMUberDelivery quoteDelivery(User user, String from, String to, String restaurant, String foodOrderId)
   {
-    // Check for valid user account
-    User user = getUser(accountId);
-    if (user == null) {
-      errMsg = "User Account Not Found " + accountId;
-      throw new UserNotFoundException(errMsg);
-    }
-
-  // Check for valid from and to address
-    if (!CityMap.validAddress(from)) {
-      errMsg = "Invalid Address " + from;
-      throw new AddressException(errMsg);
-    }
-    if (!CityMap.validAddress(to)) {
-      errMsg = "Invalid Address " + to;
-      throw new AddressException(errMsg);
+    int distance = CityMap.getDistance(from, to); // city blocks
+    int requestZone = city.zoneOf(from);
+    // Check if user has enough money in wallet for this delivery
+    double surge = pricing.getSurge(requestZone);
+    double cost = getDeliveryCost(distance, surge);
+    if (user.getAvailable() < cost) {
+      errMsg = "Insufficient Funds";
+      throw new InvalidFundsException(errMsg);
     }
 
-  // Get the distance to travel
-    int distance = CityMap.getDistance(from, to); // city blocks
-    int requestZone = CityMap.getCityZone(from);
+    TMUberDelivery delivery = requestPool.delivery(from, to, user, distance, cost, restaurant, foodOrderId);
+    delivery.setSurge(surge);
+    return delivery;
+  }
 
-    
-    if (distance <= 1) {
-      errMsg = "Insufficient Travel Distance";
-      throw new DistanceException(errMsg);
-    }
+  // Add a checked and priced request to the queue of its zone
+  void enqueue(TMUberService req)
+  {
+    enqueue(req, now());
+  }
 
-  // Check if user has enough money in wallet for this delivery
-    double cost = getDeliveryCost(distance);
-    if (user.getWallet() < cost) {
+  private void enqueue(TMUberService req, long requestTime)
+  {
+    // Hold the quoted cost until drop off so queued requests can never add up to more than the wallet.
+    // A replica takes the primary's word for it
+    if (replica) {
+      req.getUser().hold(req.getCost());
+    } else if (!req.getUser().reserve(req.getCost())) {
       errMsg = "Insufficient Funds";
       throw new InvalidFundsException(errMsg);
     }
+    int requestZone = city.zoneOf(req.getFrom());
+    serviceRequests[requestZone].add(req);
+    req.setRequestTime(requestTime);
+    req.setRequestId(requestIds.next());
+    RequestTrace.enqueued(city.getName(), req, requestZone, serviceRequests[requestZone].size());
+    requestCount.increment();
+    // Only requests that made it into a queue count as demand
+    pricing.recordRequest(requestZone);
+    forecast.record(requestZone, requestTime);
+    if (req.getEscalationTimer() == null) {
+      // Made once per request object, a recycled request schedules its timers again
+      req.setEscalationTimer(timers.timeout(req, escalateTask));
+      req.setExpiryTimer(timers.timeout(req, expireTask));
+    }
+    timers.schedule(req.getEscalationTimer(), SLAMILLIS);
+    timers.schedule(req.getExpiryTimer(), REQUESTTTL);
+    if (req instanceof TMUberRide) {
+      if (((TMUberRide) req).isPooled())
+        poolIndex.add((TMUberRide) req);
+      req.getUser().addRide();
+    } else if (req instanceof TMUberDelivery) {
+      deliveryBatcher.add((TMUberDelivery) req);
+      req.getUser().addDelivery();
+    }
+    publishRequest(req);
+  }
 
-    TMUberDelivery delivery = new TMUberDelivery(from, to, user, distance, cost, restaurant, foodOrderId); 
-    // Check if existing delivery request for this user for this restaurant and food order #
-    existingRequest(delivery);
-    serviceRequests[requestZone].add(delivery);
-    user.addDelivery();
+  // Add a request exactly as it was priced by the primary (replication)
+  void replay(TMUberService req, long requestTime)
+  {
+    existingRequest(req);
+    enqueue(req, requestTime);
   }
 
 
@@ -481,8 +1186,9 @@ public class TMUberSystemManager
   // parameter request is the index in the serviceRequests array list
   public void cancelServiceRequest(int reqnum, int zone)
   {
+    updateSimulation();
     // check if valid zone input
-    if (zone < 0 || zone > 3) {
+    if (zone < 0 || zone >= serviceRequests.length) {
       throw new InvalidZoneException("Invalid Zone #");
     }
     // Check if valid driverID
@@ -501,15 +1207,21 @@ public class TMUberSystemManager
 
       // Once pointer is at the right request 
       if(index == reqnum){
-        User u = service.getUser();
-        if (service.getServiceType().equals("DELIVERY")){
-          u.decrementDelivery();
-        } else if (service.getServiceType().equals("RIDE")){
-          u.decrementRide();
-        }
-        System.out.println("Service request for " + u.getName() + " cancelled");
+        // Cancels only shorten the queue, so they are rate limited but never shed
+        admit(service.getUser().getAccountId(), zone, 0);
         // Remove it using iterator 
         it.remove();
+        releaseRequest(service);
+        if (service.getTripHandle() != null)
+          service.getTripHandle().fail(new RequestCancelledException("Service Request Cancelled"));
+        emit(SystemEvent.Kind.REQUESTCANCELLED, service, null, 0);
+        RequestTrace.cancelled(city.getName(), service, zone, now(), false);
+        cancelCount.increment();
+        markUser(service.getUser());
+        markZone(zone);
+        publish("CANCEL", String.valueOf(reqnum), String.valueOf(zone));
+        System.out.println("Service request for " + service.getUser().getName() + " cancelled");
+        requestPool.recycle(service);
         // Stop iterating
         break;
       }
@@ -517,42 +1229,908 @@ public class TMUberSystemManager
       index++;
     }
   }
-  
-  // Drop off a ride or a delivery. This completes a service.
-  // parameter request is the index in the serviceRequests array list
-  public void dropOff(String driverId)
+
+  // Undo a request that left the queues without being picked up (cancelled or expired)
+  private void releaseRequest(TMUberService service)
   {
-    Driver driver= getDriver(driverId);
-    if (driver == null) {
-      errMsg = "Invalid Driver Id";
-      throw new DriverNotFoundException(errMsg);
+    User u = service.getUser();
+    if (service.getServiceType().equals("DELIVERY")){
+      u.decrementDelivery();
+    } else if (service.getServiceType().equals("RIDE")){
+      u.decrementRide();
     }
-    TMUberService service = driver.getService();
-    if(service == null){
-      errMsg = "Driver "+driverId+" has no active requests";
-      throw new NoServiceRequestException(errMsg);
+    u.release(service.getCost());
+    poolIndex.remove(service);
+    deliveryBatcher.remove(service);
+    timers.cancel(service.getEscalationTimer());
+    timers.cancel(service.getExpiryTimer());
+    if (service.isEscalated()) {
+      escalatedRequests--;
     }
-    User user = service.getUser();
+  }
+
+  // City and metrics
+
+  public CityMap getCity()
+  {
+    return city;
+  }
+
+  // Allocators for loaders that number users and drivers before adding them (see TMUberRegistered)
+  public IdAllocator getUserIds()
+  {
+    return userIds;
+  }
+
+  public IdAllocator getDriverIds()
+  {
+    return driverIds;
+  }
+
+  // Count this city's requests, pickups etc. in registry as "<city>.<counter>"
+  public void setMetrics(MetricsRegistry registry)
+  {
+    metrics = registry;
+    String prefix = city.getName() + ".";
+    requestCount = registry.counter(prefix + "requests");
+    pickupCount = registry.counter(prefix + "pickups");
+    dropOffCount = registry.counter(prefix + "dropoffs");
+    cancelCount = registry.counter(prefix + "cancels");
+    expiredCount = registry.counter(prefix + "expired");
+    rejectedCount = registry.counter(prefix + "rejected");
+  }
+
+  public MetricsRegistry getMetrics()
+  {
+    return metrics;
+  }
+
+  // Set a driver's zone from its address in this city. Drivers are created with the zone of the
+  // default city
+  private void placeInCity(Driver driver)
+  {
+    int zone = city.zoneOf(driver.getAddress());
+    if (zone < 0) {
+      errMsg = "Invalid Address: " + driver.getAddress();
+      throw new AddressException(errMsg);
+    }
+    driver.setZone(zone);
+  }
+
+  // Admission control
+
+  public void setAdmissionControl(boolean on)
+  {
+    admission = on ? new AdmissionControl(serviceRequests.length, USERRATE, USERBURST, ZONERATE, ZONEBURST, SHEDBACKLOG) : null;
+  }
+
+  public AdmissionControl getAdmissionControl()
+  {
+    return admission;
+  }
+
+  // Turn a command away if its user or zone is over its rate, or its zone is shedding load.
+  // Replicas apply whatever the primary admitted
+  private void admit(String accountId, int zone, int backlog)
+  {
+    if (admission == null || replica)
+      return;
+    switch (admission.admit(IdAllocator.parse(accountId), zone, backlog, now()))
+    {
+      case ADMITTED:
+        return;
+      case USERLIMITED:
+        errMsg = "Too Many Requests From User " + accountId;
+        break;
+      case ZONELIMITED:
+        errMsg = "Too Many Requests in Zone " + zone;
+        break;
+      case SHED:
+        errMsg = "Zone " + zone + " Is Busy - Try Again Later";
+        break;
+    }
+    rejectedCount.increment();
+    throw new AdmissionException(errMsg);
+  }
+
+  // Replication support
+
+  public void setMutationListener(MutationListener listener)
+  {
+    mutationListener = listener;
+  }
+
+  // Replicas keep no timers or movement of their own, everything comes from the primary
+  public void setReplica(boolean replica)
+  {
+    this.replica = replica;
+  }
+
+  public boolean isReplica()
+  {
+    return replica;
+  }
+
+  private void publish(String... fields)
+  {
+    if (mutationListener != null)
+      mutationListener.mutation(fields);
+  }
+
+  private void publishUser(User u)
+  {
+    markUser(u);
+    emit(SystemEvent.Kind.USERADDED, u);
+    publish("ADDUSER", u.getAccountId(), u.getName(), u.getAddress(), String.valueOf(u.getWallet()));
+  }
+
+  private void publishDriver(Driver d)
+  {
+    markDriver(d);
+    emit(SystemEvent.Kind.DRIVERADDED, null, d, 0);
+    publish("ADDDRIVER", d.getId(), d.getName(), d.getCarModel(), d.getLicensePlate(), d.getAddress(),
+            String.valueOf(d.getWallet()), String.valueOf(d.isXL()));
+  }
+
+  private void publishPlace(Driver d)
+  {
+    markDriver(d);
+    publish("PLACE", d.getId(), d.getAddress());
+  }
+
+  // Requests carry their quoted price and time so replicas do not re-price them
+  private void publishRequest(TMUberService req)
+  {
+    emit(SystemEvent.Kind.REQUESTQUEUED, req, null, req.getCost());
+    markUser(req.getUser());
+    markZone(city.zoneOf(req.getFrom()));
+    if (mutationListener == null)
+      return;
+    String cost = String.valueOf(req.getCost());
+    String surge = String.valueOf(req.getSurge());
+    String time = String.valueOf(req.getRequestTime());
+    if (req instanceof TMUberRide) {
+      TMUberRide ride = (TMUberRide) req;
+      publish("REQRIDE", req.getUser().getAccountId(), req.getFrom(), req.getTo(),
+              String.valueOf(ride.getNumPassengers()), String.valueOf(ride.isRequestedXL()),
+              String.valueOf(ride.isPooled()), cost, surge, time);
+    } else {
+      TMUberDelivery delivery = (TMUberDelivery) req;
+      publish("REQDLVY", req.getUser().getAccountId(), req.getFrom(), req.getTo(),
+              delivery.getRestaurant(), delivery.getFoodOrderId(), cost, surge, time);
+    }
+  }
+
+  // Event stream
+
+  // Subscribe to lifecycle events. Events are delivered on the completion executor, see EventStream
+  public void subscribe(Flow.Subscriber<? super SystemEvent> subscriber)
+  {
+    getEvents().subscribe(subscriber);
+  }
+
+  public synchronized EventStream getEvents()
+  {
+    if (events == null)
+      events = new EventStream(completions, EventStream.BUFFER);
+    return events;
+  }
+
+  // Emit an event about a request and/or a driver, if anyone is listening. The zone is the
+  // request's pickup zone, or the driver's zone for driver events
+  private void emit(SystemEvent.Kind kind, TMUberService req, Driver driver, double amount)
+  {
+    EventStream stream = events;
+    if (stream == null || !stream.hasSubscribers())
+      return;
+    long account = req != null ? req.getUser().getAccountNumber() : -1;
+    long driverId = driver != null ? driver.getIdNumber() : -1;
+    int zone = req != null ? city.zoneOf(req.getFrom()) : driver.getZone();
+    Driver.Status status = req == null && driver != null ? driver.getStatus() : null;
+    stream.emit(new SystemEvent(kind, now(), account, driverId, zone, status,
+                                req != null ? req.getFrom() : null, req != null ? req.getTo() : null, amount));
+  }
+
+  // Emit an event about a user, if anyone is listening. User events have no zone
+  private void emit(SystemEvent.Kind kind, User user)
+  {
+    EventStream stream = events;
+    if (stream == null || !stream.hasSubscribers())
+      return;
+    stream.emit(new SystemEvent(kind, now(), user.getAccountNumber(), -1, -1, null, null, null, 0));
+  }
+
+  // Pending requests are identified by zone and position in the zone queue
+  private void publishPosition(String kind, TMUberService service)
+  {
+    if (mutationListener == null)
+      return;
+    publish(kind, String.valueOf(city.zoneOf(service.getFrom())), String.valueOf(positionOf(service)));
+  }
+
+  // Position of a queued request in its zone queue, counting from 1 (see requestAt)
+  private int positionOf(TMUberService service)
+  {
+    int index = 1;
+    for (TMUberService s : serviceRequests[city.zoneOf(service.getFrom())]) {
+      if (s == service)
+        break;
+      index++;
+    }
+    return index;
+  }
+
+  // Demand forecasting and rebalancing
+
+  private void scheduleRebalance()
+  {
+    timers.schedule(REBALANCEMILLIS, forecast, t -> {
+      rebalance();
+      timers.schedule(t, REBALANCEMILLIS);
+    });
+  }
+
+  public void setRebalanceMode(DemandForecast.Mode mode)
+  {
+    rebalanceMode = mode;
+    recommended.clear();
+  }
+
+  // Set the mode by name: OFF, RECOMMEND or AUTO, in any case
+  public void setRebalanceMode(String mode)
+  {
+    for (DemandForecast.Mode m : DemandForecast.Mode.values()) {
+      if (m.name().equalsIgnoreCase(mode.trim())) {
+        setRebalanceMode(m);
+        return;
+      }
+    }
+    errMsg = "Invalid Rebalance Mode " + mode;
+    throw new InvalidRebalanceModeException(errMsg);
+  }
+
+  public DemandForecast.Mode getRebalanceMode()
+  {
+    return rebalanceMode;
+  }
+
+  // Plan moves of idle drivers towards the demand expected next. In RECOMMEND mode they are only
+  // kept for listForecast(), in AUTO mode the drivers are sent straight away
+  public List<DemandForecast.Move> rebalance()
+  {
+    if (rebalanceMode == DemandForecast.Mode.OFF)
+      return recommended;
+    ArrayList<Driver> idle = new ArrayList<Driver>();
+    for (Driver d : drivers) {
+      if (d.getStatus() == Driver.Status.AVAILABLE && !movement.isMoving(d))
+        idle.add(d);
+    }
+    int[] waiting = new int[serviceRequests.length];
+    for (int i = 0; i < waiting.length; i++)
+      waiting[i] = serviceRequests[i].size();
+    recommended = forecast.plan(idle, waiting, now(), movement);
+    if (rebalanceMode == DemandForecast.Mode.AUTO) {
+      for (DemandForecast.Move m : recommended)
+        sendDriver(m.driver, m.address);
+      rebalanceMoves += recommended.size();
+    }
+    return recommended;
+  }
+
+  // Print the demand expected in each zone and the moves last planned
+  public void listForecast()
+  {
+    updateSimulation();
+    long time = now();
+    for (int z = 0; z < serviceRequests.length; z++) {
+      int idle = 0;
+      for (Driver d : drivers) {
+        if (d.getZone() == z && d.getStatus() == Driver.Status.AVAILABLE)
+          idle++;
+      }
+      System.out.printf("Zone %d: %.1f Requests/Hour Expected, %d Waiting, %d Idle Drivers\n",
+                        z, forecast.expected(z, time), serviceRequests[z].size(), idle);
+    }
+    System.out.println("Rebalancing: " + rebalanceMode);
+    for (DemandForecast.Move m : recommended)
+      System.out.println("Move Driver " + m.driver.getId() + " to Zone " + m.zone + " (" + m.address + ")");
+  }
+
+  // Payouts
+
+  private void scheduleSettlement()
+  {
+    timers.schedule(SETTLEMILLIS, payouts, t -> {
+      try {
+        settlePayouts();
+      } catch (SettlementException e) {
+        System.out.println(e.getMessage());
+      }
+      timers.schedule(t, SETTLEMILLIS);
+    });
+  }
+
+  // Run a settlement cycle now: every driver's earnings since the last cycle, less the payout
+  // fee plus adjustments, go to the driver's wallet and the cycle is written to its settlement
+  // file (replicas credit the same payouts but leave the file to the primary)
+  public List<PayoutEngine.Payout> settlePayouts()
+  {
+    List<PayoutEngine.Payout> cycle = payouts.settle();
+    for (PayoutEngine.Payout p : cycle) {
+      Driver driver = getDriver(p.driverId);
+      if (driver != null) {
+        driver.pay(p.payoutCents / 100.0);
+        markDriver(driver);
+        emit(SystemEvent.Kind.PAYOUT, null, driver, p.payoutCents / 100.0);
+      }
+      totalRevenue += p.feeCents / 100.0;      // payout fee is revenue
+    }
+    publish("SETTLE");
+    if (!replica) {
+      try {
+        payouts.write(cycle);
+      } catch (IOException e) {
+        errMsg = "Settlement #" + payouts.getCycle() + " Paid but File Not Written: " + e.getMessage();
+        throw new SettlementException(errMsg);
+      }
+    }
+    return cycle;
+  }
+
+  public int getSettlementCycle()
+  {
+    return payouts.getCycle();
+  }
+
+  // Bonus (positive) or correction (negative) to a driver's next payout
+  public void adjustDriverPay(String driverId, double amount)
+  {
+    if (getDriver(driverId) == null) {
+      errMsg = "Driver not found with ID: "+ driverId;
+      throw new DriverNotFoundException(errMsg);
+    }
+    payouts.adjust(driverId, amount);
+    publish("ADJUST", driverId, String.valueOf(amount));
+  }
+
+  // Set a user's wallet to the balance left after a trip on another shard
+  // (charged as the difference, User.setWallet only takes whole dollars)
+  public void syncWallet(String accountId, double wallet)
+  {
+    User user = getUser(accountId);
+    if (user == null)
+      return;
+    user.payForService(user.getWallet() - wallet);
+    markUser(user);
+    publish("SETWALLET", accountId, String.valueOf(wallet));
+  }
+
+  public void setSettlementDirectory(String directory)
+  {
+    payouts.setDirectory(directory);
+  }
+
+  // Snapshots
+
+  // Record what a change touched so the next snapshot only makes new views of those
+  private void markUser(User user)
+  {
+    changedUsers.add(user);
+  }
+
+  private void markDriver(Driver driver)
+  {
+    changedDrivers.add(driver);
+  }
+
+  private void markZone(int zone)
+  {
+    if (zone >= 0)
+      zonesChanged[zone] = true;
+  }
+
+  // Users and drivers are only appended to their lists, except for sorts and removals which
+  // move every view (see reslotUsers/reslotDrivers)
+  private void listUser(User user)
+  {
+    userSlots.put(user, listUsers.size());
+    listUsers.add(user);
+  }
+
+  private void listDriver(Driver driver)
+  {
+    driverSlots.put(driver, drivers.size());
+    drivers.add(driver);
+  }
+
+  private void reslotUsers()
+  {
+    userSlots.clear();
+    for (int i = 0; i < listUsers.size(); i++)
+      userSlots.put(listUsers.get(i), i);
+    usersReordered = true;
+  }
+
+  private void reslotDrivers()
+  {
+    driverSlots.clear();
+    for (int i = 0; i < drivers.size(); i++)
+      driverSlots.put(drivers.get(i), i);
+    driversReordered = true;
+  }
+
+  // Build and publish a new snapshot if anything changed since the last one. Called by the thread
+  // that owns this manager at the end of a command. Only the views of changed users, drivers and
+  // zone queues are made again, everything else is shared with the previous snapshot
+  public SystemSnapshot publishSnapshot()
+  {
+    SystemSnapshot last = snapshot;
+    boolean zones = false;
+    for (boolean z : zonesChanged)
+      zones |= z;
+    if (changedUsers.isEmpty() && changedDrivers.isEmpty() && !usersReordered && !driversReordered && !zones)
+      return last;
+
+    ViewList<SystemSnapshot.UserView> userViews = usersReordered ? SystemSnapshot.copyUsers(listUsers)
+        : SystemSnapshot.updateUsers(last.getUsers(), listUsers, changedUsers, userSlots);
+    ViewList<SystemSnapshot.DriverView> driverViews = driversReordered ? SystemSnapshot.copyDrivers(drivers)
+        : SystemSnapshot.updateDrivers(last.getDrivers(), drivers, changedDrivers, driverSlots);
+    // Request views point at their user's position, so reordered users need new ones everywhere
+    List<List<SystemSnapshot.RequestView>> zoneViews = new ArrayList<List<SystemSnapshot.RequestView>>();
+    for (int i = 0; i < serviceRequests.length; i++) {
+      if (usersReordered)
+        zoneViews.add(SystemSnapshot.copyRequests(serviceRequests[i], Collections.<SystemSnapshot.RequestView>emptyList(), userSlots));
+      else if (zonesChanged[i])
+        zoneViews.add(SystemSnapshot.copyRequests(serviceRequests[i], last.getRequests(i), userSlots));
+      else
+        zoneViews.add(last.getRequests(i));
+    }
+
+    snapshot = last.next(++version, userViews, driverViews, Collections.unmodifiableList(zoneViews), totalRevenue);
+    changedUsers.clear();
+    changedDrivers.clear();
+    usersReordered = false;
+    driversReordered = false;
+    Arrays.fill(zonesChanged, false);
+    return snapshot;
+  }
+
+  // Most recently published snapshot. Safe to call from any thread
+  public SystemSnapshot getSnapshot()
+  {
+    return snapshot;
+  }
+
+  // Find the pending request at a position of a zone queue (1 is the front)
+  private TMUberService requestAt(int zone, int index)
+  {
+    int i = 1;
+    for (TMUberService s : serviceRequests[zone]) {
+      if (i++ == index)
+        return s;
+    }
+    errMsg = "Invalid Request #";
+    throw new InvalidReqNumException(errMsg);
+  }
+
+  void escalateAt(int zone, int index)
+  {
+    escalate(requestAt(zone, index));
+  }
+
+  void expireAt(int zone, int index)
+  {
+    expire(requestAt(zone, index));
+  }
+
+  // Put a driver on an address without driving there (replicated position)
+  void placeDriver(String driverId, String address)
+  {
+    Driver driver = getDriver(driverId);
+    if (driver == null) {
+      errMsg = "Driver not found with ID: "+ driverId;
+      throw new DriverNotFoundException(errMsg);
+    }
+    int oldZone = driver.getZone();
+    driver.setAddress(address);
+    driver.setZone(city.zoneOf(address));
+    if (driver.getStatus() == Driver.Status.AVAILABLE && driver.getZone() != oldZone) {
+      pricing.driverUnavailable(oldZone);
+      pricing.driverAvailable(driver.getZone());
+    }
+    publishPlace(driver);
+  }
+
+  // Current time used for request timestamps, timers and movement
+  long now()
+  {
+    return clock.now();
+  }
+
+  // Move drivers and fire every escalation and expiry timer that is due
+  public void updateSimulation()
+  {
+    if (replica)
+      return;
+    movement.advance(now(), movementListener);
+    timers.advance(now());
+  }
+
+  // Push the simulation clock forward
+  public void advanceClock(long millis)
+  {
+    clock.advance(millis);
+    updateSimulation();
+  }
+
+  // Turn the block by block driver movement model on or off
+  public void setSimulateMovement(boolean simulate)
+  {
+    simulateMovement = simulate;
+  }
+
+  // Keeps supply per zone up to date while drivers move, and starts the drop off leg at pickups
+  private DriverMovement.Listener movementListener = new DriverMovement.Listener()
+  {
+    public void moved(Driver driver, int oldZone)
+    {
+      if (driver.getStatus() == Driver.Status.AVAILABLE && driver.getZone() != oldZone) {
+        pricing.driverUnavailable(oldZone);
+        pricing.driverAvailable(driver.getZone());
+      }
+      publishPlace(driver);
+    }
+
+    public void arrived(Driver driver)
+    {
+      if (!driver.isHeadingToPickup() || driver.nextPickup() == null)
+        return;
+      collect(driver, driver.getLastMoveTime());
+      TMUberService next = driver.nextPickup();
+      if (next != null) {
+        // On to the next pooled rider's pickup
+        movement.setDestination(driver, next.getFrom(), driver.getLastMoveTime());
+      } else {
+        // Everyone is in the car: first drop off of the route
+        driver.setHeadingToPickup(false);
+        movement.setDestination(driver, driver.getService().getTo(), driver.getLastMoveTime());
+      }
+    }
+  };
+
+  // Driver location pings
+
+  // Where pings are sent, from any thread
+  public LocationIngest getLocations()
+  {
+    return locations;
+  }
+
+  private void scheduleLocations()
+  {
+    timers.schedule(LOCATIONMILLIS, locations, t -> {
+      applyLocations();
+      timers.schedule(t, LOCATIONMILLIS);
+    });
+  }
+
+  // Move every driver that sent a ping since the last pass to the block of its latest ping, in
+  // one pass over the drivers. Drivers the movement simulation is driving keep to their route,
+  // pings outside the city are ignored. Returns how many drivers moved
+  public int applyLocations()
+  {
+    int moved = 0;
+    for (Driver driver : drivers) {
+      int block = locations.take(driver.getIdNumber());
+      if (block == 0 || movement.isMoving(driver))
+        continue;
+      int zone = city.zoneOf(block >> 4, block & 15);
+      if (zone < 0)
+        continue;
+      String address = LocationIngest.address(block);
+      if (address.equals(driver.getAddress()))
+        continue;
+      int oldZone = driver.getZone();
+      driver.setAddress(address);
+      driver.setZone(zone);
+      if (driver.getStatus() == Driver.Status.AVAILABLE && zone != oldZone) {
+        pricing.driverUnavailable(oldZone);
+        pricing.driverAvailable(zone);
+      }
+      publishPlace(driver);
+      moved++;
+    }
+    locations.applied(moved);
+    return moved;
+  }
+
+  // Change the travel time of the road between two neighbouring addresses (seconds < 0 closes it)
+  public void setTravelTime(String from, String to, int seconds)
+  {
+    if (!city.isValid(from)) {
+      errMsg = "Invalid Address " + from;
+      throw new AddressException(errMsg);
+    }
+    if (!city.isValid(to)) {
+      errMsg = "Invalid Address " + to;
+      throw new AddressException(errMsg);
+    }
+    if (CityMap.getDistance(from, to) != 1) {
+      errMsg = "Addresses Must Be On Neighbouring Blocks";
+      throw new AddressException(errMsg);
+    }
+    updateSimulation();
+    int a = CityMap.parseBlock(from);
+    int b = CityMap.parseBlock(to);
+    roads.setWeight(a >> 4, a & 15, b >> 4, b & 15, seconds < 0 ? RoadGraph.CLOSED : seconds * 1000L);
+    publish("TRAVELTIME", from, to, String.valueOf(seconds));
+  }
+
+  // Available drivers ordered by ETA to an address (closest first)
+  public ArrayList<Driver> rankDriversByEta(String address)
+  {
+    if (!city.isValid(address)) {
+      errMsg = "Invalid Address " + address;
+      throw new AddressException(errMsg);
+    }
+    updateSimulation();
+    ArrayList<Driver> available = new ArrayList<Driver>();
+    for (Driver d : drivers) {
+      if (d.getStatus() == Driver.Status.AVAILABLE) {
+        available.add(d);
+      }
+    }
+    long[] etas = new long[available.size()];
+    movement.etas(available, address, now(), etas);
+    Integer[] order = new Integer[available.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(etas[a], etas[b]));
+    ArrayList<Driver> ranked = new ArrayList<Driver>();
+    for (int i : order) {
+      ranked.add(available.get(i));
+    }
+    return ranked;
+  }
+
+  // Add up the legs of a route; a leg with no open road makes the whole route NOROUTE
+  private static long addEta(long eta, long leg)
+  {
+    if (eta == DriverMovement.NOROUTE || leg == DriverMovement.NOROUTE)
+      return DriverMovement.NOROUTE;
+    return eta + leg;
+  }
+
+  // Print the pickup ETA of the closest available driver and the trip time
+  public void quoteEta(String from, String to)
+  {
+    ArrayList<Driver> ranked = rankDriversByEta(from);
+    if (!city.isValid(to)) {
+      errMsg = "Invalid Address " + to;
+      throw new AddressException(errMsg);
+    }
+    if (ranked.isEmpty()) {
+      errMsg = "No Available Drivers";
+      throw new NoDriversException(errMsg);
+    }
+    Driver nearest = ranked.get(0);
+    long pickupEta = movement.eta(nearest.getAddress(), from);
+    if (pickupEta == DriverMovement.NOROUTE) {
+      errMsg = "No Open Road To " + from;
+      throw new NoDriversException(errMsg);
+    }
+    System.out.println("Nearest Driver: " + nearest.getId() + " Pickup ETA: " + 
+                       pickupEta/1000 + " Seconds");
+    long tripTime = movement.eta(from, to);
+    if (tripTime == DriverMovement.NOROUTE)
+      System.out.println("Trip Time: No Open Road From " + from + " To " + to);
+    else
+      System.out.println("Trip Time: " + tripTime/1000 + " Seconds");
+  }
+
+  // Request waited past its SLA: let drivers from any zone pick it up
+  private void escalate(TMUberService service)
+  {
+    publishPosition("ESCALATE", service);
+    service.setEscalated(true);
+    escalatedRequests++;
+    slaBreaches++;
+  }
+
+  // Request waited past its TTL: cancel it the same way a user cancel does
+  private void expire(TMUberService service)
+  {
+    publishPosition("EXPIRE", service);
+    removeRequest(service);
+    releaseRequest(service);
+    markUser(service.getUser());
+    markZone(city.zoneOf(service.getFrom()));
+    if (service.getTripHandle() != null)
+      service.getTripHandle().fail(new RequestCancelledException("Service Request Expired"));
+    emit(SystemEvent.Kind.REQUESTEXPIRED, service, null, 0);
+    RequestTrace.cancelled(city.getName(), service, city.zoneOf(service.getFrom()), now(), true);
+    expiredCount.increment();
+    expiredRequests++;
+    System.out.println("Service request for " + service.getUser().getName() + " expired");
+    requestPool.recycle(service);
+  }
+
+  // Print wait time statistics of service requests
+  public void listSlaStats()
+  {
+    updateSimulation();
+    System.out.println("Picked Up: " + pickedUp);
+    if (pickedUp > 0)
+      System.out.printf("Average Wait: %.1f seconds\n", totalWaitMillis / 1000.0 / pickedUp);
+    System.out.println("Waited Past SLA: " + slaBreaches);
+    System.out.println("Expired: " + expiredRequests);
+    // Impact of rebalancing: average wait of pickups made with it on against those made with it off
+    int plain = pickedUp - rebalancedPickups;
+    if (rebalancedPickups > 0)
+      System.out.printf("Average Wait Rebalancing: %.1f seconds (%d Pick Ups, %d Driver Moves)\n",
+                        rebalancedWaitMillis / 1000.0 / rebalancedPickups, rebalancedPickups, rebalanceMoves);
+    if (rebalancedPickups > 0 && plain > 0)
+      System.out.printf("Average Wait Not Rebalancing: %.1f seconds (%d Pick Ups)\n",
+                        (totalWaitMillis - rebalancedWaitMillis) / 1000.0 / plain, plain);
+    if (admission != null)
+      System.out.println("Rejected: " + admission.getCount(AdmissionControl.Result.USERLIMITED) + " User Rate, " +
+                         admission.getCount(AdmissionControl.Result.ZONELIMITED) + " Zone Rate, " +
+                         admission.getCount(AdmissionControl.Result.SHED) + " Shed");
+    if (locations.getReceived() + locations.getRejected() > 0)
+      System.out.println("Location Pings: " + locations.getReceived() + " Received, " + locations.getApplied() + " Applied, " +
+                         locations.getCoalesced() + " Coalesced, " + locations.getRejected() + " Rejected");
+  }
+  
+  // Drop off a ride or a delivery. This completes a service.
+  // A driver carrying a pool or a delivery batch settles one request per call, in route order
+  public void dropOff(String driverId)
+  {
+    Driver driver= getDriver(driverId);
+    if (driver == null) {
+      errMsg = "Invalid Driver Id";
+      throw new DriverNotFoundException(errMsg);
+    }
+    TMUberService service = driver.getService();
+    if(service == null){
+      errMsg = "Driver "+driverId+" has no active requests";
+      throw new NoServiceRequestException(errMsg);
+    }
+    updateSimulation();
+    if (simulateMovement && (driver.isHeadingToPickup() || movement.isMoving(driver))) {
+      long eta = movement.remaining(driver);
+      if (driver.isHeadingToPickup()) {
+        // The pickups left after the one being driven to, then the first drop off
+        ArrayList<TMUberService> pickups = driver.getPickups();
+        for (int i = 1; i < pickups.size(); i++)
+          eta = addEta(eta, movement.eta(pickups.get(i - 1).getFrom(), pickups.get(i).getFrom()));
+        eta = addEta(eta, movement.eta(pickups.get(pickups.size() - 1).getFrom(), service.getTo()));
+      }
+      if (eta == DriverMovement.NOROUTE)
+        errMsg = "Driver "+driverId+" Has Not Arrived - No Open Road";
+      else
+        errMsg = "Driver "+driverId+" Has Not Arrived - ETA "+eta/1000+" Seconds";
+      throw new NotArrivedException(errMsg);
+    }
+    User user = service.getUser();
     if (service.getServiceType().equals("DELIVERY")){
       user.decrementDelivery();
     } else if (service.getServiceType().equals("RIDE")){
       user.decrementRide();
     }
     totalRevenue += service.getCost();          // add service cost to revenues
-    driver.pay(service.getCost()*PAYRATE);      // pay the driver
+    payouts.accrue(driverId, service.getCost()*PAYRATE); // driver is paid at the next settlement
     totalRevenue -= service.getCost()*PAYRATE;  // deduct driver fee from total revenues
-    driver.setStatus(Driver.Status.AVAILABLE);  // driver is now available again
-    driver.setService(null);                    // no service for driver
+    driver.completeService();                   // next pooled rider (if any) becomes the active service
     driver.setAddress(service.getTo());         // setaAddress to the To of the requst because driver is there now
-    driver.setZone(driver.getAddress());        // Change zone accordingly
-    user.payForService(service.getCost());      // user pays for ride or delivery
+    driver.setZone(city.zoneOf(driver.getAddress()));        // Change zone accordingly
+    if (driver.getService() == null) {
+      driver.setStatus(Driver.Status.AVAILABLE);  // driver is now available again
+      pricing.driverAvailable(driver.getZone());  // driver is supply in the new zone
+    } else if (simulateMovement) {
+      movement.setDestination(driver, driver.getService().getTo(), now()); // on to the next drop off
+    }
+    user.capture(service.getCost());            // user pays for ride or delivery out of the hold made at request time
+    if (service.getTripHandle() != null)
+      service.getTripHandle().complete(service);
+    emit(SystemEvent.Kind.REQUESTCOMPLETED, service, driver, service.getCost()*PAYRATE);
+    RequestTrace.droppedOff(city.getName(), service, city.zoneOf(service.getFrom()), driver, now());
+    dropOffCount.increment();
+    if (driver.getStatus() == Driver.Status.AVAILABLE)
+      emit(SystemEvent.Kind.DRIVERSTATUS, null, driver, 0);
+    markDriver(driver);
+    markUser(user);
+    publish("DROPOFF", driverId);
+    requestPool.recycle(service);
+  }
+
+
+  // Search
+
+  private void indexDriver(Driver driver)
+  {
+    driverNames.add(driver.getName(), driver);
+    licencePlates.add(driver.getLicensePlate(), driver);
+  }
+
+  // Page (from 0) of the users whose name starts with prefix, any case, sorted by name
+  public List<User> searchUsers(String prefix, int page)
+  {
+    return userNames.search(prefix, searchOffset(page), SEARCHPAGE);
+  }
+
+  // Page of the drivers whose name starts with prefix
+  public List<Driver> searchDrivers(String prefix, int page)
+  {
+    return driverNames.search(prefix, searchOffset(page), SEARCHPAGE);
+  }
+
+  // Page of the drivers whose licence plate starts with prefix, sorted by plate
+  public List<Driver> searchLicencePlates(String prefix, int page)
+  {
+    return licencePlates.search(prefix, searchOffset(page), SEARCHPAGE);
+  }
+
+  public int countUsers(String prefix)
+  {
+    return userNames.count(prefix);
+  }
+
+  public int countDrivers(String prefix)
+  {
+    return driverNames.count(prefix);
+  }
+
+  public int countLicencePlates(String prefix)
+  {
+    return licencePlates.count(prefix);
+  }
+
+  // Print a page of the users whose name starts with prefix
+  public void listUserSearch(String prefix, int page)
+  {
+    List<User> found = searchUsers(prefix, page);
+    int index = searchOffset(page) + 1;
+    System.out.println();
+    for (User user : found) {
+      System.out.printf("%-2s. ", index++);
+      user.printInfo();
+      System.out.println();
+    }
+    printSearchPage(countUsers(prefix), page);
+  }
+
+  // Print a page of the drivers whose name, or licence plate, starts with prefix
+  public void listDriverSearch(String prefix, int page, boolean byLicencePlate)
+  {
+    List<Driver> found = byLicencePlate ? searchLicencePlates(prefix, page) : searchDrivers(prefix, page);
+    int index = searchOffset(page) + 1;
+    System.out.println();
+    for (Driver driver : found) {
+      System.out.printf("%-2s. ", index++);
+      driver.printInfo();
+      System.out.println();
+    }
+    printSearchPage(byLicencePlate ? countLicencePlates(prefix) : countDrivers(prefix), page);
+  }
+
+  private void printSearchPage(int matches, int page)
+  {
+    int pages = (matches + SEARCHPAGE - 1) / SEARCHPAGE;
+    System.out.println("Page " + (Math.max(0, page) + 1) + " of " + Math.max(1, pages) + " (" + matches + " Matches)");
   }
 
+  // Pages before the first are read as the first
+  private int searchOffset(int page)
+  {
+    return (int) Math.min(Integer.MAX_VALUE, (long) Math.max(0, page) * SEARCHPAGE);
+  }
 
   // Sort users by name using the user arraylist
   public void sortByUserName()
   {
     Collections.sort(listUsers, new NameComparator());
+    reslotUsers();
     listAllUsers();
   }
 
@@ -568,6 +2146,7 @@ public class TMUberSystemManager
   public void sortByWallet()
   {
     Collections.sort(listUsers, new UserWalletComparator());
+    reslotUsers();
     listAllUsers();
   }
 
@@ -598,13 +2177,6 @@ class InvalidUserNameException extends RuntimeException {
       super(message);
   } 
 }
-class DriverNotFoundException extends RuntimeException {
-  DriverNotFoundException(){}
-  public DriverNotFoundException(String message) {
-      super(message);
-  }
-}
-
 class NoServiceRequestException extends RuntimeException {
   NoServiceRequestException(){}
   public NoServiceRequestException(String message) {
@@ -612,13 +2184,6 @@ class NoServiceRequestException extends RuntimeException {
   }
 }
 
-class InvalidUserAddressException extends RuntimeException { 
-  public InvalidUserAddressException(){}
-  public InvalidUserAddressException(String message) {
-      super(message);
-  } 
-}
-
 class MoneyInWalletException extends RuntimeException { 
   public MoneyInWalletException(){}
   public MoneyInWalletException(String message) {
@@ -661,13 +2226,6 @@ class DriverExistsException extends RuntimeException {
   } 
 }
 
-class UserNotFoundException extends RuntimeException { 
-  UserNotFoundException(){}
-  public UserNotFoundException(String message) {
-      super(message);
-  } 
-}
-
 class RideExistsException extends RuntimeException { 
   RideExistsException(){}
   public RideExistsException(String message) {
@@ -689,13 +2247,6 @@ class DistanceException extends RuntimeException {
   } 
 }
 
-class AddressException extends RuntimeException { 
-  AddressException(){}
-  public AddressException(String message) {
-      super(message);
-  } 
-}
-
 class InvalidFundsException extends RuntimeException {
   InvalidFundsException(){} 
   public InvalidFundsException(String message) {
@@ -717,9 +2268,60 @@ class InvalidReqNumException extends RuntimeException {
   } 
 }
 
-class InvalidZoneException extends RuntimeException {
-  InvalidZoneException(){}
-  public InvalidZoneException(String message){
+class PassengerException extends RuntimeException {
+  PassengerException(){}
+  public PassengerException(String message){
+    super(message);
+  }
+}
+
+class NotArrivedException extends RuntimeException {
+  NotArrivedException(){}
+  public NotArrivedException(String message){
+    super(message);
+  }
+}
+
+class SettlementException extends RuntimeException {
+  SettlementException(){}
+  public SettlementException(String message){
     super(message);
   }
-}
\ No newline at end of file
+}
+
+// Thrown for every command turned away under load, so it skips the stack trace
+class AdmissionException extends RuntimeException {
+  AdmissionException(){}
+  public AdmissionException(String message) {
+      super(message, null, false, false);
+  }
+}
+
+class RequestCancelledException extends RuntimeException {
+  RequestCancelledException(){}
+  public RequestCancelledException(String message) {
+      super(message);
+  }
+}
+
+class IdempotencyKeyException extends RuntimeException {
+  IdempotencyKeyException(){}
+  public IdempotencyKeyException(String message) {
+      super(message);
+  }
+}
+
+// A zone's intake ring is full, see RequestIntake
+class IntakeFullException extends RuntimeException {
+  IntakeFullException(){}
+  public IntakeFullException(String message) {
+      super(message);
+  }
+}
+
+class InvalidRebalanceModeException extends RuntimeException {
+  InvalidRebalanceModeException(){}
+  public InvalidRebalanceModeException(String message) {
+      super(message);
+  }
+}
@@ -1,4 +1,5 @@
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.io.IOException; 
 import java.io.FileNotFoundException;
@@ -14,6 +15,9 @@ public class TMUberUI
     // Create the System Manager - the main system code is in here 
 
     TMUberSystemManager tmuber = new TMUberSystemManager();
+    // Settlement files are only written when a directory is given: java TMUberUI <settlement directory>
+    if (args.length > 0)
+      tmuber.setSettlementDirectory(args[0]);
     
     Scanner scanner = new Scanner(System.in);
     System.out.print(">");
@@ -39,7 +43,7 @@ public class TMUberUI
           System.out.print("Users File: ");
           filename = scanner.nextLine();
           try {
-            ArrayList<User> userList = TMUberRegistered.loadPreregisteredUsers(filename);
+            ArrayList<User> userList = TMUberRegistered.loadPreregisteredUsers(filename, tmuber.getUserIds());
             tmuber.setUsers(userList);
             System.out.println("Users Loaded");
           } catch (IOException e) {
@@ -56,7 +60,7 @@ public class TMUberUI
           System.out.print("Drivers File: ");
           filename = scanner.nextLine();
           try {
-            ArrayList<Driver> driverList = TMUberRegistered.loadPreregisteredDrivers(filename);
+            ArrayList<Driver> driverList = TMUberRegistered.loadPreregisteredDrivers(filename, tmuber.getDriverIds());
             tmuber.setDrivers(driverList);
             System.out.println("Drivers Loaded");
           } catch (IOException e) {
@@ -68,6 +72,32 @@ public class TMUberUI
             }
           }
           
+        } else if (action.equalsIgnoreCase("LOADREQS")) {
+          // Requests in the binary format written by RequestConverter
+          String filename = "";
+          System.out.print("Requests File: ");
+          filename = scanner.nextLine();
+          try {
+            int accepted = new RequestCodec().apply(TMUberRegistered.loadRequests(filename), tmuber);
+            System.out.println(accepted + " Requests Loaded");
+          } catch (IOException e) {
+            System.out.println("Requests File: "+filename+" Not Found");
+          }
+          
+        } else if (action.equalsIgnoreCase("REPLAY")) {
+          // Run a whole command file at once, see BatchReplay
+          String filename = "";
+          System.out.print("Commands File: ");
+          filename = scanner.nextLine();
+          String quiet = "";
+          System.out.print("Quiet (Y/N): ");
+          quiet = scanner.nextLine();
+          try {
+            new BatchReplay(tmuber, quiet.equalsIgnoreCase("Y")).run(filename);
+          } catch (IOException e) {
+            System.out.println("Commands File: "+filename+" Not Found");
+          }
+          
         } else if (action.equalsIgnoreCase("DRIVERS"))  // List all drivers
         {
           tmuber.listAllDrivers(); 
@@ -169,6 +199,44 @@ public class TMUberUI
           User user = tmuber.getUser(account);
           System.out.printf("\nRIDE for: %-15s From: %-15s To: %-15s", user.getName(), from, to);
         }
+        // Request a shared (pooled) ride, optionally in an XL vehicle
+        else if (action.equalsIgnoreCase("REQPOOL")) 
+        {
+          String account = "";
+          System.out.print("User Account Id: ");
+          if (scanner.hasNextLine())
+          {
+            account = scanner.nextLine();
+          }
+          String from = "";
+          System.out.print("From Address: ");
+          if (scanner.hasNextLine())
+          {
+            from = scanner.nextLine();
+          }
+          String to = "";
+          System.out.print("To Address: ");
+          if (scanner.hasNextLine())
+          {
+            to = scanner.nextLine();
+          }
+          int passengers = 1;
+          System.out.print("Passengers: ");
+          if (scanner.hasNextInt())
+          {
+            passengers = scanner.nextInt();
+            scanner.nextLine(); // consume nl
+          }
+          String xl = "";
+          System.out.print("XL (Y/N): ");
+          if (scanner.hasNextLine())
+          {
+            xl = scanner.nextLine();
+          }
+          tmuber.requestRide(account, from, to, passengers, xl.equalsIgnoreCase("Y"), true);
+          User user = tmuber.getUser(account);
+          System.out.printf("\nPOOL RIDE for: %-15s From: %-15s To: %-15s", user.getName(), from, to);
+        }
         // Request a food delivery
         else if (action.equalsIgnoreCase("REQDLVY")) 
         {
@@ -206,6 +274,16 @@ public class TMUberUI
           User user = tmuber.getUser(account);
           System.out.printf("\nDELIVERY for: %-15s From: %-15s To: %-15s", user.getName(), from, to);  
 
+        } else if (action.equalsIgnoreCase("XLDRIVER")){
+          // Mark a driver's car as an XL vehicle
+          String driverId = "";
+          System.out.print("Driver Id: ");
+          if (scanner.hasNextLine()){
+            driverId = scanner.nextLine();
+          }
+          tmuber.setDriverXL(driverId, true);
+          System.out.println("Driver "+driverId+" Now XL");
+
         } else if (action.equalsIgnoreCase("PICKUP")){
           String driverId = "";
           System.out.print("Driver Id: ");
@@ -227,6 +305,28 @@ public class TMUberUI
         {
           tmuber.sortByWallet();
         }
+        // Find users by the start of their name, or drivers by the start of their name or plate
+        else if (action.equalsIgnoreCase("FINDUSER") || action.equalsIgnoreCase("FINDDRIVER") ||
+                 action.equalsIgnoreCase("FINDPLATE")) 
+        {
+          String prefix = "";
+          System.out.print(action.equalsIgnoreCase("FINDPLATE") ? "Licence Plate: " : "Name: ");
+          if (scanner.hasNextLine())
+          {
+            prefix = scanner.nextLine();
+          }
+          int page = 1;
+          System.out.print("Page: ");
+          if (scanner.hasNextInt())
+          {
+            page = scanner.nextInt();
+            scanner.nextLine(); // consume nl
+          }
+          if (action.equalsIgnoreCase("FINDUSER"))
+            tmuber.listUserSearch(prefix, page - 1);
+          else
+            tmuber.listDriverSearch(prefix, page - 1, action.equalsIgnoreCase("FINDPLATE"));
+        }
         // Sort current service requests (ride or delivery) by distance
         // else if (action.equalsIgnoreCase("SORTBYDIST")) 
         // {
@@ -272,6 +372,115 @@ public class TMUberUI
         {
           System.out.println("Total Revenue: " + tmuber.totalRevenue);
         }
+        // Pay drivers their earnings since the last settlement
+        else if (action.equalsIgnoreCase("SETTLE")) 
+        {
+          List<PayoutEngine.Payout> payouts = tmuber.settlePayouts();
+          double paid = 0;
+          for (PayoutEngine.Payout p : payouts)
+            paid += p.payoutCents / 100.0;
+          System.out.printf("Settlement #%d: %d Drivers Paid %.2f\n", tmuber.getSettlementCycle(), payouts.size(), paid);
+        }
+        else if (action.equalsIgnoreCase("FORECAST")) 
+        {
+          tmuber.listForecast();
+        }
+        else if (action.equalsIgnoreCase("REBALANCE")) 
+        {
+          String mode = "";
+          System.out.print("Mode (OFF/RECOMMEND/AUTO): ");
+          if (scanner.hasNextLine())
+          {
+            mode = scanner.nextLine();
+          }
+          tmuber.setRebalanceMode(mode);
+          tmuber.rebalance();
+          tmuber.listForecast();
+        }
+        // Turn per user and per zone admission control on or off
+        else if (action.equalsIgnoreCase("ADMISSION")) 
+        {
+          String on = "";
+          System.out.print("Admission Control (ON/OFF): ");
+          if (scanner.hasNextLine())
+          {
+            on = scanner.nextLine();
+          }
+          tmuber.setAdmissionControl(on.trim().equalsIgnoreCase("ON"));
+          System.out.println("Admission Control " + (tmuber.getAdmissionControl() != null ? "On" : "Off"));
+        }
+        // Show request wait times, SLA breaches and expired requests
+        else if (action.equalsIgnoreCase("SLA")) 
+        {
+          tmuber.listSlaStats();
+        }
+        // Turn on block by block driver movement
+        else if (action.equalsIgnoreCase("SIMULATE")) 
+        {
+          tmuber.setSimulateMovement(true);
+          System.out.println("Driver Movement Simulation On");
+        }
+        // Move the simulation clock forward
+        else if (action.equalsIgnoreCase("TICK")) 
+        {
+          int seconds = 0;
+          System.out.print("Seconds: ");
+          if (scanner.hasNextInt())
+          {
+            seconds = scanner.nextInt();
+            scanner.nextLine(); // consume nl
+          }
+          tmuber.advanceClock(seconds * 1000L);
+          System.out.println("Clock Advanced " + seconds + " Seconds");
+        }
+        // Pickup ETA of the nearest driver and trip time
+        else if (action.equalsIgnoreCase("ETA")) 
+        {
+          String from = "";
+          System.out.print("From: ");
+          if (scanner.hasNextLine())
+          {
+            from = scanner.nextLine();
+          }
+          String to = "";
+          System.out.print("To: ");
+          if (scanner.hasNextLine())
+          {
+            to = scanner.nextLine();
+          }
+          tmuber.quoteEta(from, to);
+        }
+        // Set the travel time of a road between two neighbouring blocks (negative closes it)
+        else if (action.equalsIgnoreCase("TRAFFIC")) 
+        {
+          String from = "";
+          System.out.print("From: ");
+          if (scanner.hasNextLine())
+          {
+            from = scanner.nextLine();
+          }
+          String to = "";
+          System.out.print("To: ");
+          if (scanner.hasNextLine())
+          {
+            to = scanner.nextLine();
+          }
+          int seconds = 0;
+          System.out.print("Seconds: ");
+          if (scanner.hasNextInt())
+          {
+            seconds = scanner.nextInt();
+            scanner.nextLine(); // consume nl
+          }
+          tmuber.setTravelTime(from, to, seconds);
+          System.out.println(seconds < 0 ? "Road Closed" : "Travel Time Set");
+        }
+        // Show the current surge multiplier in every zone
+        else if (action.equalsIgnoreCase("SURGE")) 
+        {
+          for (int zone = 0; zone < tmuber.getCity().getNumZones(); zone++)
+            System.out.println("Zone " + zone + " Surge: " + tmuber.getSurge(zone) + "x");
+        }
         // Unit Test of Valid City Address 
         else if (action.equalsIgnoreCase("ADDR")) 
         {
@@ -323,6 +532,8 @@ public class TMUberUI
       } catch(Exception e){
         System.out.println(e.getMessage());
       }
+      // End of a command: let other readers see its effect
+      tmuber.publishSnapshot();
       System.out.print("\n>");
     }
   }
@@ -0,0 +1,174 @@
+/*
+ *
+ * Hashed timer wheel used to expire and escalate pending service requests.
+ *
+ * Time is split into ticks. A timer lands in the bucket (deadline tick mod wheel size) and keeps
+ * a count of full turns of the wheel still to wait. Scheduling and cancelling are O(1) since the
+ * buckets are intrusive doubly linked lists, and advancing the clock only looks at the bucket of
+ * each tick that passed, never at every pending request. A Timeout can be scheduled again after
+ * it fired or was cancelled, so callers that keep theirs set timers without allocating.
+ */
+public class TimerWheel
+{
+  // Work to run when a timer fires
+  public interface Task
+  {
+    void run(Timeout timeout);
+  }
+
+  // A timer. Keep it to cancel or schedule it again later
+  public static class Timeout
+  {
+    private final Task task;
+    private final Object target; // what this timer is about (e.g. the service request)
+    private long rounds;
+    private int bucket;
+    private Timeout prev;
+    private Timeout next;
+    private Timeout fireNext; // chain of timers due in the tick being processed
+    private boolean active;
+    private boolean cancelled;
+
+    private Timeout(Task task, Object target)
+    {
+      this.task = task;
+      this.target = target;
+    }
+
+    public Object getTarget()
+    {
+      return target;
+    }
+
+    public boolean isActive()
+    {
+      return active;
+    }
+  }
+
+  private final Timeout[] wheel; // head of each bucket
+  private final int mask;
+  private final long tickMillis;
+  private final long startTime;
+  private long currentTick;
+  private int pending;
+
+  // wheelSize is rounded up to a power of two
+  public TimerWheel(int wheelSize, long tickMillis, long startTime)
+  {
+    int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+    this.wheel = new Timeout[size];
+    this.mask = size - 1;
+    this.tickMillis = tickMillis;
+    this.startTime = startTime;
+    this.currentTick = 0;
+    this.pending = 0;
+  }
+
+  // A timer for task that is not scheduled yet, see schedule(Timeout, long)
+  public Timeout timeout(Object target, Task task)
+  {
+    return new Timeout(task, target);
+  }
+
+  // Run task once delayMillis have passed (rounded up to a whole tick)
+  public Timeout schedule(long delayMillis, Object target, Task task)
+  {
+    return schedule(new Timeout(task, target), delayMillis);
+  }
+
+  // Schedule a timer again (or for the first time), moving it if it is still pending
+  public Timeout schedule(Timeout t, long delayMillis)
+  {
+    if (t.active)
+      unlink(t);
+    t.cancelled = false;
+    long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+    long deadlineTick = currentTick + ticks;
+    t.rounds = (ticks - 1) / wheel.length;
+    t.bucket = (int) (deadlineTick & mask);
+    link(t);
+    return t;
+  }
+
+  // Cancel a timer that has not fired yet. Safe to call with null or an already fired timer
+  public void cancel(Timeout t)
+  {
+    if (t == null)
+      return;
+    t.cancelled = true;
+    if (t.active)
+      unlink(t);
+  }
+
+  // Fire every timer whose deadline is at or before now
+  public void advance(long now)
+  {
+    long target = (now - startTime) / tickMillis;
+    while (currentTick < target)
+    {
+      currentTick++;
+      if (pending == 0)
+      {
+        // Nothing scheduled, jump straight to the target tick
+        currentTick = target;
+        break;
+      }
+      // Take the due timers out of the bucket first, since a task may cancel other timers
+      Timeout due = null;
+      Timeout t = wheel[(int) (currentTick & mask)];
+      while (t != null)
+      {
+        Timeout next = t.next;
+        if (t.rounds > 0)
+          t.rounds--;
+        else
+        {
+          unlink(t);
+          t.fireNext = due;
+          due = t;
+        }
+        t = next;
+      }
+      while (due != null)
+      {
+        Timeout next = due.fireNext;
+        due.fireNext = null;
+        // Skip timers cancelled or scheduled again by a task that ran before them
+        if (!due.cancelled && !due.active)
+          due.task.run(due);
+        due = next;
+      }
+    }
+  }
+
+  // Timers that have not fired or been cancelled
+  public int size()
+  {
+    return pending;
+  }
+
+  private void link(Timeout t)
+  {
+    t.prev = null;
+    t.next = wheel[t.bucket];
+    if (t.next != null)
+      t.next.prev = t;
+    wheel[t.bucket] = t;
+    t.active = true;
+    pending++;
+  }
+
+  private void unlink(Timeout t)
+  {
+    if (t.prev != null)
+      t.prev.next = t.next;
+    else
+      wheel[t.bucket] = t.next;
+    if (t.next != null)
+      t.next.prev = t.prev;
+    t.prev = t.next = null;
+    t.active = false;
+    pending--;
+  }
+}
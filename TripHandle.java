@@ -0,0 +1,85 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ *
+ * What a caller of the async request API (submitRide/submitDelivery) gets back.
+ *
+ *   - assigned() completes with the driver when the request is picked up
+ *   - completed() completes with the request when it is dropped off
+ * Both complete exceptionally when the request is rejected, cancelled or expires before that.
+ *
+ * The futures are completed on the manager's completion executor, never on the thread running
+ * the manager, so whatever a caller chains onto them (thenAccept etc.) cannot hold up dispatch.
+ * A caller waiting on a handle holds no thread at all unless it blocks on it with join()/get().
+ */
+public class TripHandle
+{
+  private final Executor executor;
+  private final CompletableFuture<Driver> assigned;
+  private final CompletableFuture<TMUberService> completed;
+  private volatile TMUberService request;
+
+  TripHandle(Executor executor)
+  {
+    this.executor = executor;
+    assigned = new CompletableFuture<Driver>();
+    completed = new CompletableFuture<TMUberService>();
+  }
+
+  public CompletableFuture<Driver> assigned()
+  {
+    return assigned;
+  }
+
+  public CompletableFuture<TMUberService> completed()
+  {
+    return completed;
+  }
+
+  // The request, null if it was rejected
+  public TMUberService getRequest()
+  {
+    return request;
+  }
+
+  void setRequest(TMUberService request)
+  {
+    this.request = request;
+  }
+
+  void assign(Driver driver)
+  {
+    executor.execute(() -> assigned.complete(driver));
+  }
+
+  void complete(TMUberService service)
+  {
+    executor.execute(() -> completed.complete(service));
+  }
+
+  // Rejected, cancelled or expired. Does nothing to a future that already completed
+  void fail(Throwable reason)
+  {
+    executor.execute(() -> {
+      assigned.completeExceptionally(reason);
+      completed.completeExceptionally(reason);
+    });
+  }
+
+  // Virtual threads where the JVM has them (Java 21 and later), so every completion gets its own
+  // cheap thread; otherwise the common fork join pool
+  static Executor defaultExecutor()
+  {
+    try
+    {
+      Object executor = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      return (Executor) executor;
+    }
+    catch (ReflectiveOperationException e)
+    {
+      return ForkJoinPool.commonPool();
+    }
+  }
+}
@@ -1,17 +1,28 @@
+import java.util.concurrent.atomic.AtomicLong;
+
 /*
  * 
  * Class that simulates a user of a simple Uber app
  */
 public class User
 {
-  private String accountId;  
+  private long accountId;
+  private String accountIdText; // accountId rendered for display, made on first use
   private String name;
   private String address;
-  private double wallet; // load up with money
+  private volatile double wallet; // load up with money
+  // Money held for requests that are not paid yet (cents). Updated lock free so requests for
+  // different users never contend
+  private final AtomicLong reservedCents = new AtomicLong();
   private int rides;
   private int deliveries;
   
   public User(String id, String name, String address, double wallet)
+  {
+    this(Long.parseLong(id), name, address, wallet);
+  }
+
+  public User(long id, String name, String address, double wallet)
   {
     this.accountId = id;
     this.name = name;
@@ -23,12 +34,19 @@ public class User
 
   // Getters and Setters
   public String getAccountId()
+  {
+    if (accountIdText == null)
+      accountIdText = String.valueOf(accountId);
+    return accountIdText;
+  }
+  public long getAccountNumber()
   {
     return accountId;
   }
   public void setAccountId(String accountId)
   {
-    this.accountId = accountId;
+    this.accountId = Long.parseLong(accountId);
+    this.accountIdText = null;
   }
   public String getName()
   {
@@ -83,10 +101,54 @@ public class User
     wallet -= cost;
   }
   
+  // Wallet less the money held for pending requests
+  public double getAvailable()
+  {
+    return wallet - reservedCents.get() / 100.0;
+  }
+  public double getReserved()
+  {
+    return reservedCents.get() / 100.0;
+  }
+
+  // Hold amount for a request if the wallet covers it on top of everything already held.
+  // Returns false (and holds nothing) if it does not
+  public boolean reserve(double amount)
+  {
+    long cents = Math.round(amount * 100);
+    while (true)
+    {
+      long held = reservedCents.get();
+      if (Math.round(wallet * 100) - held < cents)
+        return false;
+      if (reservedCents.compareAndSet(held, held + cents))
+        return true;
+    }
+  }
+
+  // Hold amount without checking the wallet (the request was already accepted elsewhere)
+  public void hold(double amount)
+  {
+    reservedCents.addAndGet(Math.round(amount * 100));
+  }
+
+  // Give back a hold, e.g. the request was cancelled
+  public void release(double amount)
+  {
+    reservedCents.addAndGet(-Math.round(amount * 100));
+  }
+
+  // Pay for a service out of its hold
+  public void capture(double amount)
+  {
+    wallet -= amount;
+    release(amount);
+  }
+
   // Print Information about a User  
   public void printInfo()
   {
-    System.out.printf("User: Id: %-5s Name: %-15s Address: %-15s Wallet: %2.2f", accountId, name, address, wallet);
+    System.out.printf("User: Id: %-5s Name: %-15s Address: %-15s Wallet: %2.2f", getAccountId(), name, address, wallet);
   }
   
   /*
@@ -0,0 +1,6 @@
+class UserNotFoundException extends RuntimeException { 
+  UserNotFoundException(){}
+  public UserNotFoundException(String message) {
+      super(message);
+  } 
+}
@@ -0,0 +1,117 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/*
+ *
+ * Immutable list that shares its structure with the list it was made from.
+ *
+ * Items sit in a tree of 32 wide arrays. Replacing or appending an item copies only the arrays on
+ * the path from the root to that item (a few dozen references however long the list is) and
+ * shares every other array with the old list, so both versions stay valid and readers of the old
+ * one need no lock. Used by SystemSnapshot so a change to one user or driver does not copy them all.
+ */
+public final class ViewList<T> extends AbstractList<T> implements RandomAccess
+{
+  private static final int BITS = 5;
+  private static final int WIDTH = 1 << BITS;
+  private static final int MASK = WIDTH - 1;
+
+  private static final ViewList<Object> EMPTY = new ViewList<Object>(0, 0, new Object[0]);
+
+  private final int size;
+  private final int shift;      // BITS times the levels below the root
+  private final Object[] root;  // leaves hold items, other levels hold child arrays
+
+  private ViewList(int size, int shift, Object[] root)
+  {
+    this.size = size;
+    this.shift = shift;
+    this.root = root;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> ViewList<T> empty()
+  {
+    return (ViewList<T>) EMPTY;
+  }
+
+  // A list of the items, built level by level without intermediate versions
+  public static <T> ViewList<T> of(List<? extends T> items)
+  {
+    if (items.isEmpty())
+      return empty();
+    Object[] nodes = chunk(items.toArray());
+    int shift = 0;
+    while (nodes.length > 1)
+    {
+      nodes = chunk(nodes);
+      shift += BITS;
+    }
+    return new ViewList<T>(items.size(), shift, (Object[]) nodes[0]);
+  }
+
+  private static Object[] chunk(Object[] items)
+  {
+    Object[] nodes = new Object[(items.length + MASK) / WIDTH];
+    for (int n = 0; n < nodes.length; n++)
+      nodes[n] = Arrays.copyOfRange(items, n * WIDTH, Math.min(items.length, (n + 1) * WIDTH));
+    return nodes;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T get(int index)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Index " + index + " Size " + size);
+    Object[] node = root;
+    for (int s = shift; s > 0; s -= BITS)
+      node = (Object[]) node[(index >>> s) & MASK];
+    return (T) node[index & MASK];
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  // This list with the item at index replaced
+  public ViewList<T> with(int index, T item)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Index " + index + " Size " + size);
+    return new ViewList<T>(size, shift, set(root, shift, index, item));
+  }
+
+  private static Object[] set(Object[] node, int shift, int index, Object item)
+  {
+    Object[] copy = node.clone();
+    int slot = (index >>> shift) & MASK;
+    if (shift == 0)
+      copy[slot] = item;
+    else
+      copy[slot] = set((Object[]) node[slot], shift - BITS, index, item);
+    return copy;
+  }
+
+  // This list with item added at the end
+  public ViewList<T> plus(T item)
+  {
+    // A full root gets a new root above it
+    if (size == WIDTH << shift)
+      return new ViewList<T>(size + 1, shift + BITS, append(new Object[] {root}, shift + BITS, size, item));
+    return new ViewList<T>(size + 1, shift, append(root, shift, size, item));
+  }
+
+  private static Object[] append(Object[] node, int shift, int index, Object item)
+  {
+    int slot = (index >>> shift) & MASK;
+    Object[] copy = Arrays.copyOf(node, Math.max(node.length, slot + 1));
+    if (shift == 0)
+      copy[slot] = item;
+    else
+      copy[slot] = append(slot < node.length ? (Object[]) node[slot] : new Object[0], shift - BITS, index, item);
+    return copy;
+  }
+}
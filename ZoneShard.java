@@ -0,0 +1,274 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/*
+ *
+ * One shard of a sharded TMUber deployment. A shard runs its own TMUberSystemManager for the
+ * zones it owns and serves requests from the ShardRouter over a local socket.
+ *
+ * Protocol: one request per line, fields separated by '|', e.g.
+ *   REQRIDE|9001|34 5th Street|71 9th Street
+ * Every request gets one reply line: "OK" followed by any results, or "ERR|message".
+ * Requests, cancels and drivers for a zone the shard does not own are refused, so a misrouted
+ * request never queues on the wrong shard.
+ *
+ * Usage: java ZoneShard <port> <zone> [zone ...]
+ */
+public class ZoneShard
+{
+  public static final String SEP = "|";
+
+  private final TMUberSystemManager tmuber;
+  private final boolean[] owned;
+  // A read only shard (e.g. a hot standby replica) refuses every request that changes state
+  private volatile boolean readOnly;
+
+  public ZoneShard(int[] zones)
+  {
+    this(new TMUberSystemManager(), zones);
+  }
+
+  public ZoneShard(TMUberSystemManager tmuber, int[] zones)
+  {
+    this.tmuber = tmuber;
+    owned = new boolean[tmuber.getCity().getNumZones()];
+    for (int z : zones)
+    {
+      if (z < 0 || z >= owned.length)
+        throw new InvalidZoneException("Invalid Zone " + z);
+      owned[z] = true;
+    }
+  }
+
+  // Refuse an address in a zone of another shard. Addresses outside the city are left to the
+  // manager, which reports them as it always does
+  private void checkOwned(String address)
+  {
+    checkOwned(tmuber.getCity().zoneOf(address));
+  }
+
+  private void checkOwned(int zone)
+  {
+    if (zone >= 0 && !owns(zone))
+      throw new InvalidZoneException("Zone " + zone + " Not Owned by this Shard");
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 2)
+    {
+      System.out.println("Usage: java ZoneShard <port> <zone> [zone ...]");
+      return;
+    }
+    int port = Integer.parseInt(args[0]);
+    int[] zones = new int[args.length - 1];
+    for (int i = 1; i < args.length; i++)
+      zones[i - 1] = Integer.parseInt(args[i]);
+    ZoneShard shard = new ZoneShard(zones);
+    shard.tmuber.setAdmissionControl(true);
+    shard.serve(port);
+  }
+
+  public void setReadOnly(boolean readOnly)
+  {
+    this.readOnly = readOnly;
+  }
+
+  // Accept router connections forever, one thread per connection
+  public void serve(int port) throws IOException
+  {
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    System.out.println("Shard Listening on Port " + port);
+    while (true)
+    {
+      Socket socket = server.accept();
+      Thread t = new Thread(() -> handle(socket));
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  private void handle(Socket socket)
+  {
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+         PrintWriter out = new PrintWriter(s.getOutputStream(), true))
+    {
+      String line;
+      while ((line = in.readLine()) != null)
+      {
+        String reply;
+        // The manager is single threaded so requests from all connections take turns
+        synchronized (tmuber)
+        {
+          try
+          {
+            reply = execute(line.split("\\" + SEP, -1));
+          }
+          catch (RuntimeException e)
+          {
+            reply = "ERR" + SEP + e.getMessage();
+          }
+          tmuber.publishSnapshot();
+        }
+        out.println(reply);
+      }
+    }
+    catch (IOException e)
+    {
+      // Router went away, nothing else to clean up
+    }
+  }
+
+  // Run one protocol request against the local manager
+  String execute(String[] f)
+  {
+    String cmd = f[0];
+    if (readOnly && !cmd.equals("REVENUES") && !cmd.equals("OWNS"))
+      return "ERR" + SEP + "Read Only - Not the Primary";
+    if (cmd.equals("ADDUSER"))
+    {
+      // ADDUSER|id|name|address|wallet
+      tmuber.addUser(new User(f[1], f[2], f[3], Double.parseDouble(f[4])));
+      return "OK";
+    }
+    else if (cmd.equals("REGUSER"))
+    {
+      // REGUSER|name|address|wallet - register with an id chosen by this manager
+      tmuber.registerNewUser(f[1], f[2], Double.parseDouble(f[3]));
+      return "OK";
+    }
+    else if (cmd.equals("REGDRIVER"))
+    {
+      // REGDRIVER|name|carModel|plate|address
+      checkOwned(f[4]);
+      tmuber.registerNewDriver(f[1], f[2], f[3], f[4]);
+      return "OK";
+    }
+    else if (cmd.equals("SETWALLET"))
+    {
+      // SETWALLET|id|wallet - keep the copy of a user in sync after a trip on another shard
+      tmuber.syncWallet(f[1], Double.parseDouble(f[2]));
+      return "OK";
+    }
+    else if (cmd.equals("HELD"))
+    {
+      // HELD|id - replies with the money this shard holds for the user's pending requests
+      User user = tmuber.getUser(f[1]);
+      return "OK" + SEP + (user == null ? 0.0 : user.getReserved());
+    }
+    else if (cmd.equals("WITHHELD"))
+    {
+      // WITHHELD|id|amount|request... - run a request with the user's holds on the other shards
+      // counted against the wallet as well, so one balance cannot be spent on two shards at once
+      User user = tmuber.getUser(f[1]);
+      if (user == null)
+        throw new UserNotFoundException("User Account Not Found " + f[1]);
+      double elsewhere = Double.parseDouble(f[2]);
+      user.hold(elsewhere);
+      try
+      {
+        return execute(Arrays.copyOfRange(f, 3, f.length));
+      }
+      finally
+      {
+        user.release(elsewhere);
+      }
+    }
+    else if (cmd.equals("ADDDRIVER"))
+    {
+      // ADDDRIVER|id|name|carModel|plate|address|wallet|xl
+      checkOwned(f[5]);
+      tmuber.addDriver(decodeDriver(f, 1));
+      return "OK";
+    }
+    else if (cmd.equals("REMOVEDRIVER"))
+    {
+      // REMOVEDRIVER|id - replies with the driver so it can be added on its new shard
+      return "OK" + SEP + encodeDriver(tmuber.removeDriver(f[1]));
+    }
+    else if (cmd.equals("REQRIDE"))
+    {
+      // REQRIDE|account|from|to[|passengers|xl|pooled[|idempotencyKey]] - with a key replies with the request id
+      checkOwned(f[2]);
+      if (f.length > 7)
+        return "OK" + SEP + tmuber.requestRide(f[7], f[1], f[2], f[3], Integer.parseInt(f[4]),
+                                               Boolean.parseBoolean(f[5]), Boolean.parseBoolean(f[6]));
+      if (f.length > 4)
+        tmuber.requestRide(f[1], f[2], f[3], Integer.parseInt(f[4]), Boolean.parseBoolean(f[5]), Boolean.parseBoolean(f[6]));
+      else
+        tmuber.requestRide(f[1], f[2], f[3]);
+      return "OK";
+    }
+    else if (cmd.equals("REQDLVY"))
+    {
+      // REQDLVY|account|from|to|restaurant|order[|idempotencyKey] - with a key replies with the request id
+      checkOwned(f[2]);
+      if (f.length > 6)
+        return "OK" + SEP + tmuber.requestDelivery(f[6], f[1], f[2], f[3], f[4], f[5]);
+      tmuber.requestDelivery(f[1], f[2], f[3], f[4], f[5]);
+      return "OK";
+    }
+    else if (cmd.equals("PICKUP"))
+    {
+      tmuber.pickup(f[1]);
+      return "OK";
+    }
+    else if (cmd.equals("DRIVETO"))
+    {
+      // DRIVETO|id|address - replies with the driver's zone afterwards
+      tmuber.driveTo(f[1], f[2]);
+      return "OK" + SEP + tmuber.getDriver(f[1]).getZone();
+    }
+    else if (cmd.equals("DROPOFF"))
+    {
+      // DROPOFF|id - replies with the driver's new zone, the user and the user's wallet
+      Driver driver = tmuber.getDriver(f[1]);
+      User user = driver == null || driver.getService() == null ? null : driver.getService().getUser();
+      tmuber.dropOff(f[1]);
+      return "OK" + SEP + driver.getZone() + SEP + user.getAccountId() + SEP + user.getWallet() + SEP +
+             (driver.getStatus() == Driver.Status.AVAILABLE);
+    }
+    else if (cmd.equals("CANCELREQ"))
+    {
+      // CANCELREQ|reqnum|zone
+      checkOwned(Integer.parseInt(f[2]));
+      tmuber.cancelServiceRequest(Integer.parseInt(f[1]), Integer.parseInt(f[2]));
+      return "OK";
+    }
+    else if (cmd.equals("REVENUES"))
+    {
+      return "OK" + SEP + tmuber.totalRevenue;
+    }
+    else if (cmd.equals("OWNS"))
+    {
+      return "OK" + SEP + owns(Integer.parseInt(f[1]));
+    }
+    return "ERR" + SEP + "Unknown Command " + cmd;
+  }
+
+  public boolean owns(int zone)
+  {
+    return zone >= 0 && zone < owned.length && owned[zone];
+  }
+
+  static String encodeDriver(Driver d)
+  {
+    return d.getId() + SEP + d.getName() + SEP + d.getCarModel() + SEP + d.getLicensePlate() + SEP +
+           d.getAddress() + SEP + d.getWallet() + SEP + d.isXL();
+  }
+
+  static Driver decodeDriver(String[] f, int start)
+  {
+    Driver d = new Driver(f[start], f[start + 1], f[start + 2], f[start + 3], f[start + 4]);
+    d.setWallet(Double.parseDouble(f[start + 5]));
+    d.setXL(Boolean.parseBoolean(f[start + 6]));
+    return d;
+  }
+}